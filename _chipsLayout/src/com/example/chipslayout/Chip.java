@@ -1,6 +1,8 @@
 package com.example.chipslayout;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -41,6 +43,27 @@ public class Chip<E extends IChipModel> extends LinearLayout {
    */
   private int chipIconResId;
   
+  /**
+   * Whether the icon bitmap is released, see {@link #releaseIcon()}.
+   */
+  private boolean iconReleased;
+  
+  /**
+   * The whole text of the chip, the text shown may be ellipsized.
+   */
+  private CharSequence fullText;
+  
+  /**
+   * The max width of the chip (margins included), the text is ellipsized to
+   * fit it.
+   */
+  private int maxChipWidth = Integer.MAX_VALUE;
+  
+  /**
+   * The alpha of a dimmed chip.
+   */
+  private static final float DIMMED_ALPHA = 0.3f;
+  
   /**
    * Chip Listener for handling delete event.
    */
@@ -139,8 +162,7 @@ public class Chip<E extends IChipModel> extends LinearLayout {
    */
   private void selectChip() {
     this.mStatus = ChipStatus.SELECTED;
-    this.setBackgroundResource(R.drawable.layout_pressed);
-    this.chipIcon.setImageResource(R.drawable.delete);
+    this.showStatus();
   }
   
   /**
@@ -148,8 +170,22 @@ public class Chip<E extends IChipModel> extends LinearLayout {
    */
   private void normalizeChip() {
     this.mStatus = ChipStatus.NORMAL;
-    this.setBackgroundResource(R.drawable.chip_layout_normal);
-    this.setChipIcon(this.chipIconResId);
+    this.showStatus();
+  }
+  
+  /**
+   * Shows the status: the background is a state list drawable switched by
+   * the selected state, and the delete icon is an overlay drawn over the
+   * avatar. So toggling the status only invalidates the chip, the avatar is
+   * not set again.
+   */
+  private void showStatus() {
+    boolean selected = this.mStatus == ChipStatus.SELECTED;
+    if (selected && null == this.chipIcon.getOverlayBitmap()) {
+      this.chipIcon.setOverlayBitmap(ChipAvatarCache.getInstance().get(getContext(), R.drawable.delete));
+    }
+    this.chipLayout.setSelected(selected);
+    this.chipIcon.setOverlayShown(selected);
   }
   
   /**
@@ -171,8 +207,32 @@ public class Chip<E extends IChipModel> extends LinearLayout {
     if (null == this.chipModel) {
       return;
     }
-    this.setChipIcon(this.chipModel.getChipIcon());
-    this.setChipText(this.chipModel.getChipText());
+    //
+    // Only set what differs from what is shown, so a pooled chip rebound to
+    // a model with the same icon does not set the icon again.
+    this.rebind();
+  }
+  
+  /**
+   * Refreshes the chip from its model after the model is changed.
+   * Only the icon or text really changed is set again.
+   * 
+   * @return whether the text is changed
+   */
+  boolean rebind() {
+    if (null == this.chipModel) {
+      return false;
+    }
+    int iconResId = this.chipModel.getChipIcon();
+    if (iconResId != this.chipIconResId || this.iconReleased) {
+      this.setChipIcon(iconResId);
+    }
+    CharSequence text = this.chipModel.getChipText();
+    if (!TextUtils.equals(text, this.fullText)) {
+      this.setChipText(text);
+      return true;
+    }
+    return false;
   }
   
   /**
@@ -185,10 +245,20 @@ public class Chip<E extends IChipModel> extends LinearLayout {
   
   /**
    * Sets the chip icon res id.
+   * The icon is decoded once and shared through {@link ChipAvatarCache}.
    */
   public void setChipIcon(int resId) {
     this.chipIconResId = resId;
-    this.chipIcon.setImageResource(resId);
+    this.iconReleased = false;
+    Bitmap avatar = ChipAvatarCache.getInstance().get(getContext(), resId);
+    if (null != avatar) {
+      if (avatar != this.chipIcon.getBitmap()) {
+        this.chipIcon.setImageBitmap(avatar);
+      }
+    }
+    else {
+      this.chipIcon.setImageResource(resId);
+    }
   }
   
   /**
@@ -196,7 +266,7 @@ public class Chip<E extends IChipModel> extends LinearLayout {
    * @param resId
    */
   public void setChipText(int resId) {
-    this.chipText.setText(resId);
+    this.setChipText(getResources().getText(resId));
   }
   
   /**
@@ -205,13 +275,156 @@ public class Chip<E extends IChipModel> extends LinearLayout {
    * @param text
    */
   public void setChipText(CharSequence text) {
-    this.chipText.setText(text);
+    this.fullText = text;
+    this.fitText();
+  }
+  
+  /**
+   * Sets the max width of the chip, margins included. A longer text is
+   * ellipsized to fit.
+   * 
+   * @param maxChipWidth the max width or {@link Integer#MAX_VALUE} for none
+   */
+  void setMaxChipWidth(int maxChipWidth) {
+    if (maxChipWidth != this.maxChipWidth) {
+      this.maxChipWidth = maxChipWidth;
+      this.fitText();
+    }
+  }
+  
+  /**
+   * Returns the max width of the chip.
+   * 
+   * @return
+   */
+  int getMaxChipWidth() {
+    return this.maxChipWidth;
+  }
+  
+  /**
+   * Shows the whole text, or the text ellipsized through
+   * {@link ChipTextEllipsizer} if the chip would be wider than its max width.
+   * The text is only set if it differs from the one shown.
+   */
+  private void fitText() {
+    CharSequence text = this.fullText;
+    if (this.maxChipWidth != Integer.MAX_VALUE) {
+      int maxTextWidth = this.maxChipWidth - this.getChromeWidth();
+      text = ChipTextEllipsizer.getInstance().ellipsize(text, this.chipText.getPaint(), Math.max(0, maxTextWidth));
+    }
+    if (!TextUtils.equals(text, this.chipText.getText())) {
+      this.chipText.setText(text);
+    }
+  }
+  
+  /**
+   * Returns the width taken by the chip except its text: the icon, paddings
+   * and margins.
+   * 
+   * @return
+   */
+  private int getChromeWidth() {
+    MarginLayoutParams layoutLp = (MarginLayoutParams) this.chipLayout.getLayoutParams();
+    MarginLayoutParams iconLp = (MarginLayoutParams) this.chipIcon.getLayoutParams();
+    MarginLayoutParams textLp = (MarginLayoutParams) this.chipText.getLayoutParams();
+    return this.getPaddingLeft() + this.getPaddingRight()
+        + layoutLp.leftMargin + layoutLp.rightMargin
+        + this.chipLayout.getPaddingLeft() + this.chipLayout.getPaddingRight()
+        + iconLp.width + iconLp.leftMargin + iconLp.rightMargin
+        + textLp.leftMargin + textLp.rightMargin
+        + this.chipText.getCompoundPaddingLeft() + this.chipText.getCompoundPaddingRight();
+  }
+  
+  /**
+   * Returns the text currently shown on the chip.
+   * @return
+   */
+  CharSequence getChipText() {
+    return this.chipText.getText();
+  }
+
+  /**
+   * Returns whether the text shown is ellipsized to fit the max width.
+   * @return
+   */
+  boolean isTextEllipsized() {
+    return !TextUtils.equals(this.fullText, this.chipText.getText());
+  }
+  
+  /**
+   * Returns the icon Bitmap currently held by the chip.
+   * @return
+   */
+  Bitmap getChipBitmap() {
+    return this.chipIcon.getBitmap();
+  }
+  
+  /**
+   * Releases the icon bitmap, e.g. while the chip is hidden or off-screen
+   * under memory pressure. The chip keeps its size, the icon is decoded again
+   * by {@link #restoreIcon()}.
+   * 
+   * @return whether a bitmap is released
+   */
+  boolean releaseIcon() {
+    if (this.iconReleased || null == this.chipIcon.getDrawable()) {
+      return false;
+    }
+    this.chipIcon.swapBitmap(null);
+    this.iconReleased = true;
+    return true;
+  }
+  
+  /**
+   * Shows the icon released by {@link #releaseIcon()} again, through
+   * {@link ChipAvatarCache} so an avatar still in cache is not decoded again.
+   */
+  void restoreIcon() {
+    if (!this.iconReleased) {
+      return;
+    }
+    this.iconReleased = false;
+    Bitmap avatar = ChipAvatarCache.getInstance().get(getContext(), this.chipIconResId);
+    if (null != avatar) {
+      this.chipIcon.swapBitmap(avatar);
+    }
+    else if (0 != this.chipIconResId) {
+      this.chipIcon.setImageResource(this.chipIconResId);
+    }
+  }
+  
+  /**
+   * Returns whether the icon bitmap is released.
+   * @return
+   */
+  boolean isIconReleased() {
+    return this.iconReleased;
+  }
+  
+  /**
+   * Returns the res id of the icon, shown or released.
+   * @return
+   */
+  int getChipIconResId() {
+    return this.chipIconResId;
   }
   
   @Override
   public void setBackgroundResource(int resid) {
     this.chipLayout.setBackgroundResource(resid);
   }
+  
+  /**
+   * Also tells the {@link ChipsLayout} holding the chip, so that it only
+   * measures its chips again when one of them is changed.
+   */
+  @Override
+  public void requestLayout() {
+    super.requestLayout();
+    if (this.getParent() instanceof ChipsLayout) {
+      ((ChipsLayout<?>) this.getParent()).onChipLayoutRequested();
+    }
+  }
 
   /**
    * Sets the {@link IChipListener} for handling delete event.
@@ -221,4 +434,37 @@ public class Chip<E extends IChipModel> extends LinearLayout {
     this.mListener = mListener;
   }
   
+  /**
+   * Sets whether the chip is display-only: it cannot be selected or deleted.
+   * @param readOnly
+   */
+  void setReadOnly(boolean readOnly) {
+    this.setClickable(!readOnly);
+    this.chipIcon.setClickable(!readOnly);
+  }
+  
+  /**
+   * Dims the chip, e.g. when it does not match a search. The inner layout is
+   * dimmed so that it does not interfere with the chip animations.
+   * @param dimmed
+   */
+  void setDimmed(boolean dimmed) {
+    this.chipLayout.setAlpha(dimmed ? DIMMED_ALPHA : 1);
+  }
+  
+  /**
+   * Unbinds the chip so that it can be put into a {@link ChipPool}.
+   */
+  void reset() {
+    if (this.mStatus != ChipStatus.NORMAL) {
+      this.mStatus = ChipStatus.NORMAL;
+      this.showStatus();
+    }
+    this.mListener = null;
+    this.chipModel = null;
+    this.setVisibility(View.VISIBLE);
+    this.setDimmed(false);
+    ChipsAnimator.resetView(this);
+  }
+  
 }
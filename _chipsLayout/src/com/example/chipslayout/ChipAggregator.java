@@ -0,0 +1,913 @@
+package com.example.chipslayout;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Groups the chips of a {@link ChipStore}, for chip sets too large to be
+ * shown one chip per model: a summary chip is shown for each group (e.g.
+ * "example.com (240)") instead of its members. The groups are given by an
+ * {@link IChipGrouper}, the chips having no group are shown on their own. A
+ * group can be expanded on demand, its members are then shown after its
+ * chip.
+ *
+ * The group chips are published to {@link #getGroupStore()}, to be shown by
+ * a {@link ChipsLayout} through {@link ChipsLayout#setChipStore(ChipStore)},
+ * so only the group chips get a view. The grouping runs on the background
+ * thread from the change log of the source store: after chips are added or
+ * removed, only their groups are updated and published again.
+ *
+ * The group store writes through to the source store: adding chips to the
+ * layout adds them to the source store, deleting a chip deletes it from the
+ * source store and deleting a group chip deletes all of its members at once.
+ * Adding a group chip back, e.g. by an undo, adds back the members deleted
+ * with it. The writes never wait for the grouping nor group anything: the
+ * chips deleted, the chips added on their own and the group chips added back
+ * are put in the group store at once, so the layout applies them (and records
+ * its undo step) when the write returns; the counts of the groups changed are
+ * published by the background grouping. The keys of the group chips start
+ * with {@link #GROUP_KEY_PREFIX}, the chip keys are expected not to.
+ *
+ * The grouping state is guarded by the aggregator and only changed on the
+ * background thread. The writes only read the members of the group chips
+ * published, see {@link #publishedMembers}.
+ */
+public class ChipAggregator<E extends IChipModel> {
+
+  /**
+   * The prefix of the keys of the group chips.
+   */
+  public static final String GROUP_KEY_PREFIX = "group:";
+
+  /**
+   * The store of the chips grouped.
+   */
+  private final ChipStore<E> source;
+
+  /**
+   * Gives the groups of the chips.
+   */
+  private final IChipGrouper<E> grouper;
+
+  /**
+   * The group chips, the chips shown on their own and the members of the
+   * expanded groups.
+   */
+  private final GroupStore groupStore = new GroupStore();
+
+  /**
+   * Whether grouping the changes of the source store is posted already.
+   */
+  private final AtomicBoolean regroupPosted = new AtomicBoolean();
+
+  /**
+   * Groups the changes of the source store, on the background thread.
+   */
+  private final Runnable regrouper = new Runnable() {
+    @Override
+    public void run() {
+      regroup();
+    }
+  };
+
+  /**
+   * Listens to the source store.
+   */
+  private final ChipStore.OnChangeListener sourceListener = new ChipStore.OnChangeListener() {
+    @Override
+    public void onStoreChanged(ChipStore<?> store) {
+      postRegroup();
+    }
+  };
+
+  //
+  // The state below is guarded by the aggregator.
+
+  /**
+   * The version of the source store grouped, -1 if none.
+   */
+  private int groupedVersion = -1;
+
+  /**
+   * The groups, by group key.
+   */
+  private final HashMap<String, Group<E>> groups = new HashMap<String, Group<E>>();
+
+  /**
+   * The group of each chip, by chip key. Null for the chips shown on their
+   * own.
+   */
+  private final HashMap<String, Group<E>> groupsByChipKey = new HashMap<String, Group<E>>();
+
+  /**
+   * The groups whose members are changed since their chip was published.
+   */
+  private final LinkedHashSet<Group<E>> changedGroups = new LinkedHashSet<Group<E>>();
+
+  /**
+   * The keys of the chips to be deleted from the group store, as one change.
+   */
+  private final ArrayList<String> pendingDeletes = new ArrayList<String>();
+
+  /**
+   * The members of the group chips published, by group chip key. Replaced as
+   * a whole before the group chips are published, so that the writes to the
+   * group store read it on any thread without waiting for the grouping.
+   */
+  private volatile Map<String, List<E>> publishedMembers = Collections.emptyMap();
+
+  /**
+   * The members deleted with a group chip, by group chip key, until the group
+   * chip is added back. Changed by the writes to the group store.
+   */
+  private final ConcurrentHashMap<String, List<E>> deletedMembers = new ConcurrentHashMap<String, List<E>>();
+
+  /**
+   * Constructor.
+   *
+   * @param source
+   * @param grouper
+   */
+  public ChipAggregator(ChipStore<E> source, IChipGrouper<E> grouper) {
+    this.source = source;
+    this.grouper = grouper;
+  }
+
+  /**
+   * Returns the store of the group chips, to be shown by a
+   * {@link ChipsLayout}.
+   *
+   * @return
+   */
+  public ChipStore<IChipModel> getGroupStore() {
+    return this.groupStore;
+  }
+
+  /**
+   * Starts grouping the chips of the source store, and its changes as they
+   * come.
+   */
+  public void start() {
+    this.source.addOnChangeListener(this.sourceListener);
+    this.postRegroup();
+  }
+
+  /**
+   * Stops following the changes of the source store.
+   */
+  public void stop() {
+    this.source.removeOnChangeListener(this.sourceListener);
+  }
+
+  /**
+   * Shows the members of a group after its chip.
+   *
+   * @param groupChipKey the key of the group chip
+   */
+  public void expand(String groupChipKey) {
+    this.setExpanded(groupChipKey, true);
+  }
+
+  /**
+   * Hides the members of a group, only its chip is shown.
+   *
+   * @param groupChipKey the key of the group chip
+   */
+  public void collapse(String groupChipKey) {
+    this.setExpanded(groupChipKey, false);
+  }
+
+  /**
+   * Returns whether the chip is a group chip.
+   *
+   * @param chipModel
+   * @return
+   */
+  public static boolean isGroup(IChipModel chipModel) {
+    return chipModel instanceof ChipGroup;
+  }
+
+  /**
+   * Groups the changes of the source store soon, on the background thread.
+   */
+  private void postRegroup() {
+    if (this.regroupPosted.compareAndSet(false, true)) {
+      ChipsBackground.execute(this.regrouper);
+    }
+  }
+
+  /**
+   * Groups the changes of the source store since the version grouped, or
+   * all of its chips if they are not all in its log anymore.
+   */
+  private synchronized void regroup() {
+    this.regroupPosted.set(false);
+    ChipStore.Snapshot<E> snapshot = this.source.snapshot();
+    if (snapshot.getVersion() == this.groupedVersion) {
+      return;
+    }
+    List<ChipStore.Change<E>> changes = this.groupedVersion < 0
+        ? null : snapshot.getChangesSince(this.groupedVersion);
+    this.groupedVersion = snapshot.getVersion();
+    if (null == changes) {
+      this.regroupAll(snapshot);
+      return;
+    }
+    for (ChipStore.Change<E> change : changes) {
+      switch (change.getType()) {
+        case ADD:
+          for (E chipModel : change.getChipModels()) {
+            this.addMember(chipModel);
+          }
+          break;
+        case REMOVE:
+          for (E chipModel : change.getChipModels()) {
+            this.removeMember(chipModel.getChipKey());
+          }
+          break;
+        case UPDATE:
+          this.updateMember(change.getChipModels().get(0));
+          break;
+        default:
+          //
+          // The groups keep their order.
+          break;
+      }
+    }
+    this.publishChangedGroups();
+  }
+
+  /**
+   * Groups all of the chips again, the expanded groups stay expanded.
+   *
+   * @param chipModels
+   */
+  @SuppressWarnings("unchecked")
+  private void regroupAll(List<E> chipModels) {
+    HashSet<String> expandedKeys = new HashSet<String>();
+    for (Group<E> group : this.groups.values()) {
+      if (group.expanded) {
+        expandedKeys.add(group.key);
+      }
+    }
+    this.groups.clear();
+    this.groupsByChipKey.clear();
+    this.changedGroups.clear();
+    this.pendingDeletes.clear();
+
+    //
+    // The groups and the chips shown on their own, in order of appearance.
+    ArrayList<Object> entries = new ArrayList<Object>();
+    for (E chipModel : chipModels) {
+      String groupKey = this.grouper.getGroupKey(chipModel);
+      if (null == groupKey) {
+        this.groupsByChipKey.put(chipModel.getChipKey(), null);
+        entries.add(chipModel);
+        continue;
+      }
+      Group<E> group = this.groups.get(groupKey);
+      if (null == group) {
+        group = new Group<E>(groupKey);
+        group.expanded = expandedKeys.contains(groupKey);
+        this.groups.put(groupKey, group);
+        entries.add(group);
+      }
+      group.members.put(chipModel.getChipKey(), chipModel);
+      this.groupsByChipKey.put(chipModel.getChipKey(), group);
+    }
+
+    ArrayList<IChipModel> items = new ArrayList<IChipModel>(entries.size());
+    HashMap<String, List<E>> members = new HashMap<String, List<E>>();
+    for (Object entry : entries) {
+      if (entry instanceof Group) {
+        Group<E> group = (Group<E>) entry;
+        group.chip = group.newChip();
+        members.put(group.chip.getChipKey(), group.copyMembers());
+        items.add(group.chip);
+        if (group.expanded) {
+          items.addAll(group.members.values());
+        }
+      }
+      else {
+        items.add((IChipModel) entry);
+      }
+    }
+    this.publishedMembers = members;
+    this.groupStore.reset(items);
+  }
+
+  /**
+   * Adds a chip to its group, or shows it on its own.
+   *
+   * @param chipModel
+   */
+  private void addMember(E chipModel) {
+    String key = chipModel.getChipKey();
+    String groupKey = this.grouper.getGroupKey(chipModel);
+    if (null == groupKey) {
+      this.groupsByChipKey.put(key, null);
+      this.flushDeletes();
+      //
+      // Unless the write adding it has put it already.
+      if (this.groupStore.snapshot().indexOfKey(key) < 0) {
+        this.groupStore.insert(Integer.MAX_VALUE, Collections.singletonList(chipModel));
+      }
+      return;
+    }
+    Group<E> group = this.groups.get(groupKey);
+    if (null == group) {
+      group = new Group<E>(groupKey);
+      this.groups.put(groupKey, group);
+    }
+    group.members.put(key, chipModel);
+    this.groupsByChipKey.put(key, group);
+    this.changedGroups.add(group);
+    if (group.expanded && null != group.chip) {
+      //
+      // After the other members.
+      this.flushDeletes();
+      int index = this.groupStore.snapshot().indexOfKey(group.chip.getChipKey());
+      this.groupStore.insert(index + group.members.size(), Collections.singletonList(chipModel));
+    }
+  }
+
+  /**
+   * Removes a chip from its group, or the chip shown on its own.
+   *
+   * @param key
+   */
+  private void removeMember(String key) {
+    if (!this.groupsByChipKey.containsKey(key)) {
+      return;
+    }
+    Group<E> group = this.groupsByChipKey.remove(key);
+    if (null == group) {
+      this.pendingDeletes.add(key);
+      return;
+    }
+    group.members.remove(key);
+    this.changedGroups.add(group);
+    if (group.expanded) {
+      this.pendingDeletes.add(key);
+    }
+  }
+
+  /**
+   * Updates a chip, which may move to another group.
+   *
+   * @param chipModel
+   */
+  private void updateMember(E chipModel) {
+    String key = chipModel.getChipKey();
+    if (!this.groupsByChipKey.containsKey(key)) {
+      this.addMember(chipModel);
+      return;
+    }
+    Group<E> group = this.groupsByChipKey.get(key);
+    String groupKey = this.grouper.getGroupKey(chipModel);
+    if (null == group ? null != groupKey : !group.key.equals(groupKey)) {
+      this.removeMember(key);
+      this.addMember(chipModel);
+      return;
+    }
+    if (null != group) {
+      group.members.put(key, chipModel);
+      this.changedGroups.add(group);
+      if (!group.expanded) {
+        return;
+      }
+    }
+    this.flushDeletes();
+    this.groupStore.replace(chipModel);
+  }
+
+  /**
+   * Publishes the chips of the changed groups: added, updated if their
+   * count or icon is changed, removed if they have no member left. The chips
+   * deleted meanwhile are deleted at once with the empty groups.
+   */
+  private void publishChangedGroups() {
+    if (this.changedGroups.isEmpty()) {
+      this.flushDeletes();
+      return;
+    }
+    HashMap<String, List<E>> members = new HashMap<String, List<E>>(this.publishedMembers);
+    for (Group<E> group : this.changedGroups) {
+      String chipKey = GROUP_KEY_PREFIX + group.key;
+      if (group.members.isEmpty()) {
+        this.groups.remove(group.key);
+        members.remove(chipKey);
+        if (null != group.chip) {
+          this.pendingDeletes.add(chipKey);
+        }
+      }
+      else {
+        members.put(chipKey, group.copyMembers());
+      }
+    }
+    this.publishedMembers = members;
+    this.flushDeletes();
+    for (Group<E> group : this.changedGroups) {
+      if (group.members.isEmpty()) {
+        continue;
+      }
+      ChipGroup chip = group.newChip();
+      //
+      // A group chip added back by a write is in the store already.
+      if (null == group.chip && this.groupStore.snapshot().indexOfKey(chip.getChipKey()) < 0) {
+        this.groupStore.insert(Integer.MAX_VALUE, Collections.singletonList(chip));
+      }
+      else if (null == group.chip || !chip.isSameAs(group.chip)) {
+        this.groupStore.replace(chip);
+      }
+      group.chip = chip;
+    }
+    this.changedGroups.clear();
+  }
+
+  /**
+   * Deletes the chips of {@link #pendingDeletes} from the group store, as
+   * one change. Called before any other change, so that the positions
+   * computed from the group store are right.
+   */
+  private void flushDeletes() {
+    if (!this.pendingDeletes.isEmpty()) {
+      this.groupStore.deleteAll(this.pendingDeletes);
+      this.pendingDeletes.clear();
+    }
+  }
+
+  /**
+   * Expands or collapses a group, on the background thread.
+   *
+   * @param groupChipKey
+   * @param expanded
+   */
+  private void setExpanded(final String groupChipKey, final boolean expanded) {
+    ChipsBackground.execute(new Runnable() {
+      @Override
+      public void run() {
+        applyExpanded(groupChipKey, expanded);
+      }
+    });
+  }
+
+  /**
+   * Shows or hides the members of a group.
+   *
+   * @param groupChipKey
+   * @param expanded
+   */
+  private synchronized void applyExpanded(String groupChipKey, boolean expanded) {
+    Group<E> group = this.findGroup(groupChipKey);
+    if (null == group || null == group.chip || group.expanded == expanded) {
+      return;
+    }
+    group.expanded = expanded;
+    ChipStore.Snapshot<IChipModel> snapshot = this.groupStore.snapshot();
+    if (expanded) {
+      int index = snapshot.indexOfKey(group.chip.getChipKey());
+      this.groupStore.insert(index + 1, new ArrayList<IChipModel>(group.members.values()));
+    }
+    else {
+      //
+      // A single change however many members are hidden.
+      this.groupStore.deleteAll(group.members.keySet());
+    }
+    group.chip = group.newChip();
+    this.groupStore.replace(group.chip);
+  }
+
+  /**
+   * Deletes chips of the group store from the source store, all the members
+   * of a group chip, in one write. The chips are deleted from the group store
+   * at once, with the members shown of a group chip deleted; the background
+   * grouping then publishes the groups of the members deleted.
+   *
+   * @param keys
+   * @return the number of chips of the group store deleted
+   */
+  private int deleteFromSource(Collection<String> keys) {
+    ChipStore.Snapshot<IChipModel> snapshot = this.groupStore.snapshot();
+    Map<String, List<E>> members = this.publishedMembers;
+    ArrayList<String> shownKeys = new ArrayList<String>();
+    ArrayList<String> sourceKeys = new ArrayList<String>();
+    int deleted = 0;
+    for (String key : keys) {
+      if (snapshot.indexOfKey(key) < 0) {
+        continue;
+      }
+      ++deleted;
+      shownKeys.add(key);
+      List<E> groupMembers = members.get(key);
+      if (null == groupMembers) {
+        sourceKeys.add(key);
+        continue;
+      }
+      this.deletedMembers.put(key, groupMembers);
+      for (E member : groupMembers) {
+        sourceKeys.add(member.getChipKey());
+        shownKeys.add(member.getChipKey());
+      }
+    }
+    if (deleted > 0) {
+      this.groupStore.deleteAll(shownKeys);
+      this.source.removeAll(sourceKeys);
+    }
+    return deleted;
+  }
+
+  /**
+   * Adds chips of the group store to the source store, in one write. The
+   * chips shown on their own, the group chips added back and a chip for each
+   * new group are put in the group store at once, at the given position; the
+   * counts of the groups joined are published by the background grouping.
+   *
+   * @param index the position in the group store
+   * @param chipModels
+   */
+  @SuppressWarnings("unchecked")
+  private void addToSource(int index, Collection<? extends IChipModel> chipModels) {
+    ChipStore.Snapshot<IChipModel> before = this.groupStore.snapshot();
+    Map<String, List<E>> members = this.publishedMembers;
+    List<E> added = this.toSourceModels(members, chipModels, true);
+    if (added.isEmpty()) {
+      return;
+    }
+    HashSet<String> addedKeys = new HashSet<String>();
+    for (E chipModel : added) {
+      addedKeys.add(chipModel.getChipKey());
+    }
+    //
+    // The chips shown, with a chip for each new group, in order.
+    LinkedHashMap<String, IChipModel> shown = new LinkedHashMap<String, IChipModel>();
+    HashMap<String, Integer> newGroupCounts = new HashMap<String, Integer>();
+    for (IChipModel chipModel : chipModels) {
+      String key = chipModel.getChipKey();
+      if (before.indexOfKey(key) >= 0) {
+        continue;
+      }
+      if (isGroup(chipModel)) {
+        shown.put(key, chipModel);
+        continue;
+      }
+      if (!addedKeys.contains(key)) {
+        continue;
+      }
+      String groupKey = this.grouper.getGroupKey((E) chipModel);
+      if (null == groupKey) {
+        shown.put(key, chipModel);
+        continue;
+      }
+      String groupChipKey = GROUP_KEY_PREFIX + groupKey;
+      if (before.indexOfKey(groupChipKey) < 0 && !members.containsKey(groupChipKey)) {
+        Integer count = newGroupCounts.get(groupKey);
+        int memberCount = null == count ? 1 : count + 1;
+        newGroupCounts.put(groupKey, memberCount);
+        //
+        // Counted again by the grouping, which updates it in place.
+        IChipModel first = shown.get(groupChipKey);
+        int icon = null != first ? first.getChipIcon() : chipModel.getChipIcon();
+        shown.put(groupChipKey, new ChipGroup(groupKey, icon, memberCount, false));
+      }
+    }
+    //
+    // The group store first: the grouping of the addition finds them there.
+    this.groupStore.insert(index, shown.values());
+    this.source.addAll(this.toSourceIndex(members, before, index), added);
+  }
+
+  /**
+   * Replaces the chips of the source store by the chips of the group store,
+   * in one write. The group store is published again by the background
+   * grouping.
+   *
+   * @param chipModels
+   */
+  private void setToSource(Collection<? extends IChipModel> chipModels) {
+    this.source.setAll(this.toSourceModels(this.publishedMembers, chipModels, false));
+  }
+
+  /**
+   * Moves the source chips of the chip of the group store at {@code from}
+   * where the chip at {@code to} is in the source store: before it when
+   * moved up, after it when moved down.
+   *
+   * @param snapshot the group store
+   * @param from
+   * @param to
+   */
+  private void moveInSource(ChipStore.Snapshot<IChipModel> snapshot, int from, int to) {
+    if (from == to) {
+      return;
+    }
+    Map<String, List<E>> members = this.publishedMembers;
+    List<String> movedKeys = this.toSourceKeys(members, snapshot.get(from).getChipKey());
+    List<String> targetKeys = this.toSourceKeys(members, snapshot.get(to).getChipKey());
+    ChipStore.Snapshot<E> sourceSnapshot = this.source.snapshot();
+    int target = sourceSnapshot.indexOfKey(from < to ? targetKeys.get(targetKeys.size() - 1) : targetKeys.get(0));
+    if (target < 0) {
+      return;
+    }
+    //
+    // Moved down, each member goes last, after the ones moved before it.
+    for (int i = 0; i < movedKeys.size(); i++) {
+      this.source.move(movedKeys.get(i), from < to ? target : target + i);
+    }
+  }
+
+  /**
+   * Returns the keys of the source chips of a chip of the group store: the
+   * members of a group chip, the key itself otherwise.
+   *
+   * @param members the members of the group chips published
+   * @param key
+   * @return
+   */
+  private List<String> toSourceKeys(Map<String, List<E>> members, String key) {
+    List<E> groupMembers = members.get(key);
+    if (null == groupMembers || groupMembers.isEmpty()) {
+      return Collections.singletonList(key);
+    }
+    ArrayList<String> keys = new ArrayList<String>(groupMembers.size());
+    for (E member : groupMembers) {
+      keys.add(member.getChipKey());
+    }
+    return keys;
+  }
+
+  /**
+   * Updates a chip of the source store.
+   *
+   * @param chipModel
+   * @return false if the source store has no chip of its key
+   */
+  @SuppressWarnings("unchecked")
+  private boolean updateInSource(IChipModel chipModel) {
+    return this.source.update((E) chipModel);
+  }
+
+  /**
+   * Returns the source chips of chips of the group store: the members of
+   * the group chips, the other chips as is, each chip once.
+   *
+   * @param members the members of the group chips published
+   * @param chipModels
+   * @param skipSourceChips whether to skip the chips in the source store
+   * @return
+   * @throws IllegalArgumentException if a group chip is not one of this
+   *           aggregator
+   */
+  @SuppressWarnings("unchecked")
+  private List<E> toSourceModels(Map<String, List<E>> members, Collection<? extends IChipModel> chipModels,
+      boolean skipSourceChips) {
+    HashSet<String> sourceKeys = new HashSet<String>();
+    if (skipSourceChips) {
+      for (E chipModel : this.source.snapshot()) {
+        sourceKeys.add(chipModel.getChipKey());
+      }
+    }
+    LinkedHashMap<String, E> models = new LinkedHashMap<String, E>();
+    for (IChipModel chipModel : chipModels) {
+      if (!isGroup(chipModel)) {
+        if (!sourceKeys.contains(chipModel.getChipKey())) {
+          models.put(chipModel.getChipKey(), (E) chipModel);
+        }
+        continue;
+      }
+      String key = chipModel.getChipKey();
+      List<E> groupMembers = this.deletedMembers.remove(key);
+      if (null == groupMembers) {
+        groupMembers = members.get(key);
+      }
+      if (null == groupMembers) {
+        throw new IllegalArgumentException("Not a group chip of this aggregator: " + key);
+      }
+      for (E member : groupMembers) {
+        if (!sourceKeys.contains(member.getChipKey())) {
+          models.put(member.getChipKey(), member);
+        }
+      }
+    }
+    return new ArrayList<E>(models.values());
+  }
+
+  /**
+   * Returns the position in the source store of a position in the group
+   * store: the position of the chip shown there, or of the first member of
+   * the group chip shown there.
+   *
+   * @param members the members of the group chips published
+   * @param snapshot the group store
+   * @param index
+   * @return
+   */
+  private int toSourceIndex(Map<String, List<E>> members, ChipStore.Snapshot<IChipModel> snapshot, int index) {
+    if (index >= snapshot.size()) {
+      return Integer.MAX_VALUE;
+    }
+    String key = snapshot.get(Math.max(0, index)).getChipKey();
+    List<E> groupMembers = members.get(key);
+    if (null != groupMembers && !groupMembers.isEmpty()) {
+      key = groupMembers.get(0).getChipKey();
+    }
+    int sourceIndex = this.source.snapshot().indexOfKey(key);
+    return sourceIndex < 0 ? Integer.MAX_VALUE : sourceIndex;
+  }
+
+  /**
+   * Returns the group of a group chip key.
+   *
+   * @param groupChipKey
+   * @return the group or null
+   */
+  private Group<E> findGroup(String groupChipKey) {
+    if (!groupChipKey.startsWith(GROUP_KEY_PREFIX)) {
+      return null;
+    }
+    return this.groups.get(groupChipKey.substring(GROUP_KEY_PREFIX.length()));
+  }
+
+  /**
+   * A group chip: the key of the group and its number of members.
+   */
+  public static final class ChipGroup implements IChipModel {
+
+    private final String groupKey;
+    private final int chipIcon;
+    private final int memberCount;
+    private final boolean expanded;
+
+    ChipGroup(String groupKey, int chipIcon, int memberCount, boolean expanded) {
+      this.groupKey = groupKey;
+      this.chipIcon = chipIcon;
+      this.memberCount = memberCount;
+      this.expanded = expanded;
+    }
+
+    @Override
+    public String getChipKey() {
+      return GROUP_KEY_PREFIX + this.groupKey;
+    }
+
+    /**
+     * Returns the icon of the first member.
+     */
+    @Override
+    public int getChipIcon() {
+      return this.chipIcon;
+    }
+
+    @Override
+    public CharSequence getChipText() {
+      return this.groupKey + " (" + this.memberCount + ")";
+    }
+
+    public String getGroupKey() {
+      return this.groupKey;
+    }
+
+    public int getMemberCount() {
+      return this.memberCount;
+    }
+
+    public boolean isExpanded() {
+      return this.expanded;
+    }
+
+    boolean isSameAs(ChipGroup other) {
+      return this.memberCount == other.memberCount && this.chipIcon == other.chipIcon
+          && this.expanded == other.expanded;
+    }
+  }
+
+  /**
+   * A group and its members, in order of addition.
+   */
+  private static final class Group<E extends IChipModel> {
+
+    private final String key;
+    private final LinkedHashMap<String, E> members = new LinkedHashMap<String, E>();
+    private boolean expanded;
+
+    /**
+     * The chip published, null if none yet.
+     */
+    private ChipGroup chip;
+
+    Group(String key) {
+      this.key = key;
+    }
+
+    ChipGroup newChip() {
+      int icon = this.members.values().iterator().next().getChipIcon();
+      return new ChipGroup(this.key, icon, this.members.size(), this.expanded);
+    }
+
+    /**
+     * Returns the members, to be read on any thread.
+     */
+    List<E> copyMembers() {
+      return Collections.unmodifiableList(new ArrayList<E>(this.members.values()));
+    }
+  }
+
+  /**
+   * The store of the group chips. The chips added, removed, set, moved or
+   * updated are written to the source store, see
+   * {@link #deleteFromSource(Collection)} and
+   * {@link #addToSource(int, Collection)}. The grouping changes it through
+   * insert, deleteAll, replace and reset only.
+   */
+  private final class GroupStore extends ChipStore<IChipModel> {
+
+    @Override
+    public boolean remove(String key) {
+      return deleteFromSource(Collections.singleton(key)) > 0;
+    }
+
+    @Override
+    public int removeAll(Collection<String> keys) {
+      return deleteFromSource(keys);
+    }
+
+    @Override
+    public void addAll(int index, Collection<? extends IChipModel> chipModels) {
+      addToSource(index, chipModels);
+    }
+
+    @Override
+    public void setAll(Collection<? extends IChipModel> chipModels) {
+      setToSource(chipModels);
+    }
+
+    /**
+     * Adds the chip to the source store, shown where it belongs in the group
+     * store.
+     */
+    @Override
+    public int addSorted(IChipModel chipModel, Comparator<? super IChipModel> comparator) {
+      int index = this.snapshot().sortedIndexOf(chipModel, comparator);
+      addToSource(index, Collections.singletonList(chipModel));
+      return index;
+    }
+
+    /**
+     * Moves the chip, or all the members of a group chip, in the source store
+     * too, so that the order survives a grouping of all the chips.
+     */
+    @Override
+    public boolean move(String key, int toIndex) {
+      ChipStore.Snapshot<IChipModel> snapshot = this.snapshot();
+      int from = snapshot.indexOfKey(key);
+      if (from < 0) {
+        return false;
+      }
+      moveInSource(snapshot, from, Math.max(0, Math.min(toIndex, snapshot.size() - 1)));
+      return super.move(key, toIndex);
+    }
+
+    /**
+     * Updates the chip in the source store, and in the group store at once
+     * if it is shown. A group chip cannot be updated, it is given by its
+     * members.
+     */
+    @Override
+    public boolean update(IChipModel chipModel) {
+      if (isGroup(chipModel)) {
+        return false;
+      }
+      if (!updateInSource(chipModel)) {
+        return false;
+      }
+      super.update(chipModel);
+      return true;
+    }
+
+    void insert(int index, Collection<? extends IChipModel> chipModels) {
+      super.addAll(index, chipModels);
+    }
+
+    int deleteAll(Collection<String> keys) {
+      return super.removeAll(keys);
+    }
+
+    void replace(IChipModel chipModel) {
+      super.update(chipModel);
+    }
+
+    void reset(Collection<? extends IChipModel> chipModels) {
+      super.setAll(chipModels);
+    }
+  }
+}
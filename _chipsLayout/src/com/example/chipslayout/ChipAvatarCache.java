@@ -0,0 +1,218 @@
+package com.example.chipslayout;
+
+import java.util.HashSet;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+/**
+ * Process wide cache of the decoded chip avatars, keyed by the drawable
+ * resource id returned from {@link IChipModel#getChipIcon()}.
+ *
+ * All of the chips showing the same icon share one Bitmap, so the icon is
+ * decoded only once no matter how many chips are created.
+ *
+ * This class is thread safe, avatars can be decoded from a background thread.
+ */
+public class ChipAvatarCache {
+
+  /**
+   * The default max size (in bytes) of the decoded avatars kept in cache.
+   */
+  private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The shared instance.
+   */
+  private static ChipAvatarCache sInstance;
+
+  /**
+   * Decoded avatars, keyed by drawable res id.
+   */
+  private final LruCache<Integer, Bitmap> bitmaps;
+
+  /**
+   * The res ids of the avatars being decoded, also the lock waited on until
+   * one is decoded.
+   */
+  private final HashSet<Integer> decoding = new HashSet<Integer>();
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytes
+   */
+  public ChipAvatarCache(int maxBytes) {
+    this.bitmaps = new LruCache<Integer, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(Integer key, Bitmap value) {
+        return value.getByteCount();
+      }
+    };
+  }
+
+  /**
+   * Returns the shared cache instance.
+   *
+   * @return
+   */
+  public static synchronized ChipAvatarCache getInstance() {
+    if (null == sInstance) {
+      sInstance = new ChipAvatarCache(DEFAULT_MAX_BYTES);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Returns the decoded avatar of the given res id, decodes it if it is not
+   * in cache yet.
+   *
+   * @param context
+   * @param resId
+   * @return the avatar or null if the res id cannot be decoded
+   */
+  public Bitmap get(Context context, int resId) {
+    if (0 == resId) {
+      return null;
+    }
+    Bitmap bitmap = this.bitmaps.get(resId);
+    if (null != bitmap) {
+      return bitmap;
+    }
+    //
+    // Only one thread decodes a given avatar, e.g. the UI thread asking for
+    // an avatar being preloaded waits for it instead of decoding it again.
+    synchronized (this.decoding) {
+      while (!this.decoding.add(resId)) {
+        try {
+          this.decoding.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return decode(context.getResources(), resId);
+        }
+      }
+    }
+    try {
+      bitmap = this.bitmaps.get(resId);
+      if (null == bitmap) {
+        bitmap = decode(context.getResources(), resId);
+        if (null != bitmap) {
+          this.bitmaps.put(resId, bitmap);
+        }
+      }
+      return bitmap;
+    }
+    finally {
+      synchronized (this.decoding) {
+        this.decoding.remove(resId);
+        this.decoding.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the avatar of the given res id only if it is decoded already.
+   *
+   * @param resId
+   * @return
+   */
+  public Bitmap peek(int resId) {
+    return this.bitmaps.get(resId);
+  }
+
+  /**
+   * Returns the size (in bytes) of the avatars in cache.
+   *
+   * @return
+   */
+  public int size() {
+    return this.bitmaps.size();
+  }
+
+  /**
+   * Drops the least recently used avatars until at most {@code maxBytes} are
+   * left. The chips showing an avatar dropped keep it until they release
+   * their icon.
+   *
+   * @param maxBytes
+   */
+  public void trimToSize(int maxBytes) {
+    this.bitmaps.trimToSize(maxBytes);
+  }
+
+  /**
+   * Drops the avatar of the given res id, e.g. once no chip shows it. Like
+   * {@link #trimToSize(int)}, a chip still showing it keeps it.
+   *
+   * @param resId
+   */
+  public void remove(int resId) {
+    this.bitmaps.remove(resId);
+  }
+
+  /**
+   * Counts the avatars in cache into the given stats.
+   *
+   * @param stats
+   */
+  void addBitmapsTo(ChipMemoryStats stats) {
+    for (Bitmap bitmap : this.bitmaps.snapshot().values()) {
+      stats.addBitmap(bitmap);
+    }
+  }
+
+  /**
+   * Decodes all of the given avatars into cache.
+   * Safe to be called from a background thread.
+   *
+   * @param context
+   * @param resIds
+   */
+  public void preload(Context context, int... resIds) {
+    for (int resId : resIds) {
+      get(context, resId);
+    }
+  }
+
+  /**
+   * Decodes the res id into a Bitmap. Non-bitmap drawables (shapes, vectors,
+   * etc.) are rasterized at their intrinsic size.
+   *
+   * @param resources
+   * @param resId
+   * @return
+   */
+  @SuppressWarnings("deprecation")
+  private static Bitmap decode(Resources resources, int resId) {
+    try {
+      Bitmap bitmap = BitmapFactory.decodeResource(resources, resId);
+      if (null != bitmap) {
+        return bitmap;
+      }
+      Drawable drawable = resources.getDrawable(resId);
+      if (null == drawable) {
+        return null;
+      }
+      if (drawable instanceof BitmapDrawable) {
+        return ((BitmapDrawable) drawable).getBitmap();
+      }
+      int width = Math.max(1, drawable.getIntrinsicWidth());
+      int height = Math.max(1, drawable.getIntrinsicHeight());
+      bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+      Canvas canvas = new Canvas(bitmap);
+      drawable.setBounds(0, 0, width, height);
+      drawable.draw(canvas);
+      return bitmap;
+    }
+    catch (OutOfMemoryError e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.example.chipslayout;
+
+/**
+ * Declared memory budget of chips, checked against {@link ChipMemoryStats}.
+ *
+ * Asserted by the instrumentation tests filling a ChipsLayout with 1k and 10k
+ * chips (see {@code tests/}), so that a change making chips heavier is caught
+ * before it reaches low-end devices. The budgets are declared, not derived:
+ * lower them when chips get lighter, so that the tests keep guarding the
+ * gain.
+ */
+public class ChipMemoryBudget {
+
+  /**
+   * The default budget of the non-bitmap bytes per chip: the views, their
+   * paints and text layouts, Java and native heap together.
+   */
+  public static final long DEFAULT_OTHER_BYTES_PER_CHIP = 12 * 1024;
+
+  /**
+   * The default budget of the bitmap bytes per chip. Avatars are shared, so
+   * with many chips this should stay far below the size of one avatar.
+   */
+  public static final long DEFAULT_BITMAP_BYTES_PER_CHIP = 1024;
+
+  /**
+   * The budget of the non-bitmap bytes per chip.
+   */
+  private final long otherBytesPerChip;
+
+  /**
+   * The budget of the bitmap bytes per chip.
+   */
+  private final long bitmapBytesPerChip;
+
+  /**
+   * Creates a budget with the default values.
+   */
+  public ChipMemoryBudget() {
+    this(DEFAULT_OTHER_BYTES_PER_CHIP, DEFAULT_BITMAP_BYTES_PER_CHIP);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param otherBytesPerChip
+   * @param bitmapBytesPerChip
+   */
+  public ChipMemoryBudget(long otherBytesPerChip, long bitmapBytesPerChip) {
+    this.otherBytesPerChip = otherBytesPerChip;
+    this.bitmapBytesPerChip = bitmapBytesPerChip;
+  }
+
+  /**
+   * Returns the budget of the non-bitmap bytes per chip.
+   *
+   * @return
+   */
+  public long getOtherBytesPerChip() {
+    return this.otherBytesPerChip;
+  }
+
+  /**
+   * Returns the budget of the bitmap bytes per chip.
+   *
+   * @return
+   */
+  public long getBitmapBytesPerChip() {
+    return this.bitmapBytesPerChip;
+  }
+
+  /**
+   * Returns whether the stats are within budget.
+   *
+   * @param stats
+   * @return
+   */
+  public boolean isWithinBudget(ChipMemoryStats stats) {
+    return stats.getOtherBytesPerChip() <= this.otherBytesPerChip
+        && stats.getBitmapBytesPerChip() <= this.bitmapBytesPerChip;
+  }
+
+  /**
+   * Checks the stats against the budget.
+   *
+   * @param stats
+   * @throws IllegalStateException if the stats are over budget, or if
+   *           {@link ChipMemoryStats#calibrate(android.content.Context)} was
+   *           not called: only the bitmaps would be checked
+   */
+  public void check(ChipMemoryStats stats) {
+    if (!ChipMemoryStats.isCalibrated()) {
+      throw new IllegalStateException("ChipMemoryStats.calibrate() not called, only the bitmaps are counted");
+    }
+    if (!isWithinBudget(stats)) {
+      throw new IllegalStateException("Chips over memory budget (otherBytesPerChip <= "
+          + this.otherBytesPerChip + ", bitmapBytesPerChip <= "
+          + this.bitmapBytesPerChip + "): " + stats);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package com.example.chipslayout;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.view.View.MeasureSpec;
+
+/**
+ * Memory accounting of chips.
+ *
+ * The retained size of a chip is split into the bitmaps it holds and
+ * everything else (views, paints, shader, matrix, layout params and text).
+ * Bitmaps are counted with their exact byte counts, and bitmaps shared by
+ * several chips, e.g. through {@link ChipAvatarCache}, are counted only once.
+ *
+ * The heap cannot be walked from inside the app, so the non-bitmap size of a
+ * chip comes from a measurement made once per process by
+ * {@link #calibrate(Context)}: the growth of the heap (Java and native) over
+ * a batch of chips created, bound and measured, split into a size per chip
+ * and a size per char of text. Until then, only the bitmaps are counted.
+ */
+public class ChipMemoryStats {
+
+  /**
+   * The number of chips created to measure the size of one.
+   */
+  static final int CALIBRATION_CHIP_COUNT = 256;
+
+  /**
+   * The length of the texts of the chips created to measure the size per
+   * char.
+   */
+  static final int CALIBRATION_TEXT_LENGTH = 32;
+
+  /**
+   * The measured non-bitmap size of a chip without text, 0 until calibrated.
+   */
+  private static volatile long sChipBytes;
+
+  /**
+   * The measured size per char of the text of a chip.
+   */
+  private static volatile long sTextCharBytes;
+
+  /**
+   * The measured size of an entry of {@link ChipTextCache} or
+   * {@link ChipTextEllipsizer}.
+   */
+  private static volatile long sTextCacheEntryBytes;
+
+  /**
+   * Whether the sizes above are measured.
+   */
+  private static boolean sCalibrated;
+
+  /**
+   * The number of chips counted.
+   */
+  private int chipCount;
+
+  /**
+   * The size of the distinct bitmaps held by the chips counted.
+   */
+  private long bitmapBytes;
+
+  /**
+   * The size of everything else, estimated from the calibration.
+   */
+  private long otherBytes;
+
+  /**
+   * The bitmaps counted so far, so that shared ones are counted once.
+   */
+  private final IdentityHashMap<Bitmap, Boolean> countedBitmaps = new IdentityHashMap<Bitmap, Boolean>();
+
+  /**
+   * Counts the given chip in.
+   *
+   * @param chip
+   */
+  public void addChip(Chip<?> chip) {
+    ++this.chipCount;
+    this.otherBytes += estimateOtherBytes(chip.getChipText());
+    addBitmap(chip.getChipBitmap());
+  }
+
+  /**
+   * Counts a bitmap held by the layout itself (e.g. the hidden count badge).
+   *
+   * @param bitmap
+   */
+  public void addBitmap(Bitmap bitmap) {
+    if (null == bitmap || this.countedBitmaps.containsKey(bitmap)) {
+      return;
+    }
+    this.countedBitmaps.put(bitmap, Boolean.TRUE);
+    this.bitmapBytes += bitmap.getByteCount();
+  }
+
+  /**
+   * Counts other (non-bitmap) bytes in.
+   *
+   * @param bytes
+   */
+  public void addOtherBytes(long bytes) {
+    this.otherBytes += bytes;
+  }
+
+  /**
+   * Returns the non-bitmap size of one chip showing the given text, as
+   * measured by {@link #calibrate(Context)}.
+   *
+   * @param text
+   * @return the size, 0 if not calibrated
+   */
+  public static long estimateOtherBytes(CharSequence text) {
+    int textLength = null == text ? 0 : text.length();
+    return sChipBytes + textLength * sTextCharBytes;
+  }
+
+  /**
+   * Returns the size of an entry of the text caches, as measured by
+   * {@link #calibrate(Context)}.
+   *
+   * @return the size, 0 if not calibrated
+   */
+  static long estimateTextCacheEntryBytes() {
+    return sTextCacheEntryBytes;
+  }
+
+  /**
+   * Measures the sizes the non-bitmap part is estimated with, once per
+   * process. This creates, binds and measures a few hundred chips, so it
+   * takes a while: call it once before counting, e.g. at the start of an
+   * instrumentation run. Must be called from the UI thread.
+   *
+   * @param context
+   */
+  public static synchronized void calibrate(Context context) {
+    if (sCalibrated) {
+      return;
+    }
+    long emptyBytes = measureChips(context, 0);
+    long textBytes = measureChips(context, CALIBRATION_TEXT_LENGTH);
+    sChipBytes = Math.max(0, emptyBytes);
+    sTextCharBytes = Math.max(0, (textBytes - emptyBytes) / CALIBRATION_TEXT_LENGTH);
+    sTextCacheEntryBytes = Math.max(0, measureTextCacheEntry(context));
+    sCalibrated = true;
+  }
+
+  /**
+   * Returns whether {@link #calibrate(Context)} was called.
+   *
+   * @return
+   */
+  public static synchronized boolean isCalibrated() {
+    return sCalibrated;
+  }
+
+  /**
+   * Returns the bytes in use on the Java heap and on the native heap, after
+   * collecting the garbage.
+   *
+   * @return
+   */
+  public static long measureUsedBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      runtime.gc();
+      System.runFinalization();
+    }
+    return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+  }
+
+  /**
+   * Returns the average growth of the heap per chip, over a batch of chips
+   * with no icon showing texts of the given length. The texts are retained by
+   * the chips so they are counted in.
+   *
+   * @param context
+   * @param textLength
+   * @return
+   */
+  private static long measureChips(Context context, int textLength) {
+    ArrayList<Chip<IChipModel>> chips = new ArrayList<Chip<IChipModel>>(CALIBRATION_CHIP_COUNT);
+    int spec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+    long before = measureUsedBytes();
+    for (int i = 0; i < CALIBRATION_CHIP_COUNT; i++) {
+      Chip<IChipModel> chip = new Chip<IChipModel>(context);
+      chip.setChipModel(new SimpleChipModel(null, 0, newText(i, textLength)));
+      chip.measure(spec, spec);
+      chips.add(chip);
+    }
+    long after = measureUsedBytes();
+    long bytes = (after - before) / CALIBRATION_CHIP_COUNT;
+    chips.clear();
+    return bytes;
+  }
+
+  /**
+   * Returns the average growth of the heap per entry of a text cache.
+   *
+   * @param context
+   * @return
+   */
+  private static long measureTextCacheEntry(Context context) {
+    ChipTextCache cache = new ChipTextCache(CALIBRATION_CHIP_COUNT);
+    ChipMetrics metrics = new ChipMetrics(context);
+    long before = measureUsedBytes();
+    for (int i = 0; i < CALIBRATION_CHIP_COUNT; i++) {
+      cache.getWidth(newText(i, CALIBRATION_TEXT_LENGTH / 2), metrics.getTextPaint());
+    }
+    long after = measureUsedBytes();
+    long bytes = (after - before) / CALIBRATION_CHIP_COUNT;
+    cache.trimToSize(0);
+    return bytes;
+  }
+
+  /**
+   * Returns a distinct text of the given length.
+   *
+   * @param i
+   * @param length
+   * @return
+   */
+  private static String newText(int i, int length) {
+    StringBuilder text = new StringBuilder(length);
+    String prefix = Integer.toString(i);
+    for (int j = 0; j < length; j++) {
+      text.append(j < prefix.length() ? prefix.charAt(j) : 'm');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Returns the number of chips counted.
+   *
+   * @return
+   */
+  public int getChipCount() {
+    return this.chipCount;
+  }
+
+  /**
+   * Returns the size of the distinct bitmaps.
+   *
+   * @return
+   */
+  public long getBitmapBytes() {
+    return this.bitmapBytes;
+  }
+
+  /**
+   * Returns the estimated size of everything but the bitmaps.
+   *
+   * @return
+   */
+  public long getOtherBytes() {
+    return this.otherBytes;
+  }
+
+  /**
+   * Returns the total retained size.
+   *
+   * @return
+   */
+  public long getTotalBytes() {
+    return this.bitmapBytes + this.otherBytes;
+  }
+
+  /**
+   * Returns the average bitmap size per chip.
+   *
+   * @return
+   */
+  public long getBitmapBytesPerChip() {
+    return this.chipCount == 0 ? 0 : this.bitmapBytes / this.chipCount;
+  }
+
+  /**
+   * Returns the average non-bitmap size per chip.
+   *
+   * @return
+   */
+  public long getOtherBytesPerChip() {
+    return this.chipCount == 0 ? 0 : this.otherBytes / this.chipCount;
+  }
+
+  @Override
+  public String toString() {
+    return "ChipMemoryStats{chips=" + this.chipCount
+        + ", bitmapBytes=" + this.bitmapBytes
+        + ", otherBytes=" + this.otherBytes
+        + ", bitmapBytesPerChip=" + getBitmapBytesPerChip()
+        + ", otherBytesPerChip=" + getOtherBytesPerChip() + "}";
+  }
+}
@@ -0,0 +1,198 @@
+package com.example.chipslayout;
+
+import android.content.Context;
+import android.graphics.Paint;
+import android.text.TextPaint;
+import android.util.DisplayMetrics;
+
+/**
+ * The size of a chip computed from its model, without creating a
+ * {@link Chip} view. The dimensions mirror {@code res/layout/chip.xml}.
+ *
+ * An instance is not thread safe, use one instance per thread.
+ */
+public class ChipMetrics {
+
+  /**
+   * The size (in dip) of the chip icon.
+   */
+  private static final int ICON_SIZE_DP = 32;
+
+  /**
+   * The margin (in dip) between the icon and the text.
+   */
+  private static final int TEXT_MARGIN_LEFT_DP = 8;
+
+  /**
+   * The margin (in dip) to the right of the text.
+   */
+  private static final int TEXT_MARGIN_RIGHT_DP = 12;
+
+  /**
+   * The margin (in dip) to the right of the chip.
+   */
+  private static final int CHIP_MARGIN_RIGHT_DP = 12;
+
+  /**
+   * The margin (in dip) below the chip.
+   */
+  private static final int CHIP_MARGIN_BOTTOM_DP = 8;
+
+  /**
+   * The corner radius (in dip) of the chip background.
+   */
+  private static final int CORNER_RADIUS_DP = 16;
+
+  /**
+   * The default text size (in sp) of the chip text, the TextView default.
+   */
+  private static final int DEFAULT_TEXT_SIZE_SP = 14;
+
+  /**
+   * The default text color of the chip text.
+   */
+  private static final int DEFAULT_TEXT_COLOR = 0xDE000000;
+
+  final int iconSize;
+  final int textMarginLeft;
+  final int textMarginRight;
+  final int chipMarginRight;
+  final int chipMarginBottom;
+  final int cornerRadius;
+
+  /**
+   * The paint the chip text is measured and drawn with.
+   */
+  private final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+
+  /**
+   * The font metrics of {@link #textPaint}.
+   */
+  private final Paint.FontMetricsInt fontMetrics = new Paint.FontMetricsInt();
+
+  /**
+   * Constructor.
+   *
+   * @param context
+   */
+  public ChipMetrics(Context context) {
+    DisplayMetrics dm = context.getResources().getDisplayMetrics();
+    this.iconSize = dpToPx(dm, ICON_SIZE_DP);
+    this.textMarginLeft = dpToPx(dm, TEXT_MARGIN_LEFT_DP);
+    this.textMarginRight = dpToPx(dm, TEXT_MARGIN_RIGHT_DP);
+    this.chipMarginRight = dpToPx(dm, CHIP_MARGIN_RIGHT_DP);
+    this.chipMarginBottom = dpToPx(dm, CHIP_MARGIN_BOTTOM_DP);
+    this.cornerRadius = dpToPx(dm, CORNER_RADIUS_DP);
+    this.textPaint.setColor(DEFAULT_TEXT_COLOR);
+    setTextSize(DEFAULT_TEXT_SIZE_SP * dm.scaledDensity);
+  }
+
+  /**
+   * Sets the text size (in pixels), it must match the text size of the chip
+   * TextView for the sizes to match the views.
+   *
+   * @param textSize
+   */
+  public void setTextSize(float textSize) {
+    this.textPaint.setTextSize(textSize);
+    this.textPaint.getFontMetricsInt(this.fontMetrics);
+  }
+
+  /**
+   * Sets the text color.
+   *
+   * @param color
+   */
+  public void setTextColor(int color) {
+    this.textPaint.setColor(color);
+  }
+
+  /**
+   * Returns the paint the chip text is measured and drawn with.
+   *
+   * @return
+   */
+  public TextPaint getTextPaint() {
+    return this.textPaint;
+  }
+
+  /**
+   * Returns the width of the chip text, through {@link ChipTextCache}.
+   *
+   * @param text
+   * @return
+   */
+  public int measureTextWidth(CharSequence text) {
+    return (int) Math.ceil(ChipTextCache.getInstance().getWidth(text, this.textPaint));
+  }
+
+  /**
+   * Returns the width taken by a chip, margins included.
+   *
+   * @param chipModel
+   * @return
+   */
+  public int measureChipWidth(IChipModel chipModel) {
+    return getChromeWidth() + measureTextWidth(chipModel.getChipText());
+  }
+
+  /**
+   * Returns the width taken by a chip except its text, margins included.
+   *
+   * @return
+   */
+  public int getChromeWidth() {
+    return this.iconSize + this.textMarginLeft + this.textMarginRight + this.chipMarginRight;
+  }
+
+  /**
+   * Returns the height taken by a chip, margins included.
+   *
+   * @return
+   */
+  public int getChipHeight() {
+    return getContentHeight() + this.chipMarginBottom;
+  }
+
+  /**
+   * Returns the height of the chip background.
+   *
+   * @return
+   */
+  int getContentHeight() {
+    return Math.max(this.iconSize, getTextHeight());
+  }
+
+  /**
+   * Returns the height of a line of text, font padding included like a
+   * TextView does.
+   *
+   * @return
+   */
+  int getTextHeight() {
+    return this.fontMetrics.bottom - this.fontMetrics.top;
+  }
+
+  /**
+   * Returns the baseline of a line of text vertically centered in the given
+   * height.
+   *
+   * @param height
+   * @return
+   */
+  int getCenteredBaseline(int height) {
+    return (height - this.fontMetrics.ascent - this.fontMetrics.descent) / 2;
+  }
+
+  /**
+   * Converts dip to pixels, the same way {@link ChipsLayout#getPixelsByDp}
+   * does.
+   *
+   * @param dm
+   * @param dps
+   * @return
+   */
+  private static int dpToPx(DisplayMetrics dm, int dps) {
+    return (int) (dps * dm.density + 0.5f);
+  }
+}
@@ -0,0 +1,464 @@
+package com.example.chipslayout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+/**
+ * Loads the pages of an {@link IChipDataSource} for a {@link ChipsLayout}
+ * and keeps the layout holding only the chips around its visible part.
+ *
+ * The layout holds the chips in [windowStart, windowEnd) of the data source.
+ * Chips are appended page after page as the end of the window gets near the
+ * visible part, and whole rows far from the visible part are dropped, their
+ * views going back to the pool: the rows above keep their space as the top
+ * of the flow, so that nothing below moves, and are loaded again from the
+ * page cache, or from the data source, when they are scrolled back to.
+ *
+ * The pages are loaded on demand and kept in a bounded cache, the first page
+ * is always kept: collapsing goes back to it at once. All calls are made
+ * from the UI thread, the load callbacks are posted to it through a handler
+ * of the main looper: a view posts nothing from another thread before it
+ * is attached (before API 24), and the data source is usually set before.
+ */
+final class ChipPager<E extends IChipModel> {
+
+  /**
+   * Nothing to do for the visible part.
+   */
+  static final int ACTION_NONE = 0;
+
+  /**
+   * The chips dropped above the window are needed again.
+   */
+  static final int ACTION_LOAD_ABOVE = 1;
+
+  /**
+   * More chips are needed below the window.
+   */
+  static final int ACTION_LOAD_BELOW = 2;
+
+  /**
+   * Rows far above the visible part can be dropped.
+   */
+  static final int ACTION_DROP_ABOVE = 3;
+
+  /**
+   * Rows far below the visible part can be dropped.
+   */
+  static final int ACTION_DROP_BELOW = 4;
+
+  /**
+   * The chips are loaded when the window ends within this many heights of
+   * the visible part from it.
+   */
+  private static final int LOAD_SCREENS = 1;
+
+  /**
+   * The rows further than this many heights of the visible part from it are
+   * dropped. More than {@link #LOAD_SCREENS}, so that rows just loaded are
+   * not dropped again.
+   */
+  private static final int KEEP_SCREENS = 2;
+
+  /**
+   * The layout the chips are shown in.
+   */
+  private final ChipsLayout<E> layout;
+
+  /**
+   * The source of the pages.
+   */
+  private final IChipDataSource<E> dataSource;
+
+  /**
+   * Posts the pages loaded to the UI thread, whether the layout is attached
+   * or not.
+   */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  /**
+   * The pages loaded, keyed by page index, but the first one.
+   */
+  private final LruCache<Integer, List<E>> pages;
+
+  /**
+   * The max number of chips dropped above the window at once, so that the
+   * pages they are loaded again from fit in the cache together.
+   */
+  private final int maxDropCount;
+
+  /**
+   * The first page, null if not loaded yet.
+   */
+  private List<E> firstPage;
+
+  /**
+   * The pages being loaded.
+   */
+  private final HashSet<Integer> pendingPages = new HashSet<Integer>();
+
+  /**
+   * The index in the data source of the first chip of the layout.
+   */
+  private int windowStart;
+
+  /**
+   * The index in the data source after the last chip of the layout.
+   */
+  private int windowEnd;
+
+  /**
+   * The chips dropped above the window, last dropped first: the window start
+   * and the top of the flow before each drop.
+   */
+  private final ArrayDeque<int[]> droppedAbove = new ArrayDeque<int[]>();
+
+  /**
+   * Whether a page shorter than the page size is loaded and the window ends
+   * at its end.
+   */
+  private boolean endReached;
+
+  /**
+   * Whether the pager is detached from the layout, late pages are dropped.
+   */
+  private boolean released;
+
+  /**
+   * Constructor.
+   *
+   * @param layout
+   * @param dataSource
+   * @param maxCachedPages
+   */
+  ChipPager(ChipsLayout<E> layout, IChipDataSource<E> dataSource, int maxCachedPages) {
+    this.layout = layout;
+    this.dataSource = dataSource;
+    this.pages = new LruCache<Integer, List<E>>(maxCachedPages);
+    this.maxDropCount = dataSource.getPageSize() * Math.max(1, maxCachedPages / 2);
+  }
+
+  /**
+   * Returns whether there are chips after the window.
+   *
+   * @return
+   */
+  boolean hasMore() {
+    if (this.endReached) {
+      return false;
+    }
+    int total = this.dataSource.getTotalCountHint();
+    return total < 0 || this.windowEnd < total;
+  }
+
+  /**
+   * Returns whether a page is being loaded.
+   *
+   * @return
+   */
+  boolean isLoading() {
+    return !this.pendingPages.isEmpty();
+  }
+
+  /**
+   * Returns the number of chips known but not in the layout: the chips
+   * dropped above the window and the chips after it, according to the total
+   * count hint.
+   *
+   * @return
+   */
+  int getUnloadedCount() {
+    int after = this.endReached ? 0 : Math.max(0, this.dataSource.getTotalCountHint() - this.windowEnd);
+    return this.windowStart + after;
+  }
+
+  /**
+   * Appends the chips of the next page, loads it if it is not in cache.
+   */
+  void loadNextPage() {
+    if (this.released || !hasMore()) {
+      return;
+    }
+    int page = this.windowEnd / this.dataSource.getPageSize();
+    if (!this.pendingPages.contains(page) && !appendCachedPage()) {
+      request(page);
+    }
+  }
+
+  /**
+   * Returns what the window needs for the given visible part of the layout.
+   * Only rows of the expanded layout, whose flow is up to date, are dropped.
+   *
+   * @param flow the flow of the chips of the layout
+   * @param visibleTop
+   * @param visibleBottom
+   * @param canDrop whether rows can be dropped
+   * @return one of the {@code ACTION_*} constants
+   */
+  int getAction(ChipsFlow flow, int visibleTop, int visibleBottom, boolean canDrop) {
+    if (this.released) {
+      return ACTION_NONE;
+    }
+    int screen = visibleBottom - visibleTop;
+    if (!isLoading()) {
+      if (this.windowStart > 0 && flow.getTop() > visibleTop - LOAD_SCREENS * screen) {
+        return ACTION_LOAD_ABOVE;
+      }
+      if (hasMore() && flow.getHeight() < visibleBottom + LOAD_SCREENS * screen) {
+        return ACTION_LOAD_BELOW;
+      }
+    }
+    if (!canDrop || flow.getFlowedCount() < flow.getCount()) {
+      return ACTION_NONE;
+    }
+    if (getDropAboveEnd(flow, visibleTop - KEEP_SCREENS * screen) > 0) {
+      return ACTION_DROP_ABOVE;
+    }
+    if (getDropBelowStart(flow, visibleBottom + KEEP_SCREENS * screen) < flow.getCount()) {
+      return ACTION_DROP_BELOW;
+    }
+    return ACTION_NONE;
+  }
+
+  /**
+   * Does what {@link #getAction} returns for the given visible part.
+   *
+   * @param flow
+   * @param visibleTop
+   * @param visibleBottom
+   * @param canDrop
+   */
+  void updateWindow(ChipsFlow flow, int visibleTop, int visibleBottom, boolean canDrop) {
+    int screen = visibleBottom - visibleTop;
+    switch (getAction(flow, visibleTop, visibleBottom, canDrop)) {
+      case ACTION_LOAD_ABOVE:
+        loadAbove();
+        break;
+      case ACTION_LOAD_BELOW:
+        loadNextPage();
+        break;
+      case ACTION_DROP_ABOVE:
+        dropAbove(flow, getDropAboveEnd(flow, visibleTop - KEEP_SCREENS * screen));
+        break;
+      case ACTION_DROP_BELOW:
+        dropBelow(getDropBelowStart(flow, visibleBottom + KEEP_SCREENS * screen));
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Takes the layout back to the first page, e.g. to collapse it. Does
+   * nothing unless chips are dropped above the window.
+   *
+   * @return whether the chips of the layout are changed
+   */
+  boolean rewind() {
+    if (this.released || this.windowStart == 0 || null == this.firstPage) {
+      return false;
+    }
+    this.layout.dropChips(0, Integer.MAX_VALUE);
+    this.droppedAbove.clear();
+    this.windowStart = 0;
+    this.windowEnd = 0;
+    this.endReached = false;
+    this.layout.setFlowTop(0);
+    appendCachedPage();
+    return true;
+  }
+
+  /**
+   * Stops loading pages for the layout.
+   */
+  void release() {
+    this.released = true;
+    this.pages.evictAll();
+    this.firstPage = null;
+    this.pendingPages.clear();
+    this.handler.removeCallbacksAndMessages(null);
+  }
+
+  /**
+   * Returns the number of chips from the start of the layout in the rows
+   * ending above the given top, at most {@link #maxDropCount}, 0 if they are
+   * fewer than a page: dropping less is not worth loading them again.
+   *
+   * @param flow
+   * @param keepTop
+   * @return
+   */
+  private int getDropAboveEnd(ChipsFlow flow, int keepTop) {
+    int rowCount = flow.getRowCount();
+    int row = 0;
+    while (row + 1 < rowCount && flow.getRowTop(row + 1) <= keepTop
+        && flow.getRowStart(row + 1) <= this.maxDropCount) {
+      ++row;
+    }
+    int end = row < rowCount ? flow.getRowStart(row) : 0;
+    return end >= this.dataSource.getPageSize() ? end : 0;
+  }
+
+  /**
+   * Returns the index of the first chip of the layout in the rows starting
+   * below the given bottom, the chip count if they are fewer than a page.
+   *
+   * @param flow
+   * @param keepBottom
+   * @return
+   */
+  private int getDropBelowStart(ChipsFlow flow, int keepBottom) {
+    int count = flow.getCount();
+    int row = flow.getRowCount();
+    while (row > 0 && flow.getRowTop(row - 1) > keepBottom) {
+      --row;
+    }
+    int start = row < flow.getRowCount() ? flow.getRowStart(row) : count;
+    return count - start >= this.dataSource.getPageSize() ? start : count;
+  }
+
+  /**
+   * Drops the chips of the layout before the given index, which starts a
+   * row. The row keeps its top.
+   *
+   * @param flow
+   * @param end
+   */
+  private void dropAbove(ChipsFlow flow, int end) {
+    int top = flow.getY(end);
+    this.droppedAbove.push(new int[] { this.windowStart, flow.getTop() });
+    this.layout.dropChips(0, end);
+    this.windowStart += end;
+    this.layout.setFlowTop(top);
+  }
+
+  /**
+   * Drops the chips of the layout from the given index on.
+   *
+   * @param start
+   */
+  private void dropBelow(int start) {
+    this.layout.dropChips(start, Integer.MAX_VALUE);
+    this.windowEnd = this.windowStart + start;
+    this.endReached = false;
+  }
+
+  /**
+   * Puts back the chips dropped last above the window, loads their pages if
+   * they are not all in cache.
+   */
+  private void loadAbove() {
+    int[] dropped = this.droppedAbove.peek();
+    int start = dropped[0];
+    int pageSize = this.dataSource.getPageSize();
+    List<E> chipModels = new ArrayList<E>(this.windowStart - start);
+    for (int page = start / pageSize; page * pageSize < this.windowStart; page++) {
+      List<E> pageModels = getCachedPage(page);
+      if (null == pageModels) {
+        request(page);
+        continue;
+      }
+      int from = Math.max(start - page * pageSize, 0);
+      int to = Math.min(this.windowStart - page * pageSize, pageModels.size());
+      chipModels.addAll(pageModels.subList(from, to));
+    }
+    if (isLoading()) {
+      return;
+    }
+    this.droppedAbove.pop();
+    this.windowStart = start;
+    this.layout.insertPage(chipModels);
+    this.layout.setFlowTop(dropped[1]);
+  }
+
+  /**
+   * Returns a page in cache, null if it is not.
+   *
+   * @param page
+   * @return
+   */
+  private List<E> getCachedPage(int page) {
+    return page == 0 ? this.firstPage : this.pages.get(page);
+  }
+
+  /**
+   * Requests a page from the data source, unless it is requested already.
+   *
+   * @param page
+   */
+  private void request(final int page) {
+    if (!this.pendingPages.add(page)) {
+      return;
+    }
+    int pageSize = this.dataSource.getPageSize();
+    this.dataSource.loadRange(page * pageSize, pageSize, new IChipDataSource.Callback<E>() {
+      @Override
+      public void onLoaded(int start, final List<E> chipModels) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            onPageLoaded(page, chipModels);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * A page is loaded.
+   *
+   * @param page
+   * @param chipModels
+   */
+  private void onPageLoaded(int page, List<E> chipModels) {
+    if (this.released) {
+      return;
+    }
+    this.pendingPages.remove(page);
+    if (page == 0) {
+      this.firstPage = chipModels;
+    }
+    else {
+      this.pages.put(page, chipModels);
+    }
+    if (page == this.windowEnd / this.dataSource.getPageSize()) {
+      appendCachedPage();
+    }
+    else {
+      this.layout.onPageLoaded();
+    }
+  }
+
+  /**
+   * Appends the chips of the page holding the end of the window, if it is in
+   * cache.
+   *
+   * @return whether the page is in cache
+   */
+  private boolean appendCachedPage() {
+    if (this.endReached) {
+      return false;
+    }
+    int pageSize = this.dataSource.getPageSize();
+    int page = this.windowEnd / pageSize;
+    List<E> pageModels = getCachedPage(page);
+    if (null == pageModels) {
+      return false;
+    }
+    int from = this.windowEnd - page * pageSize;
+    if (pageModels.size() < pageSize) {
+      this.endReached = true;
+    }
+    if (from < pageModels.size()) {
+      this.windowEnd += pageModels.size() - from;
+      this.layout.appendPage(new ArrayList<E>(pageModels.subList(from, pageModels.size())));
+    }
+    return true;
+  }
+}
@@ -0,0 +1,117 @@
+package com.example.chipslayout;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of detached {@link Chip} views ready to be bound to a model.
+ *
+ * Inflating a chip (two nested layouts, an icon and a text) is the most
+ * expensive part of adding a chip, so {@link ChipsLayout} takes its chips
+ * from the pool first and only inflates a new one when the pool is empty.
+ *
+ * Chips are bound to the Context they are created with, so a pool should
+ * only be shared among layouts of the same Context.
+ * Not thread safe, all calls must be made from the UI thread.
+ */
+public class ChipPool {
+
+  /**
+   * The default max number of chips kept in the pool.
+   */
+  public static final int DEFAULT_MAX_SIZE = 32;
+
+  /**
+   * The pooled chips.
+   */
+  private final ArrayList<Chip<?>> chips = new ArrayList<Chip<?>>();
+
+  /**
+   * The max number of chips kept in the pool.
+   */
+  private int maxSize;
+
+  /**
+   * Creates a pool holding up to {@value #DEFAULT_MAX_SIZE} chips.
+   */
+  public ChipPool() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   */
+  public ChipPool(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Takes a chip out of the pool.
+   *
+   * @return a pooled chip or null if the pool is empty
+   */
+  @SuppressWarnings("unchecked")
+  public <E extends IChipModel> Chip<E> acquire() {
+    int size = this.chips.size();
+    if (size == 0) {
+      return null;
+    }
+    return (Chip<E>) this.chips.remove(size - 1);
+  }
+
+  /**
+   * Puts a chip back into the pool. The chip must have been removed from its
+   * parent already.
+   *
+   * @param chip
+   * @return false if the pool is full and the chip is dropped
+   */
+  public boolean release(Chip<?> chip) {
+    if (null == chip || this.chips.size() >= this.maxSize || null != chip.getParent()) {
+      return false;
+    }
+    chip.reset();
+    this.chips.add(chip);
+    return true;
+  }
+
+  /**
+   * Returns the number of chips in the pool.
+   *
+   * @return
+   */
+  public int size() {
+    return this.chips.size();
+  }
+
+  /**
+   * Returns the max number of chips kept in the pool.
+   *
+   * @return
+   */
+  public int getMaxSize() {
+    return this.maxSize;
+  }
+
+  /**
+   * Sets the max number of chips kept in the pool, drops the extra ones.
+   *
+   * @param maxSize
+   */
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    trimTo(maxSize);
+  }
+
+  /**
+   * Drops the pooled chips until at most {@code size} chips are left.
+   *
+   * @param size
+   */
+  public void trimTo(int size) {
+    for (int i = this.chips.size() - 1; i >= Math.max(0, size); i--) {
+      this.chips.remove(i);
+    }
+  }
+}
@@ -0,0 +1,417 @@
+package com.example.chipslayout;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Substring search over the chips, by text or key, case insensitive.
+ *
+ * The chips are indexed by their trigrams and the index is updated as the
+ * chips are added or removed. A query of 3 chars or more only checks the
+ * chips having its rarest trigram, and a query extending the previous one
+ * (the user typing on) only checks the previous matches. Each search reports
+ * only the chips whose match state is changed, so the caller touches as few
+ * chips as possible.
+ *
+ * Not thread safe, all calls must be made from the UI thread.
+ */
+final class ChipSearchIndex<T> {
+
+  /**
+   * The length of the indexed grams.
+   */
+  private static final int GRAM = 3;
+
+  /**
+   * The ids of the indexed chips, by key.
+   */
+  private final HashMap<String, Integer> idsByKey = new HashMap<String, Integer>();
+
+  /**
+   * The ids of the chips having a gram, in increasing order, by gram.
+   */
+  private HashMap<String, IntList> postings = new HashMap<String, IntList>();
+
+  /**
+   * The searched text of the chips, by id: the text and the key, lower
+   * cased. Null for a removed chip.
+   */
+  private String[] texts = new String[16];
+
+  /**
+   * The items (e.g. the chip views), by id.
+   */
+  private Object[] items = new Object[16];
+
+  /**
+   * Whether the chips match the current query, by id.
+   */
+  private boolean[] matched = new boolean[16];
+
+  /**
+   * The stamp of the search that matched the chips last, by id.
+   */
+  private int[] stamps = new int[16];
+
+  /**
+   * The stamp of the current search.
+   */
+  private int stamp;
+
+  /**
+   * The number of ids given so far.
+   */
+  private int idCount;
+
+  /**
+   * The number of indexed chips.
+   */
+  private int liveCount;
+
+  /**
+   * The current query, lower cased, empty for none.
+   */
+  private String query = "";
+
+  /**
+   * The ids matching the current query, when there is one. May contain the
+   * ids of removed chips.
+   */
+  private IntList matches = new IntList();
+
+  /**
+   * The ids matching the query being searched.
+   */
+  private IntList newMatches = new IntList();
+
+  /**
+   * Indexes a chip, or indexes it again if its text is changed.
+   *
+   * @param key
+   * @param text
+   * @param item
+   * @return whether the chip matches the current query
+   */
+  boolean add(String key, CharSequence text, T item) {
+    this.remove(key);
+    if (this.idCount == this.texts.length) {
+      this.grow();
+    }
+    int id = this.idCount++;
+    String searched = normalize(text) + '\n' + normalize(key);
+    this.texts[id] = searched;
+    this.items[id] = item;
+    this.idsByKey.put(key, id);
+    ++this.liveCount;
+    this.indexGrams(id, searched);
+
+    boolean isMatch = this.query.length() == 0 || searched.indexOf(this.query) >= 0;
+    this.matched[id] = isMatch;
+    if (isMatch && this.query.length() > 0) {
+      this.matches.add(id);
+    }
+    return isMatch;
+  }
+
+  /**
+   * Removes a chip from the index.
+   *
+   * @param key
+   */
+  void remove(String key) {
+    Integer id = this.idsByKey.remove(key);
+    if (null == id) {
+      return;
+    }
+    this.texts[id] = null;
+    this.items[id] = null;
+    this.matched[id] = false;
+    --this.liveCount;
+    if (this.idCount - this.liveCount > Math.max(64, this.liveCount)) {
+      this.compact();
+    }
+  }
+
+  /**
+   * Returns whether the chip matches the current query.
+   *
+   * @param key
+   * @return
+   */
+  boolean isMatched(String key) {
+    Integer id = this.idsByKey.get(key);
+    return null != id && this.matched[id];
+  }
+
+  /**
+   * Returns whether there is a query.
+   *
+   * @return
+   */
+  boolean hasQuery() {
+    return this.query.length() > 0;
+  }
+
+  /**
+   * Searches the chips whose text or key contains the query.
+   *
+   * @param query the query, null or empty to match all the chips
+   * @param matchedItems filled with the items matching now but not before
+   * @param unmatchedItems filled with the items matching before but not now
+   * @return the number of matching chips
+   */
+  @SuppressWarnings("unchecked")
+  int search(CharSequence query, List<T> matchedItems, List<T> unmatchedItems) {
+    String q = normalize(query);
+    if (q.equals(this.query)) {
+      return q.length() == 0 ? this.liveCount : this.countMatches();
+    }
+    ++this.stamp;
+    this.newMatches.clear();
+    if (q.length() > 0) {
+      this.collectMatches(q);
+    }
+
+    //
+    // The chips matching now but not before.
+    if (q.length() == 0) {
+      for (int id = 0; id < this.idCount; id++) {
+        if (null != this.texts[id] && !this.matched[id]) {
+          this.matched[id] = true;
+          matchedItems.add((T) this.items[id]);
+        }
+      }
+    }
+    else {
+      for (int i = 0; i < this.newMatches.size; i++) {
+        int id = this.newMatches.ids[i];
+        if (!this.matched[id]) {
+          this.matched[id] = true;
+          matchedItems.add((T) this.items[id]);
+        }
+      }
+    }
+
+    //
+    // The chips matching before but not now.
+    if (q.length() > 0) {
+      if (this.query.length() == 0) {
+        for (int id = 0; id < this.idCount; id++) {
+          this.unmatch(id, unmatchedItems);
+        }
+      }
+      else {
+        for (int i = 0; i < this.matches.size; i++) {
+          this.unmatch(this.matches.ids[i], unmatchedItems);
+        }
+      }
+    }
+
+    IntList previous = this.matches;
+    this.matches = this.newMatches;
+    this.newMatches = previous;
+    this.query = q;
+    return q.length() == 0 ? this.liveCount : this.matches.size;
+  }
+
+  /**
+   * Collects the ids of the chips matching the query into
+   * {@link #newMatches}, stamped with the current stamp.
+   *
+   * @param q
+   */
+  private void collectMatches(String q) {
+    if (this.query.length() > 0 && q.indexOf(this.query) >= 0) {
+      //
+      // Narrowing the current query: only its matches can match.
+      for (int i = 0; i < this.matches.size; i++) {
+        this.check(this.matches.ids[i], q);
+      }
+    }
+    else if (q.length() >= GRAM) {
+      //
+      // Only the chips having the rarest gram of the query can match.
+      IntList rarest = null;
+      for (int i = 0; i + GRAM <= q.length(); i++) {
+        IntList list = this.postings.get(q.substring(i, i + GRAM));
+        if (null == list) {
+          return;
+        }
+        if (null == rarest || list.size < rarest.size) {
+          rarest = list;
+        }
+      }
+      for (int i = 0; i < rarest.size; i++) {
+        this.check(rarest.ids[i], q);
+      }
+    }
+    else {
+      for (int id = 0; id < this.idCount; id++) {
+        this.check(id, q);
+      }
+    }
+  }
+
+  /**
+   * Adds the chip to the new matches if it contains the query.
+   *
+   * @param id
+   * @param q
+   */
+  private void check(int id, String q) {
+    String text = this.texts[id];
+    if (null != text && this.stamps[id] != this.stamp && text.indexOf(q) >= 0) {
+      this.stamps[id] = this.stamp;
+      this.newMatches.add(id);
+    }
+  }
+
+  /**
+   * Reports the chip as not matching anymore if it matched before but is not
+   * in the new matches.
+   *
+   * @param id
+   * @param unmatchedItems
+   */
+  @SuppressWarnings("unchecked")
+  private void unmatch(int id, List<T> unmatchedItems) {
+    if (this.matched[id] && this.stamps[id] != this.stamp) {
+      this.matched[id] = false;
+      unmatchedItems.add((T) this.items[id]);
+    }
+  }
+
+  /**
+   * Returns the number of chips matching the current query.
+   *
+   * @return
+   */
+  private int countMatches() {
+    int count = 0;
+    for (int i = 0; i < this.matches.size; i++) {
+      if (this.matched[this.matches.ids[i]]) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Adds the chip to the postings of its grams.
+   *
+   * @param id
+   * @param searched
+   */
+  private void indexGrams(int id, String searched) {
+    for (int i = 0; i + GRAM <= searched.length(); i++) {
+      String gram = searched.substring(i, i + GRAM);
+      IntList list = this.postings.get(gram);
+      if (null == list) {
+        list = new IntList();
+        this.postings.put(gram, list);
+      }
+      //
+      // The grams of a chip are added at once, a repeated gram is already
+      // the last one.
+      if (list.size == 0 || list.ids[list.size - 1] != id) {
+        list.add(id);
+      }
+    }
+  }
+
+  /**
+   * Grows the arrays by id.
+   */
+  private void grow() {
+    int capacity = 2 * this.texts.length;
+    String[] texts = new String[capacity];
+    Object[] items = new Object[capacity];
+    boolean[] matched = new boolean[capacity];
+    int[] stamps = new int[capacity];
+    System.arraycopy(this.texts, 0, texts, 0, this.idCount);
+    System.arraycopy(this.items, 0, items, 0, this.idCount);
+    System.arraycopy(this.matched, 0, matched, 0, this.idCount);
+    System.arraycopy(this.stamps, 0, stamps, 0, this.idCount);
+    this.texts = texts;
+    this.items = items;
+    this.matched = matched;
+    this.stamps = stamps;
+  }
+
+  /**
+   * Gives new ids to the chips so that the removed ones take no more room,
+   * and indexes them again.
+   */
+  private void compact() {
+    int[] newIds = new int[this.idCount];
+    int count = 0;
+    for (int id = 0; id < this.idCount; id++) {
+      if (null == this.texts[id]) {
+        newIds[id] = -1;
+        continue;
+      }
+      newIds[id] = count;
+      this.texts[count] = this.texts[id];
+      this.items[count] = this.items[id];
+      this.matched[count] = this.matched[id];
+      this.stamps[count] = this.stamps[id];
+      ++count;
+    }
+    for (int id = count; id < this.idCount; id++) {
+      this.texts[id] = null;
+      this.items[id] = null;
+      this.matched[id] = false;
+    }
+    this.idCount = count;
+
+    for (Map.Entry<String, Integer> entry : this.idsByKey.entrySet()) {
+      entry.setValue(newIds[entry.getValue()]);
+    }
+    IntList matches = new IntList();
+    for (int i = 0; i < this.matches.size; i++) {
+      int id = newIds[this.matches.ids[i]];
+      if (id >= 0) {
+        matches.add(id);
+      }
+    }
+    this.matches = matches;
+    this.postings = new HashMap<String, IntList>();
+    for (int id = 0; id < count; id++) {
+      this.indexGrams(id, this.texts[id]);
+    }
+  }
+
+  /**
+   * Returns the searched form of a text.
+   *
+   * @param text
+   * @return
+   */
+  private static String normalize(CharSequence text) {
+    return null == text ? "" : text.toString().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * A growable list of ids.
+   */
+  private static final class IntList {
+
+    private int[] ids = new int[4];
+    private int size;
+
+    void add(int id) {
+      if (this.size == this.ids.length) {
+        int[] ids = new int[2 * this.size];
+        System.arraycopy(this.ids, 0, ids, 0, this.size);
+        this.ids = ids;
+      }
+      this.ids[this.size++] = id;
+    }
+
+    void clear() {
+      this.size = 0;
+    }
+  }
+}
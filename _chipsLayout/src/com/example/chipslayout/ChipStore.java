@@ -0,0 +1,502 @@
+package com.example.chipslayout;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A thread safe store of chip models, to be changed from any thread (e.g. a
+ * sync engine) and shown by a {@link ChipsLayout}, see
+ * {@link ChipsLayout#setChipStore(ChipStore)}.
+ *
+ * The store is copy on write: each change publishes a new immutable
+ * {@link Snapshot} with a compare and set, so taking a snapshot is O(1),
+ * readers never block writers and writers never block each other (a writer
+ * losing a race just tries again). Each snapshot carries a version and the
+ * log of the changes that led to it, so the layout only applies what is
+ * changed since the snapshot it shows.
+ *
+ * The chip keys are expected to be unique.
+ */
+public class ChipStore<E extends IChipModel> {
+
+  /**
+   * The max number of changes kept in the log. Older changes are replaced by
+   * a {@link Change.Type#RESET}.
+   */
+  private static final int MAX_LOG_LENGTH = 256;
+
+  /**
+   * Notified after each change, on the thread making the change.
+   */
+  public interface OnChangeListener {
+    public void onStoreChanged(ChipStore<?> store);
+  }
+
+  /**
+   * The current snapshot.
+   */
+  private final AtomicReference<Snapshot<E>> head =
+      new AtomicReference<Snapshot<E>>(new Snapshot<E>(new Object[0], 0, null));
+
+  /**
+   * The listeners.
+   */
+  private final CopyOnWriteArrayList<OnChangeListener> listeners = new CopyOnWriteArrayList<OnChangeListener>();
+
+  /**
+   * Returns the current snapshot. O(1), never blocks.
+   *
+   * @return
+   */
+  public Snapshot<E> snapshot() {
+    return this.head.get();
+  }
+
+  /**
+   * Adds a chip at the end.
+   *
+   * @param chipModel
+   */
+  public void add(E chipModel) {
+    this.addAll(Collections.singletonList(chipModel));
+  }
+
+  /**
+   * Inserts a chip at the given position.
+   *
+   * @param index the position, clamped to [0, size]
+   * @param chipModel
+   */
+  public void add(int index, E chipModel) {
+    this.addAll(index, Collections.singletonList(chipModel));
+  }
+
+  /**
+   * Adds chips at the end, as one change.
+   *
+   * @param chipModels
+   */
+  public void addAll(Collection<? extends E> chipModels) {
+    this.addAll(Integer.MAX_VALUE, chipModels);
+  }
+
+  /**
+   * Inserts chips at the given position, as one change.
+   *
+   * @param index the position, clamped to [0, size]
+   * @param chipModels
+   */
+  public void addAll(int index, Collection<? extends E> chipModels) {
+    if (chipModels.isEmpty()) {
+      return;
+    }
+    List<E> added = Collections.unmodifiableList(new ArrayList<E>(chipModels));
+    Snapshot<E> current;
+    Object[] items;
+    int at;
+    do {
+      current = this.head.get();
+      at = Math.max(0, Math.min(index, current.items.length));
+      items = new Object[current.items.length + added.size()];
+      System.arraycopy(current.items, 0, items, 0, at);
+      for (int i = 0; i < added.size(); i++) {
+        items[at + i] = added.get(i);
+      }
+      System.arraycopy(current.items, at, items, at + added.size(), current.items.length - at);
+    } while (!this.publish(current, items, Change.Type.ADD, added, null, -1, at));
+  }
+
+  /**
+   * Inserts a chip where it belongs in chips sorted by the given comparator,
+   * after the chips equal to it. The position is found by a binary search on
+   * the snapshot the chip is inserted in, so it is right even if the store
+   * is changed meanwhile by another thread.
+   *
+   * @param chipModel
+   * @param comparator
+   * @return the position the chip is inserted at
+   */
+  public int addSorted(E chipModel, Comparator<? super E> comparator) {
+    List<E> added = Collections.singletonList(chipModel);
+    Snapshot<E> current;
+    Object[] items;
+    int at;
+    do {
+      current = this.head.get();
+      at = current.sortedIndexOf(chipModel, comparator);
+      items = new Object[current.items.length + 1];
+      System.arraycopy(current.items, 0, items, 0, at);
+      items[at] = chipModel;
+      System.arraycopy(current.items, at, items, at + 1, current.items.length - at);
+    } while (!this.publish(current, items, Change.Type.ADD, added, null, -1, at));
+    return at;
+  }
+
+  /**
+   * Removes the chip of the given key.
+   *
+   * @param key
+   * @return false if there is no chip of this key
+   */
+  @SuppressWarnings("unchecked")
+  public boolean remove(String key) {
+    Snapshot<E> current;
+    Object[] items;
+    List<E> removed;
+    do {
+      current = this.head.get();
+      int index = current.indexOfKey(key);
+      if (index < 0) {
+        return false;
+      }
+      removed = Collections.singletonList((E) current.items[index]);
+      items = new Object[current.items.length - 1];
+      System.arraycopy(current.items, 0, items, 0, index);
+      System.arraycopy(current.items, index + 1, items, index, items.length - index);
+    } while (!this.publish(current, items, Change.Type.REMOVE, removed, key, -1, -1));
+    return true;
+  }
+
+  /**
+   * Removes the chips of the given keys, as one change.
+   *
+   * @param keys
+   * @return the number of chips removed
+   */
+  @SuppressWarnings("unchecked")
+  public int removeAll(Collection<String> keys) {
+    HashSet<String> keySet = new HashSet<String>(keys);
+    Snapshot<E> current;
+    Object[] items;
+    List<E> removed;
+    do {
+      current = this.head.get();
+      ArrayList<E> removedItems = new ArrayList<E>();
+      items = new Object[current.items.length];
+      int count = 0;
+      for (Object item : current.items) {
+        if (keySet.contains(((IChipModel) item).getChipKey())) {
+          removedItems.add((E) item);
+        }
+        else {
+          items[count++] = item;
+        }
+      }
+      if (removedItems.isEmpty()) {
+        return 0;
+      }
+      Object[] kept = new Object[count];
+      System.arraycopy(items, 0, kept, 0, count);
+      items = kept;
+      removed = Collections.unmodifiableList(removedItems);
+    } while (!this.publish(current, items, Change.Type.REMOVE, removed, null, -1, -1));
+    return removed.size();
+  }
+
+  /**
+   * Replaces the chip of the same key with the given one.
+   *
+   * @param chipModel
+   * @return false if there is no chip of this key
+   */
+  public boolean update(E chipModel) {
+    String key = chipModel.getChipKey();
+    List<E> updated = Collections.singletonList(chipModel);
+    Snapshot<E> current;
+    Object[] items;
+    do {
+      current = this.head.get();
+      int index = current.indexOfKey(key);
+      if (index < 0) {
+        return false;
+      }
+      items = current.items.clone();
+      items[index] = chipModel;
+    } while (!this.publish(current, items, Change.Type.UPDATE, updated, key, -1, -1));
+    return true;
+  }
+
+  /**
+   * Moves the chip of the given key to another position.
+   *
+   * @param key
+   * @param toIndex
+   * @return false if there is no chip of this key
+   */
+  public boolean move(String key, int toIndex) {
+    Snapshot<E> current;
+    Object[] items;
+    int from;
+    int to;
+    do {
+      current = this.head.get();
+      from = current.indexOfKey(key);
+      if (from < 0) {
+        return false;
+      }
+      to = Math.max(0, Math.min(toIndex, current.items.length - 1));
+      if (from == to) {
+        return true;
+      }
+      items = current.items.clone();
+      Object moved = items[from];
+      if (from < to) {
+        System.arraycopy(items, from + 1, items, from, to - from);
+      }
+      else {
+        System.arraycopy(items, to, items, to + 1, from - to);
+      }
+      items[to] = moved;
+    } while (!this.publish(current, items, Change.Type.MOVE, null, key, from, to));
+    return true;
+  }
+
+  /**
+   * Replaces all the chips.
+   *
+   * @param chipModels
+   */
+  public void setAll(Collection<? extends E> chipModels) {
+    Object[] items = chipModels.toArray();
+    Snapshot<E> current;
+    do {
+      current = this.head.get();
+    } while (!this.publish(current, items, Change.Type.RESET, null, null, -1, -1));
+  }
+
+  /**
+   * Publishes a new snapshot, unless the current one is changed meanwhile.
+   *
+   * @return whether the snapshot is published
+   */
+  private boolean publish(Snapshot<E> current, Object[] items, Change.Type type,
+      List<E> chipModels, String key, int from, int to) {
+    int version = current.version + 1;
+    Change<E> last = current.lastChange;
+    Change<E> change;
+    if (type == Change.Type.RESET || null == last || last.length >= MAX_LOG_LENGTH) {
+      //
+      // Older changes are dropped: a reader behind them loads the snapshot.
+      change = type == Change.Type.RESET || null == last
+          ? new Change<E>(type, version, chipModels, key, from, to, null)
+          : new Change<E>(Change.Type.RESET, version, null, null, -1, -1, null);
+    }
+    else {
+      change = new Change<E>(type, version, chipModels, key, from, to, last);
+    }
+    if (!this.head.compareAndSet(current, new Snapshot<E>(items, version, change))) {
+      return false;
+    }
+    for (OnChangeListener listener : this.listeners) {
+      listener.onStoreChanged(this);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a listener notified after each change, on the thread making it.
+   *
+   * @param listener
+   */
+  public void addOnChangeListener(OnChangeListener listener) {
+    this.listeners.addIfAbsent(listener);
+  }
+
+  /**
+   * Removes a listener.
+   *
+   * @param listener
+   */
+  public void removeOnChangeListener(OnChangeListener listener) {
+    this.listeners.remove(listener);
+  }
+
+  /**
+   * An immutable version of the chips.
+   */
+  public static final class Snapshot<E extends IChipModel> extends AbstractList<E> implements RandomAccess {
+
+    private final Object[] items;
+    private final int version;
+    private final Change<E> lastChange;
+
+    Snapshot(Object[] items, int version, Change<E> lastChange) {
+      this.items = items;
+      this.version = version;
+      this.lastChange = lastChange;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+      if (index < 0 || index >= this.items.length) {
+        throw new IndexOutOfBoundsException("index: " + index + ", size: " + this.items.length);
+      }
+      return (E) this.items[index];
+    }
+
+    @Override
+    public int size() {
+      return this.items.length;
+    }
+
+    /**
+     * Returns the version, increased by each change.
+     *
+     * @return
+     */
+    public int getVersion() {
+      return this.version;
+    }
+
+    /**
+     * Returns the index of the chip of the given key.
+     *
+     * @param key
+     * @return the index or -1
+     */
+    public int indexOfKey(String key) {
+      for (int i = 0; i < this.items.length; i++) {
+        if (key.equals(((IChipModel) this.items[i]).getChipKey())) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the position of a chip in these chips sorted by the given
+     * comparator, after the chips equal to it, by a binary search.
+     *
+     * @param chipModel
+     * @param comparator
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public int sortedIndexOf(E chipModel, Comparator<? super E> comparator) {
+      int low = 0;
+      int high = this.items.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (comparator.compare((E) this.items[mid], chipModel) <= 0) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Returns the changes from the given version to this one, oldest first.
+     *
+     * @param version
+     * @return the changes, or null if they are not all in the log anymore:
+     *         then the whole snapshot is to be loaded
+     */
+    public List<Change<E>> getChangesSince(int version) {
+      ArrayList<Change<E>> changes = new ArrayList<Change<E>>();
+      Change<E> change = this.lastChange;
+      while (null != change && change.version > version) {
+        if (change.type == Change.Type.RESET) {
+          return null;
+        }
+        changes.add(change);
+        change = change.previous;
+      }
+      if (this.version - version != changes.size()) {
+        return null;
+      }
+      Collections.reverse(changes);
+      return changes;
+    }
+  }
+
+  /**
+   * A change of the store.
+   */
+  public static final class Change<E extends IChipModel> {
+
+    /**
+     * The type of a change.
+     */
+    public enum Type {
+      /**
+       * Chips of {@link Change#getChipModels()} inserted at
+       * {@link Change#getToIndex()}.
+       */
+      ADD,
+      /**
+       * The chips of {@link Change#getChipModels()} removed, in order.
+       */
+      REMOVE,
+      /**
+       * The chip of {@link Change#getKey()} replaced by the one of
+       * {@link Change#getChipModels()}.
+       */
+      UPDATE,
+      /**
+       * The chip of {@link Change#getKey()} moved from
+       * {@link Change#getFromIndex()} to {@link Change#getToIndex()}.
+       */
+      MOVE,
+      /**
+       * All the chips replaced.
+       */
+      RESET
+    }
+
+    private final Type type;
+    private final int version;
+    private final List<E> chipModels;
+    private final String key;
+    private final int fromIndex;
+    private final int toIndex;
+    private final Change<E> previous;
+    private final int length;
+
+    Change(Type type, int version, List<E> chipModels, String key, int fromIndex, int toIndex, Change<E> previous) {
+      this.type = type;
+      this.version = version;
+      this.chipModels = chipModels;
+      this.key = key;
+      this.fromIndex = fromIndex;
+      this.toIndex = toIndex;
+      this.previous = previous;
+      this.length = null == previous ? 1 : previous.length + 1;
+    }
+
+    public Type getType() {
+      return this.type;
+    }
+
+    public int getVersion() {
+      return this.version;
+    }
+
+    public List<E> getChipModels() {
+      return this.chipModels;
+    }
+
+    public String getKey() {
+      return this.key;
+    }
+
+    public int getFromIndex() {
+      return this.fromIndex;
+    }
+
+    public int getToIndex() {
+      return this.toIndex;
+    }
+  }
+}
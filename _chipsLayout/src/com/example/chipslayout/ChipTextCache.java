@@ -0,0 +1,98 @@
+package com.example.chipslayout;
+
+import android.graphics.Paint;
+import android.util.LruCache;
+
+/**
+ * Process wide cache of the measured width of chip texts, keyed by the text
+ * and the style of the paint it is measured with, see {@link ChipTextKey}.
+ *
+ * This class is thread safe, texts can be measured from a background thread.
+ */
+public class ChipTextCache {
+
+  /**
+   * The default max number of widths kept in cache.
+   */
+  private static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  /**
+   * The shared instance.
+   */
+  private static ChipTextCache sInstance;
+
+  /**
+   * Measured widths, keyed by text and paint style.
+   */
+  private final LruCache<ChipTextKey, Float> widths;
+
+  /**
+   * The key the widths are looked up with, reused so that a width in cache
+   * is returned without allocating. Locked while it is used.
+   */
+  private final ChipTextKey lookupKey = new ChipTextKey();
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries
+   */
+  public ChipTextCache(int maxEntries) {
+    this.widths = new LruCache<ChipTextKey, Float>(maxEntries);
+  }
+
+  /**
+   * Returns the shared cache instance.
+   *
+   * @return
+   */
+  public static synchronized ChipTextCache getInstance() {
+    if (null == sInstance) {
+      sInstance = new ChipTextCache(DEFAULT_MAX_ENTRIES);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Returns the width of the text measured with the paint, measures it if it
+   * is not in cache yet. The paint must not be used by another thread.
+   *
+   * @param text
+   * @param paint
+   * @return
+   */
+  public float getWidth(CharSequence text, Paint paint) {
+    if (null == text || text.length() == 0) {
+      return 0;
+    }
+    String string = text.toString();
+    Float width;
+    synchronized (this.lookupKey) {
+      this.lookupKey.set(string, paint, 0);
+      width = this.widths.get(this.lookupKey);
+    }
+    if (null == width) {
+      width = paint.measureText(string);
+      this.widths.put(new ChipTextKey(string, paint, 0), width);
+    }
+    return width;
+  }
+
+  /**
+   * Returns the number of widths in cache.
+   *
+   * @return
+   */
+  public int size() {
+    return this.widths.size();
+  }
+
+  /**
+   * Drops the cached widths until at most {@code maxEntries} are left.
+   *
+   * @param maxEntries
+   */
+  public void trimToSize(int maxEntries) {
+    this.widths.trimToSize(maxEntries);
+  }
+}
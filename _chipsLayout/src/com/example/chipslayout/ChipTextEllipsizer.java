@@ -0,0 +1,157 @@
+package com.example.chipslayout;
+
+import android.graphics.Paint;
+import android.util.LruCache;
+
+/**
+ * Process wide cache of chip texts ellipsized to fit a max width, keyed by
+ * the text, the style of the paint (see {@link ChipTextKey}) and the max
+ * width.
+ *
+ * The cut point is found by a binary search over the cumulative advances of
+ * the chars, so a long text (e.g. a full email subject) is measured once and
+ * cut once, however many times the chip is measured.
+ *
+ * This class is thread safe.
+ */
+public class ChipTextEllipsizer {
+
+  /**
+   * The ellipsis appended to a cut text.
+   */
+  public static final String ELLIPSIS = "\u2026";
+
+  /**
+   * The default max number of ellipsized texts kept in cache.
+   */
+  private static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  /**
+   * The shared instance.
+   */
+  private static ChipTextEllipsizer sInstance;
+
+  /**
+   * Ellipsized texts, keyed by text, paint style and max width.
+   */
+  private final LruCache<ChipTextKey, String> texts;
+
+  /**
+   * The key the texts are looked up with, reused so that a text in cache is
+   * returned without allocating. Locked while it is used.
+   */
+  private final ChipTextKey lookupKey = new ChipTextKey();
+
+  /**
+   * The advances of the chars of the text being cut, then their cumulative
+   * sums. Reused, grown when needed.
+   */
+  private float[] advances = new float[64];
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries
+   */
+  public ChipTextEllipsizer(int maxEntries) {
+    this.texts = new LruCache<ChipTextKey, String>(maxEntries);
+  }
+
+  /**
+   * Returns the shared instance.
+   *
+   * @return
+   */
+  public static synchronized ChipTextEllipsizer getInstance() {
+    if (null == sInstance) {
+      sInstance = new ChipTextEllipsizer(DEFAULT_MAX_ENTRIES);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Returns the text if it fits the max width when drawn with the paint, or
+   * its longest prefix followed by {@link #ELLIPSIS} that fits. The paint
+   * must not be used by another thread.
+   *
+   * @param text
+   * @param paint
+   * @param maxWidth
+   * @return
+   */
+  public CharSequence ellipsize(CharSequence text, Paint paint, int maxWidth) {
+    if (null == text || text.length() == 0
+        || ChipTextCache.getInstance().getWidth(text, paint) <= maxWidth) {
+      return text;
+    }
+    String string = text.toString();
+    String ellipsized;
+    synchronized (this.lookupKey) {
+      this.lookupKey.set(string, paint, maxWidth);
+      ellipsized = this.texts.get(this.lookupKey);
+    }
+    if (null == ellipsized) {
+      ellipsized = cut(string, paint, maxWidth);
+      this.texts.put(new ChipTextKey(string, paint, maxWidth), ellipsized);
+    }
+    return ellipsized;
+  }
+
+  /**
+   * Cuts the text so that it fits the max width with the ellipsis.
+   *
+   * @param text
+   * @param paint
+   * @param maxWidth
+   * @return
+   */
+  private synchronized String cut(String text, Paint paint, int maxWidth) {
+    int length = text.length();
+    if (this.advances.length < length) {
+      this.advances = new float[Math.max(length, 2 * this.advances.length)];
+    }
+    float[] sums = this.advances;
+    paint.getTextWidths(text, 0, length, sums);
+    for (int i = 1; i < length; i++) {
+      sums[i] += sums[i - 1];
+    }
+
+    //
+    // The largest count of chars whose advances and the ellipsis fit.
+    float available = maxWidth - paint.measureText(ELLIPSIS);
+    int low = 0;
+    int high = length;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (sums[mid - 1] <= available) {
+        low = mid;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    int count = low;
+    if (count > 0 && Character.isHighSurrogate(text.charAt(count - 1))) {
+      --count;
+    }
+    return text.substring(0, count) + ELLIPSIS;
+  }
+
+  /**
+   * Returns the number of texts in cache.
+   *
+   * @return
+   */
+  public int size() {
+    return this.texts.size();
+  }
+
+  /**
+   * Drops the cached texts until at most {@code maxEntries} are left.
+   *
+   * @param maxEntries
+   */
+  public void trimToSize(int maxEntries) {
+    this.texts.trimToSize(maxEntries);
+  }
+}
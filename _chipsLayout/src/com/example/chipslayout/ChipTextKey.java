@@ -0,0 +1,97 @@
+package com.example.chipslayout;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+
+/**
+ * The key of a text measured or cut by {@link ChipTextCache} and
+ * {@link ChipTextEllipsizer}: the text and everything of the paint its width
+ * depends on, so that paints of different styles (e.g. the chip TextView and
+ * the {@link ChipMetrics} of the snapshot renderer) never share widths.
+ *
+ * The typeface is compared by identity, like {@link Typeface} itself does.
+ * A key can be set again to look texts up without creating a key per
+ * lookup, but not once it is put in a cache.
+ */
+final class ChipTextKey {
+
+  /**
+   * The paint flags the width of a text depends on.
+   */
+  private static final int WIDTH_FLAGS = Paint.FAKE_BOLD_TEXT_FLAG | Paint.LINEAR_TEXT_FLAG
+      | Paint.SUBPIXEL_TEXT_FLAG | Paint.DEV_KERN_TEXT_FLAG;
+
+  private String text;
+  private Typeface typeface;
+  private float textSize;
+  private float textScaleX;
+  private float textSkewX;
+  private float letterSpacing;
+  private int flags;
+  private int maxWidth;
+
+  /**
+   * Constructor of a key to be set before each lookup, see
+   * {@link #set(String, Paint, int)}.
+   */
+  ChipTextKey() {
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param text
+   * @param paint
+   * @param maxWidth the width the text is cut to, 0 for a width only
+   */
+  ChipTextKey(String text, Paint paint, int maxWidth) {
+    this.set(text, paint, maxWidth);
+  }
+
+  /**
+   * Sets the text, the paint style and the max width of the key.
+   *
+   * @param text
+   * @param paint
+   * @param maxWidth the width the text is cut to, 0 for a width only
+   */
+  void set(String text, Paint paint, int maxWidth) {
+    this.text = text;
+    this.typeface = paint.getTypeface();
+    this.textSize = paint.getTextSize();
+    this.textScaleX = paint.getTextScaleX();
+    this.textSkewX = paint.getTextSkewX();
+    this.letterSpacing = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? paint.getLetterSpacing() : 0;
+    this.flags = paint.getFlags() & WIDTH_FLAGS;
+    this.maxWidth = maxWidth;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ChipTextKey)) {
+      return false;
+    }
+    ChipTextKey other = (ChipTextKey) o;
+    return this.maxWidth == other.maxWidth
+        && this.typeface == other.typeface
+        && this.textSize == other.textSize
+        && this.textScaleX == other.textScaleX
+        && this.textSkewX == other.textSkewX
+        && this.letterSpacing == other.letterSpacing
+        && this.flags == other.flags
+        && this.text.equals(other.text);
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = this.text.hashCode();
+    hash = 31 * hash + System.identityHashCode(this.typeface);
+    hash = 31 * hash + Float.floatToIntBits(this.textSize);
+    hash = 31 * hash + Float.floatToIntBits(this.textScaleX);
+    hash = 31 * hash + Float.floatToIntBits(this.textSkewX);
+    hash = 31 * hash + Float.floatToIntBits(this.letterSpacing);
+    hash = 31 * hash + this.flags;
+    return 31 * hash + this.maxWidth;
+  }
+}
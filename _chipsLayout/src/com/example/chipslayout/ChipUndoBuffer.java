@@ -0,0 +1,319 @@
+package com.example.chipslayout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+import android.util.SparseBooleanArray;
+
+/**
+ * The last deletions of a {@link ChipsLayout}, kept to be undone.
+ *
+ * Each step holds the chips deleted at once: their detached views, their
+ * models and their indexes. A view keeps its bound model and its
+ * measurements, so undoing re-attaches it as is, without inflating, binding
+ * or measuring anything. The buffer is bounded by its number of steps, the
+ * views of the steps dropped go back to the {@link ChipPool}. Under memory
+ * pressure the views are released and only the models are kept, the chips
+ * are then created again by an undo.
+ *
+ * Not thread safe, all calls must be made from the UI thread.
+ */
+final class ChipUndoBuffer<E extends IChipModel> {
+
+  /**
+   * The steps, the last one last.
+   */
+  private final ArrayDeque<Step<E>> steps = new ArrayDeque<Step<E>>();
+
+  /**
+   * The max number of steps kept.
+   */
+  private int maxSteps;
+
+  /**
+   * The deletion being made, null if none or if deletions are not kept.
+   */
+  private Step<E> current;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSteps
+   */
+  ChipUndoBuffer(int maxSteps) {
+    this.maxSteps = maxSteps;
+  }
+
+  /**
+   * Sets the max number of steps kept, drops the oldest extra ones.
+   *
+   * @param maxSteps
+   * @param chipPool takes the views of the steps dropped
+   */
+  void setMaxSteps(int maxSteps, ChipPool chipPool) {
+    this.maxSteps = Math.max(0, maxSteps);
+    this.trimTo(this.maxSteps, chipPool);
+  }
+
+  /**
+   * Returns the max number of steps kept, 0 if deletions are not kept.
+   *
+   * @return
+   */
+  int getMaxSteps() {
+    return this.maxSteps;
+  }
+
+  /**
+   * Returns the number of steps kept.
+   *
+   * @return
+   */
+  int size() {
+    return this.steps.size();
+  }
+
+  /**
+   * Adds a step, unless it is empty. The oldest step is dropped if the
+   * buffer is full.
+   *
+   * @param step
+   * @param chipPool takes the views of the step dropped
+   */
+  void push(Step<E> step, ChipPool chipPool) {
+    if (step.size() == 0 || this.maxSteps == 0) {
+      step.releaseViews(chipPool);
+      return;
+    }
+    this.steps.addLast(step);
+    this.trimTo(this.maxSteps, chipPool);
+  }
+
+  /**
+   * Takes the last step out of the buffer.
+   *
+   * @return the step or null if there is none
+   */
+  Step<E> pop() {
+    return this.steps.pollLast();
+  }
+
+  /**
+   * Starts a deletion of the given keys, kept as one step by
+   * {@link #endStep(ChipPool)} unless deletions are not kept.
+   *
+   * @param keys
+   * @param widthMeasureSpec the width measure spec the views were measured
+   *          with
+   */
+  void beginStep(Collection<String> keys, int widthMeasureSpec) {
+    if (this.maxSteps > 0) {
+      this.current = new Step<E>(keys, widthMeasureSpec);
+    }
+  }
+
+  /**
+   * Keeps a chip deleted by the deletion being made, if any.
+   *
+   * @param index the index the chip had
+   * @param chipModel
+   * @param chip the detached view, null if the chip had none
+   */
+  void keep(int index, E chipModel, Chip<E> chip) {
+    if (null != this.current) {
+      this.current.add(index, chipModel, chip);
+    }
+  }
+
+  /**
+   * Ends the deletion being made and adds it as a step.
+   *
+   * @param chipPool takes the views of the step dropped
+   */
+  void endStep(ChipPool chipPool) {
+    if (null != this.current) {
+      this.push(this.current, chipPool);
+      this.current = null;
+    }
+  }
+
+  /**
+   * Undoes the last step: its chips are added back to the layout, the last
+   * deleted first, each at the index it had, with their detached views.
+   *
+   * @param layout
+   * @param widthMeasureSpec the current width measure spec of the layout,
+   *          the views measured with another one are measured again
+   * @return false if there is nothing to undo
+   */
+  boolean undo(ChipsLayout<E> layout, int widthMeasureSpec) {
+    Step<E> step = this.pop();
+    if (null == step) {
+      return false;
+    }
+    for (int i = step.size() - 1; i >= 0; i--) {
+      Chip<E> chip = step.getChip(i);
+      if (null != chip && step.getWidthMeasureSpec() != widthMeasureSpec) {
+        chip.forceLayout();
+      }
+      layout.addDetachedChip(step.getIndex(i), step.getChipModel(i), chip);
+    }
+    return true;
+  }
+
+  /**
+   * Releases the views of all the steps, their models and indexes are kept.
+   *
+   * @param chipPool
+   * @return the number of views released
+   */
+  int releaseViews(ChipPool chipPool) {
+    int count = 0;
+    for (Step<E> step : this.steps) {
+      count += step.releaseViews(chipPool);
+    }
+    return count;
+  }
+
+  /**
+   * Releases the icons of the views kept by all the steps, see
+   * {@link Chip#releaseIcon()}. A view undone gets its icon back when it is
+   * bound to its model again.
+   *
+   * @param icons the res ids of the icons released are added to it, as not
+   *          shown, unless they are in it already
+   * @return the number of icons released
+   */
+  int releaseIcons(SparseBooleanArray icons) {
+    int count = 0;
+    for (Step<E> step : this.steps) {
+      for (int i = 0; i < step.size(); i++) {
+        Chip<E> chip = step.getChip(i);
+        if (null != chip && chip.releaseIcon()) {
+          ++count;
+          if (icons.indexOfKey(chip.getChipIconResId()) < 0) {
+            icons.put(chip.getChipIconResId(), false);
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of views kept by all the steps.
+   *
+   * @return
+   */
+  int viewCount() {
+    int count = 0;
+    for (Step<E> step : this.steps) {
+      for (int i = 0; i < step.size(); i++) {
+        if (null != step.getChip(i)) {
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Drops the oldest steps until at most {@code size} are left.
+   *
+   * @param size
+   * @param chipPool takes the views of the steps dropped
+   */
+  void trimTo(int size, ChipPool chipPool) {
+    while (this.steps.size() > size) {
+      this.steps.pollFirst().releaseViews(chipPool);
+    }
+  }
+
+  /**
+   * The chips deleted at once, in order of deletion.
+   */
+  static final class Step<E extends IChipModel> {
+
+    /**
+     * The keys of the chips to delete: the chips removed meanwhile for
+     * another reason (e.g. a change of the store) are not kept.
+     */
+    private final HashSet<String> keys;
+
+    /**
+     * The width measure spec the views were measured with.
+     */
+    private final int widthMeasureSpec;
+
+    private final ArrayList<E> chipModels = new ArrayList<E>();
+    private final ArrayList<Chip<E>> chips = new ArrayList<Chip<E>>();
+    private final ArrayList<Integer> indexes = new ArrayList<Integer>();
+
+    Step(Collection<String> keys, int widthMeasureSpec) {
+      this.keys = new HashSet<String>(keys);
+      this.widthMeasureSpec = widthMeasureSpec;
+    }
+
+    /**
+     * Keeps a deleted chip, if it is one of the chips to delete.
+     *
+     * @param index the index the chip had
+     * @param chipModel
+     * @param chip the detached view, null if the chip had none
+     * @return whether the chip is kept
+     */
+    boolean add(int index, E chipModel, Chip<E> chip) {
+      if (!this.keys.contains(chipModel.getChipKey())) {
+        return false;
+      }
+      this.indexes.add(index);
+      this.chipModels.add(chipModel);
+      this.chips.add(chip);
+      return true;
+    }
+
+    int size() {
+      return this.chipModels.size();
+    }
+
+    int getIndex(int i) {
+      return this.indexes.get(i);
+    }
+
+    E getChipModel(int i) {
+      return this.chipModels.get(i);
+    }
+
+    /**
+     * Returns the detached view of a chip, null if released.
+     */
+    Chip<E> getChip(int i) {
+      return this.chips.get(i);
+    }
+
+    int getWidthMeasureSpec() {
+      return this.widthMeasureSpec;
+    }
+
+    /**
+     * Releases the views, the models and indexes are kept.
+     *
+     * @param chipPool
+     * @return the number of views released
+     */
+    int releaseViews(ChipPool chipPool) {
+      int count = 0;
+      for (int i = 0; i < this.chips.size(); i++) {
+        Chip<E> chip = this.chips.get(i);
+        if (null != chip) {
+          chipPool.release(chip);
+          this.chips.set(i, null);
+          ++count;
+        }
+      }
+      return count;
+    }
+  }
+}
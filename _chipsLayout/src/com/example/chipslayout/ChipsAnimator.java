@@ -0,0 +1,277 @@
+package com.example.chipslayout;
+
+import java.util.ArrayList;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.graphics.Rect;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Animates the changes of a {@link ChipsLayout} (chips added, deleted,
+ * moved, collapsed or expanded).
+ *
+ * The stock LayoutTransition lays the whole ViewGroup out on every frame,
+ * which is far too slow with hundreds of chips. Instead, the layout is done
+ * once: each view is laid out at its new position right away and then
+ * translated back to where it was drawn before, and the translation is
+ * animated to zero on a hardware layer. Appearing chips fade in, deleted
+ * chips fade out where they were. Only the views in the visible part of the
+ * layout are animated, the others just snap.
+ */
+final class ChipsAnimator {
+
+  /**
+   * The duration of the animations.
+   */
+  static final long DURATION_MS = 200;
+
+  /**
+   * The scale deleted chips shrink to while fading out.
+   */
+  private static final float DISAPPEAR_SCALE = 0.8f;
+
+  /**
+   * The animated layout.
+   */
+  private final ViewGroup parent;
+
+  /**
+   * Whether the changes are animated.
+   */
+  private boolean enabled = true;
+
+  /**
+   * Whether the next layout is the result of a change to animate.
+   */
+  private boolean armed;
+
+  /**
+   * Whether the current layout is animated.
+   */
+  private boolean animating;
+
+  /**
+   * The visible part of the layout, in its own coordinates.
+   */
+  private final Rect visibleRect = new Rect();
+
+  /**
+   * The views to fade in after the next layout.
+   */
+  private final ArrayList<View> appearingViews = new ArrayList<View>();
+
+  /**
+   * Constructor.
+   *
+   * @param parent
+   */
+  ChipsAnimator(ViewGroup parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * Enables or disables the animations.
+   *
+   * @param enabled
+   */
+  void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+    if (!enabled) {
+      this.armed = false;
+      this.appearingViews.clear();
+    }
+  }
+
+  /**
+   * Returns whether the animations are enabled.
+   *
+   * @return
+   */
+  boolean isEnabled() {
+    return this.enabled;
+  }
+
+  /**
+   * Animates the next layout: called whenever the chips are changed.
+   */
+  void arm() {
+    if (this.enabled) {
+      this.armed = true;
+    }
+  }
+
+  /**
+   * Fades the given view in after the next layout, instead of moving it
+   * from wherever it was drawn before.
+   *
+   * @param view
+   */
+  void markAppearing(View view) {
+    if (this.enabled) {
+      this.armed = true;
+      this.appearingViews.add(view);
+    }
+  }
+
+  /**
+   * Called before the children are laid out.
+   *
+   * @return whether the layout is animated, i.e.
+   *         {@link #animateMove(View, int, int)} is to be called for each view
+   *         laid out
+   */
+  boolean beginLayout() {
+    this.animating = this.armed
+        && this.parent.getWindowToken() != null
+        && this.parent.getLocalVisibleRect(this.visibleRect);
+    this.armed = false;
+    return this.animating;
+  }
+
+  /**
+   * Animates a view just laid out from where it was drawn before.
+   *
+   * @param view
+   * @param oldLeft the left of the view before the layout
+   * @param oldTop the top of the view before the layout
+   */
+  void animateMove(View view, int oldLeft, int oldTop) {
+    int dx = oldLeft - view.getLeft();
+    int dy = oldTop - view.getTop();
+    if ((dx == 0 && dy == 0) || view.getVisibility() != View.VISIBLE) {
+      return;
+    }
+    //
+    // Continue from where an interrupted animation is.
+    float fromX = dx + view.getTranslationX();
+    float fromY = dy + view.getTranslationY();
+    view.animate().cancel();
+    if (!this.isVisible(oldTop + fromY - dy, view.getHeight())
+        && !this.isVisible(view.getTop(), view.getHeight())) {
+      view.setTranslationX(0);
+      view.setTranslationY(0);
+      return;
+    }
+    view.setTranslationX(fromX);
+    view.setTranslationY(fromY);
+    view.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+    view.animate()
+        .translationX(0)
+        .translationY(0)
+        .alpha(1)
+        .setDuration(DURATION_MS)
+        .setListener(new LayerRemover(view));
+  }
+
+  /**
+   * Called after the children are laid out: fades the appearing views in.
+   */
+  void endLayout() {
+    int size = this.appearingViews.size();
+    for (int i = 0; i < size; i++) {
+      View view = this.appearingViews.get(i);
+      if (!this.animating || view.getParent() != this.parent
+          || view.getVisibility() != View.VISIBLE
+          || !this.isVisible(view.getTop(), view.getHeight())) {
+        continue;
+      }
+      view.animate().cancel();
+      view.setTranslationX(0);
+      view.setTranslationY(0);
+      view.setAlpha(0);
+      view.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+      view.animate()
+          .alpha(1)
+          .setDuration(DURATION_MS)
+          .setListener(new LayerRemover(view));
+    }
+    this.appearingViews.clear();
+    this.animating = false;
+  }
+
+  /**
+   * Removes a view from the layout, fading it out where it is if it is
+   * visible. The view is kept drawn (but not laid out) until it is faded out.
+   *
+   * @param view
+   */
+  void removeView(final View view) {
+    if (!this.enabled || this.parent.getWindowToken() == null
+        || view.getVisibility() != View.VISIBLE
+        || !this.parent.getLocalVisibleRect(this.visibleRect)
+        || !this.isVisible(view.getTop() + view.getTranslationY(), view.getHeight())) {
+      this.parent.removeView(view);
+      return;
+    }
+    this.armed = true;
+    view.animate().cancel();
+    this.parent.startViewTransition(view);
+    this.parent.removeView(view);
+    view.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+    view.animate()
+        .alpha(0)
+        .scaleX(DISAPPEAR_SCALE)
+        .scaleY(DISAPPEAR_SCALE)
+        .setDuration(DURATION_MS)
+        .setListener(new AnimatorListenerAdapter() {
+          @Override
+          public void onAnimationEnd(Animator animation) {
+            view.animate().setListener(null);
+            parent.endViewTransition(view);
+            resetView(view);
+          }
+        });
+  }
+
+  /**
+   * Returns whether the vertical span is in the visible part of the layout.
+   *
+   * @param top
+   * @param height
+   * @return
+   */
+  private boolean isVisible(float top, int height) {
+    return top < this.visibleRect.bottom && top + height > this.visibleRect.top;
+  }
+
+  /**
+   * Puts a view back to its normal state, e.g. before it is pooled.
+   *
+   * @param view
+   */
+  static void resetView(View view) {
+    view.animate().cancel();
+    view.setLayerType(View.LAYER_TYPE_NONE, null);
+    view.setAlpha(1);
+    view.setScaleX(1);
+    view.setScaleY(1);
+    view.setTranslationX(0);
+    view.setTranslationY(0);
+  }
+
+  /**
+   * Takes the view off its hardware layer when the animation is over.
+   * withLayer() would do the same but needs API 16.
+   */
+  private static final class LayerRemover extends AnimatorListenerAdapter {
+
+    private final View view;
+
+    LayerRemover(View view) {
+      this.view = view;
+    }
+
+    @Override
+    public void onAnimationEnd(Animator animation) {
+      this.view.animate().setListener(null);
+      this.view.setLayerType(View.LAYER_TYPE_NONE, null);
+    }
+
+    @Override
+    public void onAnimationCancel(Animator animation) {
+      this.view.setLayerType(View.LAYER_TYPE_NONE, null);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.example.chipslayout;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The background thread the chips work is done on (e.g. line-breaking of
+ * huge chip sets), so that it stays off the UI thread.
+ */
+final class ChipsBackground {
+
+  /**
+   * The single background thread, created when first needed.
+   */
+  private static ExecutorService sExecutor;
+  
+  private ChipsBackground() {
+  }
+  
+  /**
+   * Runs the task on the background thread.
+   * 
+   * @param task
+   */
+  static synchronized void execute(Runnable task) {
+    if (null == sExecutor) {
+      sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ChipsBackground");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.NORM_PRIORITY - 1);
+          return thread;
+        }
+      });
+    }
+    sExecutor.execute(task);
+  }
+}
@@ -0,0 +1,722 @@
+package com.example.chipslayout;
+
+/**
+ * The flow layout math of the chips: given the size of each chip and the
+ * available width, breaks the chips into rows and computes the position of
+ * each chip.
+ *
+ * The flow only works on sizes, it knows nothing about views, so that it can
+ * be used for chips that are not views (yet).
+ *
+ * The rows are remembered, so after a change only the rows starting from the
+ * one holding the first changed chip are flowed again.
+ */
+final class ChipsFlow {
+
+  /**
+   * The size of a chip which takes no space, i.e. a GONE view.
+   */
+  static final int GONE = -1;
+
+  /**
+   * Returned from {@link #flow(int)} when nothing needs to be flowed.
+   */
+  static final int CLEAN = Integer.MAX_VALUE;
+
+  /**
+   * The number of chips.
+   */
+  private int count;
+
+  /**
+   * The width of each chip.
+   */
+  private int[] widths = new int[0];
+
+  /**
+   * The height of each chip.
+   */
+  private int[] heights = new int[0];
+
+  /**
+   * The left of each chip.
+   */
+  private int[] xs = new int[0];
+
+  /**
+   * The top of each chip.
+   */
+  private int[] ys = new int[0];
+
+  /**
+   * The number of rows.
+   */
+  private int rowCount;
+
+  /**
+   * The index of the first chip of each row.
+   */
+  private int[] rowStarts = new int[0];
+
+  /**
+   * The top of each row.
+   */
+  private int[] rowTops = new int[0];
+
+  /**
+   * The max width of the rows above each row.
+   */
+  private int[] rowWidthsBefore = new int[0];
+
+  /**
+   * The width of each row.
+   */
+  private int[] rowWidths = new int[0];
+
+  /**
+   * The top of the first row, e.g. the space of the chips dropped above the
+   * first one by a paged layout.
+   */
+  private int top;
+
+  /**
+   * The width the chips were flowed in, -1 if never flowed.
+   */
+  private int maxWidth = -1;
+
+  /**
+   * The index of the first chip whose position needs to be computed again.
+   */
+  private int dirtyFrom = 0;
+
+  /**
+   * The index of the last changed chip if only a range of chips is changed
+   * (e.g. by {@link #move(int, int)}), {@link #CLEAN} if any chip from
+   * {@link #dirtyFrom} on may be changed. Past it the flow can stop as soon
+   * as a row starts where it used to.
+   */
+  private int dirtyTo = CLEAN;
+
+  /**
+   * The index the last flow stopped at, the chips from it on kept their
+   * positions.
+   */
+  private int flowEnd;
+
+  /**
+   * Bumped on every change of the chips, to tell whether a copy flowed in
+   * background is still up to date.
+   */
+  private int version;
+
+  /**
+   * The width of the widest row.
+   */
+  private int width;
+
+  /**
+   * The bottom of the last row.
+   */
+  private int height;
+
+  /**
+   * The right of the last chip.
+   */
+  private int endX;
+
+  /**
+   * The top of the last row.
+   */
+  private int endY;
+
+  /**
+   * Sets the number of chips. The chips from {@code fromIndex} on are
+   * considered changed, e.g. because a chip is inserted or removed there.
+   *
+   * @param count
+   * @param fromIndex
+   */
+  void setCount(int count, int fromIndex) {
+    if (count > this.widths.length) {
+      int capacity = Math.max(count, this.widths.length * 3 / 2 + 8);
+      this.widths = grow(this.widths, capacity);
+      this.heights = grow(this.heights, capacity);
+      this.xs = grow(this.xs, capacity);
+      this.ys = grow(this.ys, capacity);
+    }
+    this.count = count;
+    invalidateFrom(fromIndex);
+  }
+
+  /**
+   * Returns the number of chips.
+   *
+   * @return
+   */
+  int getCount() {
+    return this.count;
+  }
+
+  /**
+   * Sets the size of a chip, the chip is considered changed only if the size
+   * is really changed.
+   *
+   * @param index
+   * @param width the width or {@link #GONE}
+   * @param height
+   * @return whether the size is changed
+   */
+  boolean setSize(int index, int width, int height) {
+    if (this.widths[index] != width || this.heights[index] != height) {
+      this.widths[index] = width;
+      this.heights[index] = height;
+      invalidateFrom(index);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sets the top of the first row, all of the chips are flowed again if it
+   * is changed.
+   *
+   * @param top
+   */
+  void setTop(int top) {
+    if (top != this.top) {
+      this.top = top;
+      invalidate();
+    }
+  }
+
+  /**
+   * Returns the top of the first row.
+   *
+   * @return
+   */
+  int getTop() {
+    return this.top;
+  }
+
+  /**
+   * Marks the chips from the given index on to be flowed again.
+   *
+   * @param index
+   */
+  void invalidateFrom(int index) {
+    this.dirtyFrom = Math.min(this.dirtyFrom, Math.max(0, index));
+    this.dirtyTo = CLEAN;
+    ++this.version;
+  }
+
+  /**
+   * Marks the chips in [from, to] to be flowed again, the chips after them
+   * are not changed.
+   *
+   * @param from
+   * @param to
+   */
+  void invalidateRange(int from, int to) {
+    if (this.dirtyFrom == CLEAN) {
+      this.dirtyFrom = Math.max(0, from);
+      this.dirtyTo = to;
+      ++this.version;
+    }
+    else {
+      invalidateFrom(from);
+    }
+  }
+
+  /**
+   * Marks all of the chips to be flowed again.
+   */
+  void invalidate() {
+    invalidateFrom(0);
+  }
+
+  /**
+   * Moves the size of a chip from one index to another, the chips in between
+   * shift by one.
+   *
+   * @param from
+   * @param to
+   */
+  void move(int from, int to) {
+    if (from == to) {
+      return;
+    }
+    int width = this.widths[from];
+    int height = this.heights[from];
+    if (from < to) {
+      System.arraycopy(this.widths, from + 1, this.widths, from, to - from);
+      System.arraycopy(this.heights, from + 1, this.heights, from, to - from);
+    }
+    else {
+      System.arraycopy(this.widths, to, this.widths, to + 1, from - to);
+      System.arraycopy(this.heights, to, this.heights, to + 1, from - to);
+    }
+    this.widths[to] = width;
+    this.heights[to] = height;
+    invalidateRange(Math.min(from, to), Math.max(from, to));
+  }
+
+  /**
+   * Returns the index the last flow stopped at: the chips from it on kept
+   * their positions.
+   *
+   * @return
+   */
+  int getFlowEnd() {
+    return this.flowEnd;
+  }
+
+  /**
+   * Returns the version of the chips, bumped on every change.
+   *
+   * @return
+   */
+  int getVersion() {
+    return this.version;
+  }
+
+  /**
+   * Returns the number of chips from the start whose positions are up to
+   * date, the others are not flowed yet.
+   *
+   * @return
+   */
+  int getFlowedCount() {
+    return this.dirtyFrom == CLEAN ? this.count : Math.min(this.count, this.dirtyFrom);
+  }
+
+  /**
+   * Returns the index of the chip {@link #flow(int)} would restart from.
+   *
+   * @param maxWidth
+   * @return the index, or the chip count if nothing needs to be flowed
+   */
+  int getRestartIndex(int maxWidth) {
+    if (maxWidth != this.maxWidth) {
+      return 0;
+    }
+    if (this.dirtyFrom == CLEAN) {
+      return this.count;
+    }
+    int row = findRestartRow(this.dirtyFrom);
+    boolean resume = row < this.rowCount && this.rowStarts[row] < this.dirtyFrom;
+    return resume ? this.rowStarts[row] : 0;
+  }
+
+  /**
+   * Returns whether anything needs to be flowed in the given width.
+   *
+   * @param maxWidth
+   * @return
+   */
+  boolean isDirty(int maxWidth) {
+    return maxWidth != this.maxWidth || this.dirtyFrom != CLEAN;
+  }
+
+  /**
+   * Flows the changed chips in the given width.
+   *
+   * @param maxWidth
+   * @return the index of the first chip whose position is computed again, or
+   *         {@link #CLEAN} if nothing is changed
+   */
+  int flow(int maxWidth) {
+    return flow(maxWidth, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Flows at most {@code limit} of the changed chips in the given width, the
+   * chips after them are left to be flowed later, see
+   * {@link #getFlowedCount()}.
+   *
+   * @param maxWidth
+   * @param limit
+   * @return the index of the first chip whose position is computed again, or
+   *         {@link #CLEAN} if nothing is changed
+   */
+  int flow(int maxWidth, int limit) {
+    if (maxWidth != this.maxWidth) {
+      this.maxWidth = maxWidth;
+      this.dirtyFrom = 0;
+      this.dirtyTo = CLEAN;
+    }
+    if (this.dirtyFrom == CLEAN) {
+      return CLEAN;
+    }
+
+    //
+    // Restart from the row before the one holding the first changed chip,
+    // unless the changed chip is in the middle of its row: a chip getting
+    // narrower at the start of a row may now fit in the row above.
+    int row = findRestartRow(this.dirtyFrom);
+    boolean resume = row < this.rowCount && this.rowStarts[row] < this.dirtyFrom;
+    if (!resume) {
+      row = 0;
+    }
+    int start = resume ? this.rowStarts[row] : 0;
+    int heightPos = resume ? this.rowTops[row] : this.top;
+    int finalWidth = resume ? this.rowWidthsBefore[row] : 0;
+    int oldRowCount = this.rowCount;
+    int convergeAfter = this.dirtyTo;
+    this.rowCount = row;
+
+    int finalHeight = heightPos;
+    int widthPos = 0;
+    boolean rowOpen = false;
+    int end = start + Math.min(limit, this.count - start);
+    for (int i = start; i < end; i++) {
+      int childWidth = this.widths[i];
+      if (childWidth == GONE) {
+        continue;
+      }
+      int childHeight = this.heights[i];
+      if (!rowOpen || widthPos + childWidth > maxWidth) {
+        //
+        // New Line
+        if (rowOpen) {
+          this.rowWidths[this.rowCount - 1] = widthPos;
+          finalWidth = Math.max(finalWidth, widthPos);
+          heightPos = finalHeight;
+          if (i > convergeAfter && converge(i, heightPos, finalWidth, oldRowCount)) {
+            this.flowEnd = i;
+            this.dirtyFrom = CLEAN;
+            this.dirtyTo = CLEAN;
+            return start;
+          }
+        }
+        addRow(i, heightPos, finalWidth);
+        rowOpen = true;
+        widthPos = 0;
+      }
+      this.xs[i] = widthPos;
+      this.ys[i] = heightPos;
+      widthPos += childWidth;
+      finalHeight = Math.max(finalHeight, heightPos + childHeight);
+    }
+    if (rowOpen) {
+      this.rowWidths[this.rowCount - 1] = widthPos;
+    }
+
+    this.width = Math.max(finalWidth, widthPos);
+    this.height = finalHeight;
+    this.endX = widthPos;
+    this.endY = heightPos;
+    this.flowEnd = end;
+    this.dirtyFrom = end < this.count ? end : CLEAN;
+    this.dirtyTo = CLEAN;
+    return start;
+  }
+
+  /**
+   * Tries to stop flowing at a new row: if the row starts at the same chip
+   * and at the same top as it used to, all of the rows from it on are not
+   * changed and are kept.
+   *
+   * @param start the first chip of the new row
+   * @param top the top of the new row
+   * @param widthBefore the max width of the rows above the new row
+   * @param oldRowCount the number of rows before flowing
+   * @return whether the flow can stop
+   */
+  private boolean converge(int start, int top, int widthBefore, int oldRowCount) {
+    int row = this.rowCount;
+    if (row >= oldRowCount || this.rowStarts[row] != start || this.rowTops[row] != top) {
+      return false;
+    }
+    //
+    // The rows above may be wider or narrower than they used to.
+    int widthPos = widthBefore;
+    for (int r = row; r < oldRowCount; r++) {
+      this.rowWidthsBefore[r] = widthPos;
+      widthPos = Math.max(widthPos, this.rowWidths[r]);
+    }
+    this.rowCount = oldRowCount;
+    this.width = widthPos;
+    return true;
+  }
+
+  /**
+   * Returns the row to restart flowing from for a change at the given index.
+   *
+   * @param index
+   * @return
+   */
+  private int findRestartRow(int index) {
+    //
+    // Binary search the last row starting before the index.
+    int low = 0;
+    int high = this.rowCount - 1;
+    int row = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (this.rowStarts[mid] < index) {
+        row = mid;
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Appends a row.
+   *
+   * @param start
+   * @param top
+   * @param widthBefore
+   */
+  private void addRow(int start, int top, int widthBefore) {
+    if (this.rowCount == this.rowStarts.length) {
+      int capacity = this.rowStarts.length * 3 / 2 + 8;
+      this.rowStarts = grow(this.rowStarts, capacity);
+      this.rowTops = grow(this.rowTops, capacity);
+      this.rowWidthsBefore = grow(this.rowWidthsBefore, capacity);
+      this.rowWidths = grow(this.rowWidths, capacity);
+    }
+    this.rowStarts[this.rowCount] = start;
+    this.rowTops[this.rowCount] = top;
+    this.rowWidthsBefore[this.rowCount] = widthBefore;
+    ++this.rowCount;
+  }
+
+  /**
+   * Returns the left of a chip.
+   *
+   * @param index
+   * @return
+   */
+  int getX(int index) {
+    return this.xs[index];
+  }
+
+  /**
+   * Returns the top of a chip.
+   *
+   * @param index
+   * @return
+   */
+  int getY(int index) {
+    return this.ys[index];
+  }
+
+  /**
+   * Returns the width of a chip.
+   *
+   * @param index
+   * @return
+   */
+  int getChipWidth(int index) {
+    return this.widths[index];
+  }
+
+  /**
+   * Returns the height of a chip.
+   *
+   * @param index
+   * @return
+   */
+  int getChipHeight(int index) {
+    return this.heights[index];
+  }
+
+  /**
+   * Returns the index of the next chip, from the given one on, at least as
+   * wide as the given width here or in another flow of the same chips, e.g.
+   * a chip whose text may be ellipsized in one of the flows.
+   *
+   * @param other
+   * @param from
+   * @param width
+   * @return the index, or the chip count if there is none
+   */
+  int nextWiderChip(ChipsFlow other, int from, int width) {
+    int count = Math.min(this.count, other.count);
+    for (int i = from; i < count; i++) {
+      if (this.widths[i] >= width || other.widths[i] >= width) {
+        return i;
+      }
+    }
+    return this.count;
+  }
+
+  /**
+   * Returns the width of the widest row.
+   *
+   * @return
+   */
+  int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Returns the bottom of the last row.
+   *
+   * @return
+   */
+  int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Returns the right of the last chip, where the next view would be placed.
+   *
+   * @return
+   */
+  int getEndX() {
+    return this.endX;
+  }
+
+  /**
+   * Returns the top of the last row.
+   *
+   * @return
+   */
+  int getEndY() {
+    return this.endY;
+  }
+
+  /**
+   * Returns the number of rows.
+   *
+   * @return
+   */
+  int getRowCount() {
+    return this.rowCount;
+  }
+
+  /**
+   * Returns the index of the first chip of a row.
+   *
+   * @param row
+   * @return
+   */
+  int getRowStart(int row) {
+    return this.rowStarts[row];
+  }
+
+  /**
+   * Returns the top of a row.
+   *
+   * @param row
+   * @return
+   */
+  int getRowTop(int row) {
+    return this.rowTops[row];
+  }
+
+  /**
+   * Returns a copy of this flow, e.g. to be flowed in background.
+   *
+   * @return
+   */
+  ChipsFlow copy() {
+    ChipsFlow copy = new ChipsFlow();
+    copy.copyFrom(this);
+    return copy;
+  }
+
+  /**
+   * Copies the state of another flow, into the arrays of this one as long
+   * as they are large enough, so that a flow kept in a cache is reused.
+   *
+   * @param other
+   */
+  void copyFrom(ChipsFlow other) {
+    int[] widths = copyOf(other.widths, this.widths, other.count);
+    int[] heights = copyOf(other.heights, this.heights, other.count);
+    int[] xs = copyOf(other.xs, this.xs, other.count);
+    int[] ys = copyOf(other.ys, this.ys, other.count);
+    int[] rowStarts = copyOf(other.rowStarts, this.rowStarts, other.rowCount);
+    int[] rowTops = copyOf(other.rowTops, this.rowTops, other.rowCount);
+    int[] rowWidthsBefore = copyOf(other.rowWidthsBefore, this.rowWidthsBefore, other.rowCount);
+    int[] rowWidths = copyOf(other.rowWidths, this.rowWidths, other.rowCount);
+    this.set(other);
+    this.widths = widths;
+    this.heights = heights;
+    this.xs = xs;
+    this.ys = ys;
+    this.rowStarts = rowStarts;
+    this.rowTops = rowTops;
+    this.rowWidthsBefore = rowWidthsBefore;
+    this.rowWidths = rowWidths;
+  }
+
+  /**
+   * Takes over the state of another flow, e.g. a copy flowed in background.
+   * The other flow must not be used anymore.
+   *
+   * @param other
+   */
+  void set(ChipsFlow other) {
+    this.count = other.count;
+    this.widths = other.widths;
+    this.heights = other.heights;
+    this.xs = other.xs;
+    this.ys = other.ys;
+    this.rowCount = other.rowCount;
+    this.rowStarts = other.rowStarts;
+    this.rowTops = other.rowTops;
+    this.rowWidthsBefore = other.rowWidthsBefore;
+    this.rowWidths = other.rowWidths;
+    this.top = other.top;
+    this.maxWidth = other.maxWidth;
+    this.dirtyFrom = other.dirtyFrom;
+    this.dirtyTo = other.dirtyTo;
+    this.flowEnd = other.flowEnd;
+    this.version = other.version;
+    this.width = other.width;
+    this.height = other.height;
+    this.endX = other.endX;
+    this.endY = other.endY;
+  }
+
+  /**
+   * Copies the state of a flow kept earlier, e.g. the flow of another
+   * width, which can still be used afterwards. Unlike
+   * {@link #set(ChipsFlow)} the version keeps increasing, so that a flow
+   * started in background before is not taken for this one.
+   *
+   * @param other
+   */
+  void restore(ChipsFlow other) {
+    int version = this.version;
+    this.copyFrom(other);
+    this.version = version + 1;
+  }
+
+  /**
+   * Copies the first items of an array into another one, or into a copy of
+   * the array if the other one is too small.
+   *
+   * @param array
+   * @param into
+   * @param length the number of items used
+   * @return the array copied into
+   */
+  private static int[] copyOf(int[] array, int[] into, int length) {
+    if (into.length < length) {
+      return array.clone();
+    }
+    System.arraycopy(array, 0, into, 0, length);
+    return into;
+  }
+
+  /**
+   * Returns a copy of the given array with the given capacity.
+   *
+   * @param array
+   * @param capacity
+   * @return
+   */
+  private static int[] grow(int[] array, int capacity) {
+    int[] grown = new int[capacity];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+}
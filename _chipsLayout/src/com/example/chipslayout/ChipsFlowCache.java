@@ -0,0 +1,137 @@
+package com.example.chipslayout;
+
+/**
+ * The flows of the chips of a {@link ChipsLayout} in the widths it was
+ * measured in (e.g. before a rotation or a side panel opening), so that
+ * going back to a width reuses its rows and positions.
+ *
+ * The flows are keyed by the width measure spec and by the version of the
+ * chips: changing the chips, or the size of a chip, only bumps the version,
+ * so that the flows kept become stale. The flows of the least recently used
+ * widths and the stale ones are overwritten in place, their arrays reused.
+ *
+ * Not thread safe, all calls must be made from the UI thread.
+ */
+final class ChipsFlowCache {
+
+  /**
+   * The width measure spec of each flow.
+   */
+  private final int[] specs;
+
+  /**
+   * The version of the chips of each flow.
+   */
+  private final int[] versions;
+
+  /**
+   * When each flow was last used, the greater the later.
+   */
+  private final long[] uses;
+
+  /**
+   * The flows, null for a free entry.
+   */
+  private final ChipsFlow[] flows;
+
+  /**
+   * The version of the chips.
+   */
+  private int version;
+
+  /**
+   * Incremented on every use of a flow.
+   */
+  private long useCount;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize the max number of flows kept
+   */
+  ChipsFlowCache(int maxSize) {
+    this.specs = new int[maxSize];
+    this.versions = new int[maxSize];
+    this.uses = new long[maxSize];
+    this.flows = new ChipsFlow[maxSize];
+  }
+
+  /**
+   * The chips are changed: the flows kept are not used anymore.
+   */
+  void invalidate() {
+    ++this.version;
+  }
+
+  /**
+   * Keeps a copy of the flow of the chips in the given width.
+   *
+   * @param widthMeasureSpec
+   * @param flow
+   */
+  void put(int widthMeasureSpec, ChipsFlow flow) {
+    int index = this.indexOf(widthMeasureSpec);
+    if (index < 0) {
+      index = 0;
+      for (int i = 0; i < this.flows.length; i++) {
+        if (null == this.flows[i] || this.versions[i] != this.version) {
+          index = i;
+          break;
+        }
+        if (this.uses[i] < this.uses[index]) {
+          index = i;
+        }
+      }
+    }
+    if (null == this.flows[index]) {
+      this.flows[index] = flow.copy();
+    }
+    else {
+      this.flows[index].copyFrom(flow);
+    }
+    this.specs[index] = widthMeasureSpec;
+    this.versions[index] = this.version;
+    this.uses[index] = ++this.useCount;
+  }
+
+  /**
+   * Returns the flow of the chips kept for the given width. The flow stays
+   * in the cache, it must only be read or copied.
+   *
+   * @param widthMeasureSpec
+   * @return the flow or null if there is none for the current chips
+   */
+  ChipsFlow get(int widthMeasureSpec) {
+    int index = this.indexOf(widthMeasureSpec);
+    if (index < 0) {
+      return null;
+    }
+    this.uses[index] = ++this.useCount;
+    return this.flows[index];
+  }
+
+  /**
+   * Drops all of the flows, e.g. when memory is trimmed.
+   */
+  void evictAll() {
+    for (int i = 0; i < this.flows.length; i++) {
+      this.flows[i] = null;
+    }
+  }
+
+  /**
+   * Returns the index of the flow of the current chips in the given width.
+   *
+   * @param widthMeasureSpec
+   * @return the index or -1 if there is none
+   */
+  private int indexOf(int widthMeasureSpec) {
+    for (int i = 0; i < this.flows.length; i++) {
+      if (null != this.flows[i] && this.specs[i] == widthMeasureSpec
+          && this.versions[i] == this.version) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -1,9 +1,17 @@
 package com.example.chipslayout;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -13,11 +21,15 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.Gravity;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.ViewGroup;
 import android.widget.EditText;
 import android.widget.ImageView;
@@ -55,12 +67,102 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
    * then place the EditText to this line, or else to the next row. 
    */
   private static final int EDITTEXT_MINWIDTH_DP = 150;
+  
+  /**
+   * The text size (in dip) of the hidden count badge.
+   */
+  private static final int HIDE_COUNT_TEXT_SIZE_DP = 13;
+
+  /**
+   * The max time (in ms) spent creating the chips left by a lazy collapse in
+   * one batch, so that expanding does not block a frame.
+   */
+  private static final long MATERIALIZE_BATCH_MS = 4;
+
+  /**
+   * The max number of widths whose flow is kept, see {@link #layoutCache}.
+   */
+  private static final int LAYOUT_CACHE_SIZE = 3;
 
   /**
    * All of the chips list being shown in the UI.
    */
   private ArrayList<E> chipsList = new ArrayList<E>();
   
+  /**
+   * The number of chips having a view: the first ones of {@link #chipsList}.
+   * The others are kept as models by a lazy collapse, see
+   * {@link #setLazyCollapse(boolean)}.
+   */
+  private int materializedCount;
+  
+  /**
+   * Whether collapsing keeps the chips after the first row as models only.
+   */
+  private boolean lazyCollapse;
+  
+  /**
+   * Whether the first row of the lazily collapsed layout is known to be
+   * full, so that no more chips are created for it.
+   */
+  private boolean collapsedRowFull;
+  
+  /**
+   * The order the chips are kept in, null to keep them in order of
+   * addition.
+   */
+  private Comparator<? super E> chipComparator;
+  
+  /**
+   * The store the chips are taken from, null if none.
+   */
+  private ChipStore<E> chipStore;
+  
+  /**
+   * The version of the store snapshot shown.
+   */
+  private int appliedStoreVersion;
+  
+  /**
+   * Whether the changes of the store are being applied: the chips are then
+   * changed directly, not through the store.
+   */
+  private boolean applyingStoreChanges;
+  
+  /**
+   * Whether applying the store changes is posted already.
+   */
+  private final AtomicBoolean storeApplyPosted = new AtomicBoolean();
+  
+  /**
+   * Applies the store changes on the UI thread.
+   */
+  private final Runnable storeApplier = new Runnable() {
+    @Override
+    public void run() {
+      applyStoreChanges();
+    }
+  };
+  
+  /**
+   * Notified by the store on the thread changing it, posts the changes to
+   * the UI thread. Changes made while one apply is posted are applied by it.
+   */
+  private final ChipStore.OnChangeListener storeListener = new ChipStore.OnChangeListener() {
+    @Override
+    public void onStoreChanged(ChipStore<?> store) {
+      if (storeApplyPosted.compareAndSet(false, true)) {
+        post(storeApplier);
+      }
+    }
+  };
+  
+  /**
+   * The view-less chip sizes, to guess how many chips fill the first row of
+   * a lazily collapsed layout. Created when needed.
+   */
+  private ChipMetrics collapseMetrics;
+  
   /**
    * Android context
    */
@@ -94,6 +196,51 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
    */
   private ImageView hideCountImageView;
   
+  /**
+   * The Bitmap shown by {@link #hideCountImageView}, reused by every collapse.
+   */
+  private Bitmap hideCountBitmap;
+  
+  /**
+   * The Canvas drawing on {@link #hideCountBitmap}.
+   */
+  private final Canvas hideCountCanvas = new Canvas();
+  
+  /**
+   * The Paint of the hidden count text.
+   */
+  private final Paint hideCountPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+  
+  /**
+   * The bounds of the hidden count text.
+   */
+  private final Rect hideCountBounds = new Rect();
+  
+  /**
+   * The chars of the hidden count text: "+" and up to 10 digits.
+   */
+  private final char[] hideCountChars = new char[11];
+  
+  /**
+   * The count currently drawn on {@link #hideCountBitmap}, -1 if none.
+   */
+  private int drawnHideCount = -1;
+  
+  /**
+   * {@value #IMAGEVIEW_SIZE} dip in pixels.
+   */
+  private int iconSizePx;
+  
+  /**
+   * {@value #IMAGEVIEW_MINSPACE_DP} dip in pixels.
+   */
+  private int iconMinSpacePx;
+  
+  /**
+   * {@value #EDITTEXT_MINWIDTH_DP} dip in pixels.
+   */
+  private int editTextMinWidthPx;
+  
   /**
    * Custom attribute: the hint of the EditText
    */
@@ -110,6 +257,264 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
    */
   private int iconRightInt;
   
+  /**
+   * The detached chips ready to be reused by {@link #createChip}.
+   */
+  private ChipPool chipPool = new ChipPool();
+  
+  /**
+   * The chips by their keys, to find the chip of a changed model.
+   */
+  private HashMap<String, Chip<E>> chipsByKey = new HashMap<String, Chip<E>>();
+  
+  /**
+   * Posts the model changes made on other threads to the UI thread.
+   */
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  
+  /**
+   * Whether the layout is attached to a window, the observable chip models
+   * are only listened to meanwhile.
+   */
+  private boolean attachedToWindow;
+  
+  /**
+   * Listens to the observable chip models of the chip views while the layout
+   * is attached, rebinds the chip of the model changed. Registered on
+   * attach and removed on detach, so that a model outliving the screen does
+   * not keep the layout.
+   */
+  private final IChipModelListener modelListener = new IChipModelListener() {
+    @Override
+    public void onChipChanged(final IChipModel chipModel) {
+      if (Looper.myLooper() == Looper.getMainLooper()) {
+        notifyChipChanged(chipModel.getChipKey());
+      }
+      else {
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            notifyChipChanged(chipModel.getChipKey());
+          }
+        });
+      }
+    }
+  };
+  
+  /**
+   * The flow of the chips, remembers the rows so that only the changed rows
+   * are laid out again.
+   */
+  private final ChipsFlow chipsFlow = new ChipsFlow();
+  
+  /**
+   * The flows of the chips in the other widths the layout was measured in
+   * (e.g. before a rotation or a side panel opening), so that going back to
+   * a width reuses its rows and positions.
+   */
+  private final ChipsFlowCache layoutCache = new ChipsFlowCache(LAYOUT_CACHE_SIZE);
+  
+  /**
+   * The index of the first chip whose size in {@link #chipsFlow} may be
+   * stale because chips are added or removed before it.
+   */
+  private int sizesDirtyFrom = Integer.MAX_VALUE;
+  
+  /**
+   * The number of chips above which the chips are flowed in background.
+   */
+  private int asyncFlowThreshold = Integer.MAX_VALUE;
+  
+  /**
+   * The version of the chips being flowed in background, -1 if none.
+   */
+  private int backgroundFlowVersion = -1;
+  
+  /**
+   * The width the chips are being flowed in, in background.
+   */
+  private int backgroundFlowWidth = -1;
+  
+  /**
+   * The index of the first chip whose position is changed since the last
+   * layout, e.g. because a background flow is applied.
+   */
+  private int positionsDirtyFrom = Integer.MAX_VALUE;
+  
+  /**
+   * The number of chips flowed, the others are not shown yet.
+   */
+  private int flowedChipCount;
+  
+  /**
+   * Whether a chip requested layout since the last measure, e.g. rebound to
+   * a changed model. Otherwise the chips are not measured again, e.g. when
+   * only the EditText is changed by typing.
+   */
+  private boolean chipLayoutRequested = true;
+  
+  /**
+   * The index of the first chip measured or moved since the last layout,
+   * the chips before it are not laid out again.
+   */
+  private int chipsLayoutFrom;
+  
+  /**
+   * The max height given to the EditText, -1 if none yet.
+   */
+  private int editTextMaxHeight = -1;
+  
+  /**
+   * The last deletions, kept to be undone.
+   */
+  private final ChipUndoBuffer<E> undoBuffer = new ChipUndoBuffer<E>(0);
+  
+  /**
+   * Gives memory back under memory pressure, see {@link #trimMemory(int)}.
+   */
+  private final ChipsMemoryTrimmer<E> memoryTrimmer = new ChipsMemoryTrimmer<E>(this, this.undoBuffer);
+  
+  /**
+   * Whether a chip is being moved to another layout: its view is detached
+   * as is, not faded out.
+   */
+  private boolean transferring;
+  
+  /**
+   * The detached views of the chips being put back by {@link #undo()} or
+   * moved in by {@link #transferChip(String, ChipsLayout, int)}, by model.
+   */
+  private final IdentityHashMap<E, Chip<E>> restoredChips = new IdentityHashMap<E, Chip<E>>();
+  
+  /**
+   * The max width of a chip, -1 for the width of the layout.
+   */
+  private int maxChipWidth = -1;
+  
+  /**
+   * The search index of the chip models, including the ones kept as models
+   * by a lazy collapse, created by the first search.
+   */
+  private ChipSearchIndex<E> searchIndex;
+  
+  /**
+   * How the chips not matching the search are filtered.
+   */
+  private FilterMode filterMode = FilterMode.HIDE;
+  
+  /**
+   * The chips matching or not matching anymore, reused by each search.
+   */
+  private final ArrayList<E> matchedChips = new ArrayList<E>();
+  private final ArrayList<E> unmatchedChips = new ArrayList<E>();
+  
+  /**
+   * Animates the changes of the chips.
+   */
+  private final ChipsAnimator chipsAnimator = new ChipsAnimator(this);
+  
+  /**
+   * Whether the chips can be reordered by dragging.
+   */
+  private boolean dragReorderEnabled;
+  
+  /**
+   * The chip being dragged, null if none.
+   */
+  private Chip<E> draggedChip;
+  
+  /**
+   * The current index of the dragged chip.
+   */
+  private int dragIndex;
+  
+  /**
+   * The index the dragged chip is dragged from.
+   */
+  private int dragFromIndex;
+  
+  /**
+   * Where the finger was when the drag started.
+   */
+  private float dragDownX;
+  private float dragDownY;
+  
+  /**
+   * Where the dragged chip was laid out when the drag started.
+   */
+  private int dragStartLeft;
+  private int dragStartTop;
+  
+  /**
+   * The last touch position.
+   */
+  private float lastTouchX;
+  private float lastTouchY;
+  
+  /**
+   * Notified when a chip is dragged to another position.
+   */
+  private IChipMoveListener<E> moveListener;
+  
+  /**
+   * The width measure spec of the last measure.
+   */
+  private int lastWidthMeasureSpec = -1;
+  
+  /**
+   * The height measure spec of the last measure.
+   */
+  private int lastHeightMeasureSpec = -1;
+  
+  /**
+   * Whether the prewarmed views have been taken over, this happens when the
+   * layout is first attached to window.
+   */
+  private boolean prewarmHandedOff;
+  
+  /**
+   * Custom attribute: whether the layout is a display-only row of a list,
+   * see {@link #setListRowMode(boolean)}.
+   */
+  private boolean listRowMode;
+  
+  /**
+   * Measures the height of list rows, shared by all of the layouts.
+   */
+  private static ChipsSnapshotRenderer sRowMeasurer;
+  
+  /**
+   * The max number of pages of the data source kept in cache.
+   */
+  private static final int MAX_CACHED_PAGES = 8;
+  
+  /**
+   * Loads the pages of the data source, null if there is no data source.
+   */
+  private ChipPager<E> pager;
+  
+  /**
+   * The number of loaded chips hidden by {@link #collapse()}.
+   */
+  private int hiddenChipCount;
+  
+  /**
+   * The visible part of this layout, to know which chips of the data source
+   * are needed.
+   */
+  private final Rect visibleRect = new Rect();
+  
+  /**
+   * Moves the window of the data source when the layout is scrolled.
+   */
+  private final ViewTreeObserver.OnScrollChangedListener scrollListener = new ViewTreeObserver.OnScrollChangedListener() {
+    @Override
+    public void onScrollChanged() {
+      updateScrollWindow();
+      memoryTrimmer.restoreVisibleIcons();
+    }
+  };
+  
   /**
    * Current collapse status of this layout.
    */
@@ -133,6 +538,20 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
     NORMAL
   }
   
+  /**
+   * How the chips not matching a search are filtered.
+   */
+  public enum FilterMode {
+    /**
+     * The chips not matching are hidden.
+     */
+    HIDE,
+    /**
+     * The chips not matching are dimmed, so that the matching ones stand out.
+     */
+    DIM
+  }
+  
   /**
    * Simple constructor.
    *  
@@ -190,6 +609,22 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
     //
     // ImageView icon resource.
     this.iconRightInt = t.getResourceId(R.styleable.ChipsLayout_iconRight, R.drawable.add);
+    
+    //
+    // List row mode
+    this.listRowMode = t.getBoolean(R.styleable.ChipsLayout_listRowMode, false);
+    
+    //
+    // Lazy collapse
+    this.lazyCollapse = t.getBoolean(R.styleable.ChipsLayout_lazyCollapse, false);
+    
+    //
+    // Max chip width
+    this.maxChipWidth = t.getDimensionPixelSize(R.styleable.ChipsLayout_maxChipWidth, -1);
+    
+    //
+    // Animations
+    this.chipsAnimator.setEnabled(t.getBoolean(R.styleable.ChipsLayout_animateChanges, true));
     t.recycle();
     
     //
@@ -205,31 +640,46 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
    */
   private void initialize(Context context) {
     this.context = context;
+    this.hideCountPaint.setTypeface(Typeface.DEFAULT);
+    this.hideCountPaint.setColor(Color.GRAY);
+    this.updateDimensions();
+    if (this.listRowMode) {
+      return;
+    }
     // 
     // By default add the EditText and ImageView
     this.addChildren(context);
     //
     // Add the click event for the layout to collapse or expand.
-    this.setOnClickListener(new OnClickListener() {
-      @Override
-      public void onClick(View v) {
-        if (layoutStatus == LayoutStatus.NORMAL) {
-          collapse();
-        }
-        else if (layoutStatus == LayoutStatus.COLLAPSED){
-          expand();
-        }
-      }
-    });
+    this.setOnClickListener(this.collapseToggle);
   }
   
+  /**
+   * Collapses or expands the layout when clicked.
+   */
+  private final OnClickListener collapseToggle = new OnClickListener() {
+    @Override
+    public void onClick(View v) {
+      if (layoutStatus == LayoutStatus.NORMAL) {
+        collapse();
+      }
+      else if (layoutStatus == LayoutStatus.COLLAPSED){
+        expand();
+      }
+    }
+  };
+  
   /**
    * By default, the ChipsLayout at least will show EditText and an Add icon.
    * @param context
    */
   @SuppressWarnings("deprecation")
   private void addChildren(Context context) {
-    this.editText = new EditText(context);
+    ChipsPrewarmer prewarmer = ChipsPrewarmer.getInstalled(context);
+    this.editText = null == prewarmer ? null : prewarmer.takeEditText();
+    if (null == this.editText) {
+      this.editText = new EditText(context);
+    }
     this.editText.setHint(this.editTextHint);
     this.editText.setBackgroundDrawable(this.editTextBackgroundDrawable);
     LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
@@ -239,8 +689,7 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
     
     this.imageView = new ImageView(context);
     this.imageView.setImageResource(this.iconRightInt);
-    int iconSize = getPixelsByDp(context, IMAGEVIEW_SIZE);
-    LinearLayout.LayoutParams iconParams = new LinearLayout.LayoutParams(iconSize, iconSize);
+    LinearLayout.LayoutParams iconParams = new LinearLayout.LayoutParams(this.iconSizePx, this.iconSizePx);
     iconParams.gravity = Gravity.CENTER_VERTICAL;
     this.addView(imageView, new LayoutParams(iconParams));
     
@@ -260,6 +709,20 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
    * Collapse the layout. 
    */
   private void collapse() {
+    if (this.listRowMode) {
+      return;
+    }
+    if (null != this.pager && this.pager.rewind()) {
+      //
+      // The first page is back instead of the chips around the visible
+      // part, collapse once it is laid out.
+      this.collapsePending = true;
+      return;
+    }
+    if (this.lazyCollapse) {
+      this.collapseLazily();
+      return;
+    }
     int childCount = this.getChildCount();
     if (childCount < MIN_CHILDCOUNT) {
       return;
@@ -274,6 +737,9 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
     int hideCount = 0;
     for (int i = 1; i < childCount; i++) {
       View child = this.getChildAt(i);
+      if (child.getVisibility() == View.GONE) {
+        continue;
+      }
       if (toHide) {
         if (child instanceof Chip) {
           ++hideCount;
@@ -291,8 +757,9 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
         continue;
       }
     }
-    Bitmap bitmap = addTextToBitmap(context, "+" + hideCount);
-    this.hideCountImageView.setImageBitmap(bitmap);
+    this.hiddenChipCount = hideCount;
+    this.chipsAnimator.arm();
+    drawHideCount(this.getHiddenChipCount());
     this.hideCountImageView.setVisibility(View.VISIBLE);
     this.imageView.setVisibility(View.GONE);
     if (toHide) {
@@ -301,133 +768,543 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
   }
   
   /**
-   * Generates a Bitmap with text on it.
-   * 
-   * @param context
-   * @param text
-   * @return
+   * Collapses the layout, keeping only the chips of the first row as views.
+   * The views of the other chips go back to the {@link ChipPool}, the chips
+   * are kept as models and counted in the badge. More chips are created if
+   * the first row is not full after the next layout, see
+   * {@link #collapsedRowUpdater}.
    */
-  private static Bitmap addTextToBitmap(Context context, String text) {
-    int width = getPixelsByDp(context, IMAGEVIEW_SIZE);
-    Bitmap bitmap = Bitmap.createBitmap(width, width, Config.ARGB_8888);
-    float scale = context.getResources().getDisplayMetrics().density;
-    Canvas canvas = new Canvas(bitmap);
-    Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-    textPaint.setTextSize(13*scale);
-    textPaint.setTypeface(Typeface.DEFAULT);
-    textPaint.setColor(Color.GRAY);
-    Rect bounds = new Rect();
-    textPaint.getTextBounds(text, 0, text.length(), bounds);
-    int x = (bitmap.getWidth() - bounds.width())/2;
-    int y = (bitmap.getHeight() + bounds.height())/2;
-    canvas.drawText(text, x, y, textPaint);
-    return bitmap;
+  private void collapseLazily() {
+    this.removeCallbacks(this.materializer);
+    this.layoutStatus = LayoutStatus.COLLAPSED;
+    this.collapsedRowFull = false;
+    int firstRowEnd = this.materializedCount;
+    if (this.chipsFlow.getRowCount() > 1) {
+      firstRowEnd = Math.min(firstRowEnd, this.chipsFlow.getRowStart(1));
+    }
+    this.dematerializeFrom(firstRowEnd);
+    this.hideCountImageView.setVisibility(View.VISIBLE);
+    this.imageView.setVisibility(View.GONE);
+    this.chipsAnimator.arm();
+    drawHideCount(this.getHiddenChipCount());
   }
   
   /**
-   * Expand the layout. 
+   * Drops the views of the chips from the given index on, the chips are kept
+   * as models.
+   * 
+   * @param index
    */
-  private void expand() {
+  private void dematerializeFrom(int index) {
+    if (index >= this.materializedCount) {
+      return;
+    }
+    for (int i = this.materializedCount - 1; i >= index; i--) {
+      Chip<E> chip = this.getChipAt(i);
+      this.removeViewInLayout(chip);
+      this.onChipRemoved(chip, this.chipsList.get(i));
+      this.chipPool.release(chip);
+    }
+    this.materializedCount = index;
+    this.chipsChangedFrom(index);
+    this.requestLayout();
+    this.invalidate();
+  }
+  
+  /**
+   * Creates the view of the first chip kept as a model. The caller requests
+   * the layout.
+   */
+  private void materializeNextChip() {
+    this.materializeChipAt(this.materializedCount);
+  }
+  
+  /**
+   * Creates the view of the chip just inserted at the given index, which is
+   * at most {@link #materializedCount}. The caller requests the layout.
+   * 
+   * @param index
+   */
+  private void materializeChipAt(int index) {
+    E chipModel = this.chipsList.get(index);
+    Chip<E> chip = this.restoredChips.remove(chipModel);
+    if (null == chip) {
+      chip = createChip(context, chipModel);
+    }
+    else {
+      chip.setReadOnly(this.listRowMode);
+      chip.setOnLongClickListener(this.dragReorderEnabled ? this.dragStarter : null);
+      chip.setLongClickable(this.dragReorderEnabled);
+      chip.setChipModel(chipModel);
+    }
+    chip.setChipListener(this);
+    
+    //
+    // Put the chip among the chips, before the EditText.
+    // So the EditText will be always after the last chip.
+    this.addViewInLayout(chip, index, chip.getLayoutParams());
+    ++this.materializedCount;
+    this.chipsAnimator.markAppearing(chip);
+    this.onChipAdded(chip, chipModel);
+    this.chipsChangedFrom(index);
+  }
+  
+  /**
+   * Returns the number of chips kept as models by a lazy collapse.
+   * 
+   * @return
+   */
+  private int getPendingChipCount() {
+    return this.chipsList.size() - this.materializedCount;
+  }
+  
+  /**
+   * Returns the number shown in the badge: the chips hidden, kept as models
+   * or not loaded yet.
+   * 
+   * @return
+   */
+  private int getHiddenChipCount() {
+    return this.hiddenChipCount + this.getPendingChipCount() + this.getUnloadedChipCount();
+  }
+  
+  /**
+   * Creates the chips kept as models after expanding, in batches of at most
+   * {@value #MATERIALIZE_BATCH_MS}ms, one batch per message so that frames
+   * are drawn in between.
+   */
+  private final Runnable materializer = new Runnable() {
+    @Override
+    public void run() {
+      if (layoutStatus != LayoutStatus.NORMAL || getPendingChipCount() == 0) {
+        return;
+      }
+      long deadline = SystemClock.uptimeMillis() + MATERIALIZE_BATCH_MS;
+      do {
+        materializeNextChip();
+      } while (getPendingChipCount() > 0 && SystemClock.uptimeMillis() < deadline);
+      requestLayout();
+      invalidate();
+      if (getPendingChipCount() > 0) {
+        post(this);
+      }
+    }
+  };
+  
+  /**
+   * Keeps the first row of the lazily collapsed layout full, after a layout:
+   * drops the views of the chips wrapped to the second row, or creates the
+   * views of the chips expected to fit in the first row.
+   */
+  private final Runnable collapsedRowUpdater = new Runnable() {
+    @Override
+    public void run() {
+      if (!lazyCollapse || layoutStatus != LayoutStatus.COLLAPSED) {
+        return;
+      }
+      if (chipsFlow.getRowCount() > 1) {
+        collapsedRowFull = true;
+        dematerializeFrom(Math.min(materializedCount, chipsFlow.getRowStart(1)));
+        drawHideCount(getHiddenChipCount());
+      }
+      else if (!collapsedRowFull && getPendingChipCount() > 0) {
+        fillCollapsedRow();
+      }
+    }
+  };
+  
+  /**
+   * Creates the views of the chips expected to fit in the rest of the first
+   * row, plus one: the next layout tells whether they really fit.
+   */
+  private void fillCollapsedRow() {
+    if (null == this.collapseMetrics) {
+      this.collapseMetrics = new ChipMetrics(this.context);
+    }
+    int maxChipWidth = this.getMaxChipWidth(this.lastWidthMeasureSpec);
+    int remaining = MeasureSpec.getSize(this.lastWidthMeasureSpec) - this.chipsFlow.getEndX();
+    do {
+      E chipModel = this.chipsList.get(this.materializedCount);
+      remaining -= Math.min(maxChipWidth, this.collapseMetrics.measureChipWidth(chipModel));
+      this.materializeNextChip();
+    } while (remaining >= 0 && this.getPendingChipCount() > 0);
+    drawHideCount(this.getHiddenChipCount());
+    this.requestLayout();
+    this.invalidate();
+  }
+  
+  /**
+   * Sets whether collapsing keeps only the chips of the first row as views.
+   * The other chips are kept as models, counted in the badge, and their
+   * views are only created when the layout is expanded, in batches. Chips
+   * added while collapsed are kept as models too, so a collapsed layout
+   * costs about the same whatever the number of chips.
+   * 
+   * @param lazyCollapse
+   */
+  public void setLazyCollapse(boolean lazyCollapse) {
+    if (lazyCollapse == this.lazyCollapse) {
+      return;
+    }
+    if (!lazyCollapse && this.layoutStatus == LayoutStatus.COLLAPSED) {
+      this.expand();
+    }
+    this.lazyCollapse = lazyCollapse;
+  }
+  
+  /**
+   * Returns whether collapsing keeps only the chips of the first row as
+   * views.
+   * 
+   * @return
+   */
+  public boolean isLazyCollapse() {
+    return this.lazyCollapse;
+  }
+  
+  /**
+   * Collapses or expands the layout, like clicking it does. With a lazy
+   * collapse, the layout can be collapsed before the chips are added.
+   * 
+   * @param collapsed
+   */
+  public void setCollapsed(boolean collapsed) {
+    if (!collapsed) {
+      this.expand();
+    }
+    else if (this.layoutStatus == LayoutStatus.NORMAL) {
+      this.collapse();
+    }
+  }
+  
+  /**
+   * Returns whether the layout is collapsed.
+   * 
+   * @return
+   */
+  public boolean isCollapsed() {
+    return this.layoutStatus == LayoutStatus.COLLAPSED;
+  }
+  
+  /**
+   * Draws "+hideCount" on the hidden count badge.
+   * The badge Bitmap, Canvas and Paint are reused, and nothing is drawn
+   * if the count is not changed, so collapsing does not allocate.
+   * 
+   * @param hideCount
+   */
+  private void drawHideCount(int hideCount) {
+    if (null == this.hideCountBitmap) {
+      this.hideCountBitmap = Bitmap.createBitmap(this.iconSizePx, this.iconSizePx, Config.ARGB_8888);
+      this.hideCountCanvas.setBitmap(this.hideCountBitmap);
+      this.hideCountImageView.setImageBitmap(this.hideCountBitmap);
+      this.drawnHideCount = -1;
+    }
+    if (hideCount == this.drawnHideCount) {
+      return;
+    }
+    this.drawnHideCount = hideCount;
+    
+    int length = formatHideCount(hideCount);
+    this.hideCountBitmap.eraseColor(Color.TRANSPARENT);
+    this.hideCountPaint.getTextBounds(this.hideCountChars, 0, length, this.hideCountBounds);
+    int x = (this.hideCountBitmap.getWidth() - this.hideCountBounds.width())/2;
+    int y = (this.hideCountBitmap.getHeight() + this.hideCountBounds.height())/2;
+    this.hideCountCanvas.drawText(this.hideCountChars, 0, length, x, y, this.hideCountPaint);
+    this.hideCountImageView.invalidate();
+  }
+  
+  /**
+   * Writes "+hideCount" into {@link #hideCountChars} without creating a
+   * String.
+   * 
+   * @param hideCount
+   * @return the number of chars written
+   */
+  private int formatHideCount(int hideCount) {
+    char[] chars = this.hideCountChars;
+    int digits = 1;
+    for (int n = hideCount; n >= 10; n /= 10) {
+      ++digits;
+    }
+    chars[0] = '+';
+    int n = hideCount;
+    for (int i = digits; i > 0; i--) {
+      chars[i] = (char) ('0' + n % 10);
+      n /= 10;
+    }
+    return digits + 1;
+  }
+  
+  /**
+   * Computes the dip based dimensions, once on creation and then on every
+   * configuration change, so that measuring never converts them again.
+   */
+  private void updateDimensions() {
+    this.iconSizePx = getPixelsByDp(context, IMAGEVIEW_SIZE);
+    this.iconMinSpacePx = getPixelsByDp(context, IMAGEVIEW_MINSPACE_DP);
+    this.editTextMinWidthPx = getPixelsByDp(context, EDITTEXT_MINWIDTH_DP);
+    float scale = context.getResources().getDisplayMetrics().density;
+    this.hideCountPaint.setTextSize(HIDE_COUNT_TEXT_SIZE_DP * scale);
+  }
+  
+  @Override
+  protected void onConfigurationChanged(Configuration newConfig) {
+    super.onConfigurationChanged(newConfig);
+    updateDimensions();
+    this.lastWidthMeasureSpec = -1;
+    this.layoutCache.evictAll();
+    if (this.listRowMode) {
+      requestLayout();
+      return;
+    }
+    LayoutParams iconParams = (LayoutParams) this.imageView.getLayoutParams();
+    iconParams.width = iconParams.height = this.iconSizePx;
+    LayoutParams hideCountParams = (LayoutParams) this.hideCountImageView.getLayoutParams();
+    hideCountParams.width = hideCountParams.height = this.iconSizePx;
+    
+    //
+    // The badge size depends on density, draw it again on next collapse.
+    int hideCount = this.drawnHideCount;
+    this.hideCountBitmap = null;
+    if (this.layoutStatus == LayoutStatus.COLLAPSED) {
+      drawHideCount(hideCount);
+    }
+    requestLayout();
+  }
+  
+  /**
+   * Expand the layout. 
+   */
+  private void expand() {
     if (this.layoutStatus == LayoutStatus.NORMAL) {
       return;
     }
     int childCount = this.getChildCount();
     for (int i = 0; i < childCount; i++) {
       View child = this.getChildAt(i);
+      if (child.getVisibility() == View.VISIBLE) {
+        continue;
+      }
+      if (child instanceof Chip) {
+        if (this.isFilteredOut(this.getChipAt(i))) {
+          continue;
+        }
+        this.chipsAnimator.markAppearing(child);
+      }
       child.setVisibility(View.VISIBLE);
     }
+    this.chipsAnimator.arm();
     
     this.hideCountImageView.setVisibility(View.GONE);
     this.imageView.setVisibility(View.VISIBLE);
     this.layoutStatus = LayoutStatus.NORMAL;
+    this.hiddenChipCount = 0;
+    this.removeCallbacks(this.collapsedRowUpdater);
+    if (this.getPendingChipCount() > 0) {
+      this.post(this.materializer);
+    }
+    this.updateScrollWindow();
+  }
+
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    this.attachedToWindow = true;
+    this.listenToChipModels(true);
+    this.getViewTreeObserver().addOnScrollChangedListener(this.scrollListener);
+    this.memoryTrimmer.attach(this.context);
+    if (null != this.chipStore) {
+      this.chipStore.addOnChangeListener(this.storeListener);
+      this.applyStoreChanges();
+    }
+    if (!this.prewarmHandedOff) {
+      this.prewarmHandedOff = true;
+      ChipsPrewarmer prewarmer = ChipsPrewarmer.getInstalled(this.context);
+      if (null != prewarmer) {
+        prewarmer.handOff(this.chipPool);
+      }
+    }
+  }
+
+  @Override
+  protected void onWindowVisibilityChanged(int visibility) {
+    super.onWindowVisibilityChanged(visibility);
+    if (visibility == VISIBLE) {
+      this.memoryTrimmer.restoreVisibleIcons();
+    }
   }
 
+  @Override
+  protected void onDetachedFromWindow() {
+    this.getViewTreeObserver().removeOnScrollChangedListener(this.scrollListener);
+    this.memoryTrimmer.detach(this.context);
+    this.attachedToWindow = false;
+    this.listenToChipModels(false);
+    this.mainHandler.removeCallbacksAndMessages(null);
+    if (null != this.chipStore) {
+      this.chipStore.removeOnChangeListener(this.storeListener);
+    }
+    super.onDetachedFromWindow();
+  }
 
   @Override
   protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
     int specWidth = MeasureSpec.getSize(widthMeasureSpec);
+    boolean specChanged = widthMeasureSpec != this.lastWidthMeasureSpec
+        || heightMeasureSpec != this.lastHeightMeasureSpec;
+    int maxChipWidth = this.getMaxChipWidth(widthMeasureSpec);
+    int lastMaxChipWidth = this.getMaxChipWidth(this.lastWidthMeasureSpec);
+    ChipsFlow lastFlow = null;
+    if (specChanged) {
+      this.collapsedRowFull = false;
+      if (widthMeasureSpec != this.lastWidthMeasureSpec) {
+        lastFlow = this.swapCachedFlow(widthMeasureSpec);
+      }
+    }
+    this.lastWidthMeasureSpec = widthMeasureSpec;
+    this.lastHeightMeasureSpec = heightMeasureSpec;
+    
+    //
+    // Measure the chips. Unless the spec is changed, only the chips requested
+    // layout (e.g. rebound to a changed model) are measured again, and the
+    // flow restarts from the row of the first chip whose size is changed.
+    // A chip wider than the max chip width gets its text ellipsized, once:
+    // the ellipsized text is kept until the max width is changed.
+    // Going back to a cached width, the chips are not changed since its flow
+    // was kept: only the chips as wide as the max width in either width may
+    // have another size there, the others are not even looked at.
+    // A chip resized on its own changes the chips for all the widths.
+    int chipCount = this.chipViewCount();
+    boolean measureAll = specChanged && null == lastFlow;
+    boolean measureChips = measureAll || this.chipLayoutRequested
+        || this.sizesDirtyFrom != Integer.MAX_VALUE;
+    this.chipLayoutRequested = false;
+    boolean chipsChanged = false;
+    int layoutFrom = chipCount;
+    for (int i = 0; measureChips && i < chipCount; i++) {
+      View child = this.getChildAt(i);
+      if (child.getVisibility() == View.GONE) {
+        chipsChanged |= this.chipsFlow.setSize(i, ChipsFlow.GONE, 0);
+        continue;
+      }
+      boolean layoutRequested = child.isLayoutRequested();
+      boolean remeasure = layoutRequested || measureAll;
+      if (remeasure) {
+        this.getChipAt(i).setMaxChipWidth(maxChipWidth);
+        this.measureChild(child, widthMeasureSpec, heightMeasureSpec);
+        layoutFrom = Math.min(layoutFrom, i);
+      }
+      if (remeasure || i >= this.sizesDirtyFrom) {
+        //
+        // Only the icon and margins can be wider than the max width.
+        int childWidth = Math.min(child.getMeasuredWidth(), maxChipWidth);
+        boolean resized = this.chipsFlow.setSize(i, childWidth, child.getMeasuredHeight());
+        chipsChanged |= layoutRequested && (resized || childWidth >= maxChipWidth);
+      }
+    }
+    this.sizesDirtyFrom = Integer.MAX_VALUE;
+    if (null != lastFlow) {
+      int widthCut = Math.min(maxChipWidth, lastMaxChipWidth);
+      for (int i = this.chipsFlow.nextWiderChip(lastFlow, 0, widthCut); i < chipCount;
+          i = this.chipsFlow.nextWiderChip(lastFlow, i + 1, widthCut)) {
+        View child = this.getChildAt(i);
+        this.getChipAt(i).setMaxChipWidth(maxChipWidth);
+        this.measureChild(child, widthMeasureSpec, heightMeasureSpec);
+        layoutFrom = Math.min(layoutFrom, i);
+        int childWidth = Math.min(child.getMeasuredWidth(), maxChipWidth);
+        this.chipsFlow.setSize(i, childWidth, child.getMeasuredHeight());
+      }
+    }
+    if (chipsChanged) {
+      this.layoutCache.invalidate();
+    }
     
-    int finalWidth = 0;
-    int finalHeight = 0;
+    int flowedFrom;
+    if (chipCount - this.chipsFlow.getRestartIndex(specWidth) > this.asyncFlowThreshold) {
+      flowedFrom = this.flowInBackground(specWidth);
+    }
+    else {
+      flowedFrom = this.chipsFlow.flow(specWidth);
+    }
+    flowedFrom = Math.min(flowedFrom, this.positionsDirtyFrom);
+    this.positionsDirtyFrom = Integer.MAX_VALUE;
+    this.flowedChipCount = this.chipsFlow.getFlowedCount();
+    this.chipsLayoutFrom = Math.min(this.chipsLayoutFrom, Math.min(layoutFrom, flowedFrom));
     
-    int widthPos = 0;
-    int heightPos = 0;
+    //
+    // The EditText and the icons follow the last chip.
+    int finalWidth = this.chipsFlow.getWidth();
+    int finalHeight = this.chipsFlow.getHeight();
+    int widthPos = this.chipsFlow.getEndX();
+    int heightPos = this.chipsFlow.getEndY();
     
     int numOfChildren = this.getChildCount();
-    for (int i = 0; i < numOfChildren; i++) {
+    for (int i = chipCount; i < numOfChildren; i++) {
       View child = this.getChildAt(i);
-      int visibility = child.getVisibility();
-      if (visibility == View.GONE) {
+      if (child.getVisibility() == View.GONE) {
         continue;
       }
-      this.measureChild(child, widthMeasureSpec, heightMeasureSpec);
-      int childWidth = child.getMeasuredWidth();
-      int childHeight = child.getMeasuredHeight();
-      
-      if (childWidth > specWidth) {
-        childWidth = specWidth - 10; // 10 is hard coded!
-      }
+      LayoutParams lp = (LayoutParams) child.getLayoutParams();
+      int childWidth;
       
       //
       // Special layout for EditText
       if (child instanceof EditText) {
-        if (this.heightOfEditText <= 0) {
-          this.heightOfEditText = childHeight;
-        }
-        LayoutParams lp = (LayoutParams) child.getLayoutParams();        
-        int editTextMinWidth = getPixelsByDp(context, EDITTEXT_MINWIDTH_DP);
-        if (specWidth - widthPos < editTextMinWidth) {
-          int iconMinWidth = getPixelsByDp(context, IMAGEVIEW_MINSPACE_DP);
-          childWidth = specWidth - iconMinWidth;
-          lp.width = childWidth;
+        if (specWidth - widthPos < this.editTextMinWidthPx) {
+          childWidth = specWidth - this.iconMinSpacePx;
+          if (widthPos > 0) {
+            // 
+            // New Line
+            widthPos = 0;
+            heightPos = finalHeight;
+          }
         }
         else {
           int availableWidth = specWidth - widthPos;
-          int iconMinWidth = getPixelsByDp(context, IMAGEVIEW_MINSPACE_DP);
-          childWidth = availableWidth - iconMinWidth;
-          lp.width = childWidth;
+          childWidth = availableWidth - this.iconMinSpacePx;
+        }
+        lp.width = childWidth;
+        this.measureChild(child, widthMeasureSpec, heightMeasureSpec);
+        if (this.heightOfEditText <= 0) {
+          this.heightOfEditText = child.getMeasuredHeight();
         }
-        ((EditText) child).setMaxHeight(this.heightOfEditText);
-      }
-      
-      //
-      // Special layout for ImageView
-      if (child instanceof ImageView) {
-        int heightOffset = this.heightOfEditText - childHeight;
-        this.imageViewTopMargin = heightOffset / 2;
-      }
-      
-      
-      if (widthPos + childWidth > specWidth) {
-        // 
-        // New Line
-        
         //
-        // Calculate the real width
-        finalWidth = Math.max(finalWidth, widthPos);
+        // setMaxHeight requests layout, set it once.
+        if (this.editTextMaxHeight != this.heightOfEditText) {
+          this.editTextMaxHeight = this.heightOfEditText;
+          ((EditText) child).setMaxHeight(this.heightOfEditText);
+        }
+      }
+      else {
+        this.measureChild(child, widthMeasureSpec, heightMeasureSpec);
+        childWidth = child.getMeasuredWidth();
         
         //
-        // Move the width pos to the beginning
-        widthPos = 0;
+        // Special layout for ImageView
+        if (child instanceof ImageView) {
+          int heightOffset = this.heightOfEditText - child.getMeasuredHeight();
+          this.imageViewTopMargin = heightOffset / 2;
+        }
         
-        //
-        // Move the cursor to the next line
-        heightPos += childHeight;
+        if (widthPos > 0 && widthPos + childWidth > specWidth) {
+          // 
+          // New Line
+          widthPos = 0;
+          heightPos = finalHeight;
+        }
       }
-      LayoutParams lp = (LayoutParams) child.getLayoutParams();
       lp.x = widthPos;
       lp.y = heightPos;
-      
-      // Log.e("XX", i + ">>>> x == " + widthPos + ">>> y == " + heightPos);
       widthPos += childWidth;
       
-      finalHeight = Math.max(finalHeight, heightPos + childHeight);
+      finalWidth = Math.max(finalWidth, widthPos);
+      finalHeight = Math.max(finalHeight, heightPos + child.getMeasuredHeight());
     } // #End of for
     
-
     int resolvedWidth = resolveSize(finalWidth, widthMeasureSpec);
     int resolvedHeight = resolveSize(finalHeight, heightMeasureSpec);
-    // Log.e("ZZZ", "resolved width == " + resolvedWidth + " >>> resolved height == " + resolvedHeight);
     setMeasuredDimension(resolvedWidth, resolvedHeight);
   }
   
@@ -436,107 +1313,1787 @@ public class ChipsLayout<E extends IChipModel> extends ViewGroup implements IChi
   protected void onLayout(boolean changed, int l, int t, int r, int b) {
     int numOfChildren = this.getChildCount();
     
-    for (int i = 0; i < numOfChildren; i++) {
+    boolean animate = this.chipsAnimator.beginLayout();
+    int chipCount = this.chipViewCount();
+    //
+    // The chips before chipsLayoutFrom are neither moved nor measured since
+    // the last layout, e.g. when only the EditText is changed.
+    int from = Math.min(this.chipsLayoutFrom, chipCount);
+    this.chipsLayoutFrom = Integer.MAX_VALUE;
+    for (int i = from; i < numOfChildren; i++) {
       View child = this.getChildAt(i);
-      LayoutParams lp = (LayoutParams) child.getLayoutParams();
-      Log.e("YY", i + " Left: " + lp.x + " >> top: " + lp.y + " >> right: " + ((int) lp.x + child.getMeasuredWidth()) + " >> bottom: " + ((int) lp.y + child.getMeasuredHeight()));
-      
-      int left = lp.x;
-      int top = lp.y;
-      if (child instanceof ImageView) {
-        top = lp.y + this.imageViewTopMargin;
+      if (i >= this.flowedChipCount && i < chipCount) {
+        //
+        // Not flowed yet, see flowInBackground.
+        child.layout(0, 0, 0, 0);
+        continue;
       }
+      int left;
+      int top;
+      if (i < chipCount) {
+        //
+        // The chips are positioned by the flow.
+        left = this.chipsFlow.getX(i);
+        top = this.chipsFlow.getY(i);
+      }
+      else {
+        LayoutParams lp = (LayoutParams) child.getLayoutParams();
+        left = lp.x;
+        top = lp.y;
+        if (child instanceof ImageView) {
+          top = lp.y + this.imageViewTopMargin;
+        }
+      }
+      int oldLeft = child.getLeft();
+      int oldTop = child.getTop();
       child.layout(left, top, left + child.getMeasuredWidth(), top + child.getMeasuredHeight());
+      if (animate && child != this.draggedChip) {
+        this.chipsAnimator.animateMove(child, oldLeft, oldTop);
+      }
+    }
+    this.chipsAnimator.endLayout();
+    
+    if (null != this.draggedChip) {
+      this.updateDragTranslation();
+    }
+    
+    this.memoryTrimmer.restoreVisibleIcons();
+    
+    if (this.lazyCollapse && this.layoutStatus == LayoutStatus.COLLAPSED) {
+      //
+      // Not in the middle of a layout pass either: views are added or
+      // removed.
+      this.removeCallbacks(this.collapsedRowUpdater);
+      if (this.chipsFlow.getRowCount() > 1
+          || (!this.collapsedRowFull && this.getPendingChipCount() > 0)) {
+        this.post(this.collapsedRowUpdater);
+      }
+    }
+    
+    if (this.collapsePending) {
+      this.collapsePending = false;
+      this.post(this.collapser);
+    }
+    
+    if (this.getScrollWindowAction() != ChipPager.ACTION_NONE) {
+      //
+      // Not in the middle of a layout pass: moving the window adds or
+      // removes views.
+      this.removeCallbacks(this.loadPagesRunnable);
+      this.post(this.loadPagesRunnable);
     }
   }
   
   /**
-   * Adds a chip into the chip layout.
-   * 
-   * @param chipModel
+   * Called when a chip requests layout.
    */
-  public void addChip(E chipModel) {
-    this.chipsList.add(chipModel);
-    Chip<E> chip = createChip(context, chipModel);
-    chip.setChipListener(this);
-    
-    //
-    // Append the chip to the last position before the EditText.
-    // So the EditText will be always after the last chip.
-    int indexOfEditText = this.indexOfChild(this.editText);
-    this.addViewInLayout(chip, indexOfEditText, chip.getLayoutParams());
+  void onChipLayoutRequested() {
+    this.chipLayoutRequested = true;
   }
   
   /**
-   * Adds a collections of chips.
-   * @param chipsList
+   * Keeps the flow of the last width in {@link #layoutCache} and takes the
+   * one of the new width from it, if any. The positions of the chips are
+   * then the ones of the flow taken.
+   * 
+   * @param widthMeasureSpec
+   * @return the flow of the last width, to tell the chips whose size may be
+   *         different in the new width, or null if no flow is taken
    */
-  public void addChips(List<E> chipsList) {
-    this.chipsList.addAll(chipsList);
-    for (E chipModel : chipsList) {
-      this.addChip(chipModel);
+  private ChipsFlow swapCachedFlow(int widthMeasureSpec) {
+    int chipCount = this.chipViewCount();
+    if (this.lastWidthMeasureSpec == -1 || chipCount == 0
+        || this.chipsFlow.getCount() != chipCount
+        || this.chipsFlow.isDirty(MeasureSpec.getSize(this.lastWidthMeasureSpec))) {
+      return null;
+    }
+    //
+    // Taken first, so that it is not the least recently used flow evicted.
+    ChipsFlow cached = this.layoutCache.get(widthMeasureSpec);
+    this.layoutCache.put(this.lastWidthMeasureSpec, this.chipsFlow);
+    if (null == cached || cached.getCount() != chipCount) {
+      return null;
     }
+    this.chipsFlow.restore(cached);
+    this.backgroundFlowVersion = -1;
+    this.chipsLayoutFrom = 0;
+    return this.layoutCache.get(this.lastWidthMeasureSpec);
   }
   
   /**
-   * Create a {@link Chip} view instance.
-   * @param context
-   * @param chipModel
-   * @return
+   * Flows the chips on the background thread, from a copy of their sizes.
+   * Until the result is applied, only the first rows are shown: at most
+   * {@link #asyncFlowThreshold} chips are flowed right away.
+   * 
+   * @param specWidth
+   * @return the index of the first chip whose position is computed again
    */
-  public Chip<E> createChip(Context context, E chipModel) {
-    Chip<E> chip = new Chip<E>(context);
-    LayoutParams lp = new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-    ChipsLayout.LayoutParams chipLayoutParam = new ChipsLayout.LayoutParams(lp);
-    chip.setLayoutParams(chipLayoutParam);
-    chip.setChipModel(chipModel);
-    return chip;
+  private int flowInBackground(final int specWidth) {
+    final int version = this.chipsFlow.getVersion();
+    if (version != this.backgroundFlowVersion || specWidth != this.backgroundFlowWidth) {
+      this.backgroundFlowVersion = version;
+      this.backgroundFlowWidth = specWidth;
+      final ChipsFlow snapshot = this.chipsFlow.copy();
+      ChipsBackground.execute(new Runnable() {
+        @Override
+        public void run() {
+          final int flowedFrom = snapshot.flow(specWidth);
+          post(new Runnable() {
+            @Override
+            public void run() {
+              applyBackgroundFlow(snapshot, flowedFrom, version, specWidth);
+            }
+          });
+        }
+      });
+      
+      //
+      // The placeholder: the first rows.
+      return this.chipsFlow.flow(specWidth, this.asyncFlowThreshold);
+    }
+    return ChipsFlow.CLEAN;
   }
   
   /**
-   * Returns the dip according to the given value.
+   * Applies a flow computed in background, unless the chips or the width
+   * are changed since it was started.
    * 
-   * @param context
-   * @param dps
-   * @return
+   * @param flow
+   * @param flowedFrom
+   * @param version
+   * @param specWidth
    */
-  public static int getPixelsByDp(Context context, int dps) {
-    final float scale = context.getResources().getDisplayMetrics().density;
-    int pixels = (int) (dps * scale + 0.5f);
-    return pixels;
+  private void applyBackgroundFlow(ChipsFlow flow, int flowedFrom, int version, int specWidth) {
+    if (version != this.backgroundFlowVersion || specWidth != this.backgroundFlowWidth) {
+      return;
+    }
+    this.backgroundFlowVersion = -1;
+    if (version != this.chipsFlow.getVersion()
+        || specWidth != MeasureSpec.getSize(this.lastWidthMeasureSpec)) {
+      return;
+    }
+    this.chipsFlow.set(flow);
+    this.positionsDirtyFrom = Math.min(this.positionsDirtyFrom, flowedFrom);
+    this.requestLayout();
   }
   
-  
-  
-  /* ------------------------------------ *
-   * Getter / Setter
-   * ------------------------------------ */
-  
   /**
-   * Returns the EditText widget in ChipsLayout.
-   * @return
+   * Sets the number of chips above which the chips are flowed (broken into
+   * rows and positioned) on a background thread, so that huge chip sets do
+   * not block the UI thread. Until the flow is done only the first rows are
+   * shown.
+   * 
+   * @param chipCount the threshold, {@link Integer#MAX_VALUE} (the default)
+   *        to always flow on the UI thread
    */
-  public EditText getEditText () {
-    return this.editText;
-  }
-  
-  public ImageView getImageView () {
-    return this.imageView;
+  public void setAsyncFlowThreshold(int chipCount) {
+    this.asyncFlowThreshold = Math.max(1, chipCount);
+    this.requestLayout();
   }
   
   /**
-   * Returns the list of the chips currently being shown.
-   * @return
+   * Adds a chip into the chip layout.
+   * 
+   * @param chipModel
    */
-  public ArrayList<E> getAllChips() {
-    return this.chipsList;
-  }
+  public void addChip(E chipModel) {
+    if (null != this.chipComparator && !this.applyingStoreChanges) {
+      this.addSortedChips(Collections.singletonList(chipModel));
+      return;
+    }
+    if (null != this.chipStore && !this.applyingStoreChanges) {
+      this.chipStore.add(chipModel);
+      this.applyStoreChanges();
+      return;
+    }
+    this.appendChip(chipModel);
+  }
+  
+  /**
+   * Adds a chip after the other ones.
+   * 
+   * @param chipModel
+   */
+  private void appendChip(E chipModel) {
+    boolean pending = this.getPendingChipCount() > 0
+        || (this.lazyCollapse && this.layoutStatus == LayoutStatus.COLLAPSED);
+    this.chipsList.add(chipModel);
+    this.indexChip(chipModel);
+    if (pending) {
+      //
+      // Kept as a model, after the other ones.
+      this.pendingChipAdded();
+      return;
+    }
+    this.materializeNextChip();
+    this.requestLayout();
+    this.invalidate();
+  }
+  
+  /**
+   * Inserts a chip at the given position. In sorted mode (see
+   * {@link #setComparator(Comparator)}) the position is ignored, the chip
+   * is inserted where it belongs.
+   * 
+   * @param index the position, clamped to [0, chip count]
+   * @param chipModel
+   */
+  public void addChip(int index, E chipModel) {
+    this.addChips(index, Collections.singletonList(chipModel));
+  }
+  
+  /**
+   * Inserts a collection of chips at the given position. In sorted mode (see
+   * {@link #setComparator(Comparator)}) the position is ignored, the chips
+   * are inserted where they belong.
+   * 
+   * @param index the position, clamped to [0, chip count]
+   * @param chipsList
+   */
+  public void addChips(int index, List<E> chipsList) {
+    if (null != this.chipComparator && !this.applyingStoreChanges) {
+      this.addSortedChips(chipsList);
+      return;
+    }
+    if (null != this.chipStore && !this.applyingStoreChanges) {
+      this.chipStore.addAll(index, chipsList);
+      this.applyStoreChanges();
+      return;
+    }
+    this.insertChips(index, chipsList);
+  }
+  
+  /**
+   * Inserts chips at the given position of the chips shown.
+   * 
+   * @param index the position, clamped to [0, chip count]
+   * @param chipsList
+   */
+  private void insertChips(int index, List<E> chipsList) {
+    int at = Math.max(0, Math.min(index, this.chipsList.size()));
+    for (E chipModel : chipsList) {
+      if (at == this.chipsList.size()) {
+        this.appendChip(chipModel);
+      }
+      else if (at >= this.materializedCount) {
+        //
+        // Among the chips kept as models.
+        this.chipsList.add(at, chipModel);
+        this.indexChip(chipModel);
+        this.pendingChipAdded();
+      }
+      else {
+        this.chipsList.add(at, chipModel);
+        this.indexChip(chipModel);
+        this.materializeChipAt(at);
+        this.requestLayout();
+        this.invalidate();
+      }
+      ++at;
+    }
+  }
+  
+  /**
+   * A chip is added as a model only: updates the hidden count, or creates
+   * its view soon.
+   */
+  private void pendingChipAdded() {
+    if (this.layoutStatus == LayoutStatus.COLLAPSED) {
+      this.drawHideCount(this.getHiddenChipCount());
+      if (!this.collapsedRowFull) {
+        //
+        // The first row may not be full yet, see collapsedRowUpdater.
+        this.requestLayout();
+      }
+    }
+    else {
+      this.removeCallbacks(this.materializer);
+      this.post(this.materializer);
+    }
+  }
+  
+  /**
+   * Adds a collections of chips.
+   * @param chipsList
+   */
+  public void addChips(List<E> chipsList) {
+    if (null != this.chipComparator && !this.applyingStoreChanges) {
+      this.addSortedChips(chipsList);
+      return;
+    }
+    if (null != this.chipStore && !this.applyingStoreChanges) {
+      this.chipStore.addAll(chipsList);
+      this.applyStoreChanges();
+      return;
+    }
+    for (E chipModel : chipsList) {
+      this.appendChip(chipModel);
+    }
+  }
+  
+  /**
+   * Keeps the chips sorted by the given comparator: the chips are sorted
+   * once, then each chip added is inserted where it belongs, found by a
+   * binary search, and the chips are only flowed again from its row. The
+   * chips are expected to stay sorted: a chip whose sort key is changed is to
+   * be removed and added again, and moving chips (e.g. by drag) is up to the
+   * caller. The positions given to add a chip, or by an undo or a transfer
+   * from another layout, are ignored. With a store, the chips are inserted
+   * where they belong in the store, as found in the store itself, and kept
+   * in its order.
+   * 
+   * @param comparator the comparator or null to add the chips after the
+   *        other ones (the default)
+   */
+  public void setComparator(Comparator<? super E> comparator) {
+    this.chipComparator = comparator;
+    if (null != comparator) {
+      this.setChips(new ArrayList<E>(null != this.chipStore ? this.chipStore.snapshot() : this.chipsList));
+    }
+  }
+  
+  /**
+   * Returns the order the chips are kept in, null if none.
+   * @return
+   */
+  public Comparator<? super E> getComparator() {
+    return this.chipComparator;
+  }
+  
+  /**
+   * Inserts chips where they belong. The chips added are sorted, then merged
+   * with the chips in a single pass which gives the index of each one. With
+   * a store, which may be ahead of the chips shown, each chip is inserted
+   * where it belongs in the store by {@link ChipStore#addSorted}.
+   * 
+   * @param chipModels
+   */
+  private void addSortedChips(List<E> chipModels) {
+    if (null != this.chipStore) {
+      for (E chipModel : chipModels) {
+        this.chipStore.addSorted(chipModel, this.chipComparator);
+      }
+      this.applyStoreChanges();
+      return;
+    }
+    ArrayList<E> added = new ArrayList<E>(chipModels);
+    Collections.sort(added, this.chipComparator);
+    int size = added.size();
+    int[] indexes = new int[size];
+    int i = 0;
+    for (int j = 0; j < size; j++) {
+      E chipModel = added.get(j);
+      while (i < this.chipsList.size()
+          && this.chipComparator.compare(this.chipsList.get(i), chipModel) <= 0) {
+        ++i;
+      }
+      //
+      // After the j chips added before it.
+      indexes[j] = i + j;
+    }
+    
+    //
+    // Runs of chips going to consecutive indexes are inserted at once.
+    int start = 0;
+    for (int j = 1; j <= size; j++) {
+      if (j == size || indexes[j] != indexes[j - 1] + 1) {
+        this.insertChips(indexes[start], added.subList(start, j));
+        start = j;
+      }
+    }
+  }
+  
+  /**
+   * Replaces the chips with the given ones, e.g. when a list row is bound to
+   * another item. The existing chips are rebound to the new models instead of
+   * being created again, the extra ones go back to the {@link ChipPool}.
+   * 
+   * @param chipModels
+   */
+  public void setChips(List<E> chipModels) {
+    if (null != this.chipComparator && !this.applyingStoreChanges) {
+      ArrayList<E> sorted = new ArrayList<E>(chipModels);
+      Collections.sort(sorted, this.chipComparator);
+      chipModels = sorted;
+    }
+    if (null != this.chipStore && !this.applyingStoreChanges) {
+      this.chipStore.setAll(chipModels);
+      this.applyStoreChanges();
+      return;
+    }
+    List<E> pendingModels = this.chipsList.subList(this.materializedCount, this.chipsList.size());
+    for (int i = 0, size = pendingModels.size(); i < size; i++) {
+      this.unindexChip(pendingModels.get(i));
+    }
+    pendingModels.clear();
+    int oldCount = this.chipViewCount();
+    int newCount = chipModels.size();
+    int common = Math.min(oldCount, newCount);
+    for (int i = 0; i < common; i++) {
+      E oldModel = this.chipsList.get(i);
+      E newModel = chipModels.get(i);
+      if (oldModel == newModel) {
+        continue;
+      }
+      Chip<E> chip = this.getChipAt(i);
+      this.onChipRemoved(chip, oldModel);
+      this.unindexChip(oldModel);
+      this.chipsList.set(i, newModel);
+      this.indexChip(newModel);
+      chip.setChipModel(newModel);
+      this.onChipAdded(chip, newModel);
+    }
+    
+    if (oldCount > newCount) {
+      for (int i = oldCount - 1; i >= newCount; i--) {
+        Chip<E> chip = this.getChipAt(i);
+        this.removeViewInLayout(chip);
+        E chipModel = this.chipsList.remove(i);
+        this.onChipRemoved(chip, chipModel);
+        this.unindexChip(chipModel);
+        --this.materializedCount;
+        this.chipPool.release(chip);
+      }
+      this.chipsChangedFrom(newCount);
+      this.requestLayout();
+      this.invalidate();
+    }
+    
+    for (int i = oldCount; i < newCount; i++) {
+      this.appendChip(chipModels.get(i));
+    }
+  }
+  
+  /**
+   * Returns the height a list row layout takes to show the given chips in the
+   * given width, computed from the models without creating any view. Lets an
+   * adapter know the row heights before binding.
+   * 
+   * The chip text size is assumed to be the TextView default.
+   * 
+   * @param context
+   * @param chipModels
+   * @param width
+   * @return
+   */
+  public static int measureListRowHeight(Context context, List<? extends IChipModel> chipModels, int width) {
+    ChipsSnapshotRenderer measurer;
+    synchronized (ChipsLayout.class) {
+      if (null == sRowMeasurer) {
+        sRowMeasurer = new ChipsSnapshotRenderer(context);
+      }
+      measurer = sRowMeasurer;
+    }
+    return measurer.measureHeight(chipModels, width);
+  }
+  
+  /**
+   * Shows the chips of a paged data source instead of the current chips.
+   * Only the pages needed are loaded: the first page when opened or
+   * collapsed, then page after page as the expanded layout is scrolled.
+   * Rows scrolled far out of sight are dropped and loaded again when they
+   * are scrolled back to, so that the layout only holds the chips around
+   * its visible part, see {@link ChipPager}. The number of chips not loaded
+   * is taken from the total count hint and shown in the "+N" badge.
+   * 
+   * @param dataSource the data source or null to stop using one
+   */
+  public void setDataSource(IChipDataSource<E> dataSource) {
+    if (null != this.pager) {
+      this.pager.release();
+      this.pager = null;
+    }
+    this.setChips(new ArrayList<E>());
+    this.setFlowTop(0);
+    if (null != dataSource) {
+      this.pager = new ChipPager<E>(this, dataSource, MAX_CACHED_PAGES);
+      this.pager.loadNextPage();
+    }
+  }
+  
+  /**
+   * Appends a page loaded from the data source.
+   * 
+   * @param chipModels
+   */
+  void appendPage(List<E> chipModels) {
+    int index = this.chipViewCount();
+    this.addChips(chipModels);
+    if (this.layoutStatus == LayoutStatus.COLLAPSED) {
+      //
+      // Keep the new chips hidden, they are counted in the badge already
+      // unless there was no total count hint.
+      int chipCount = this.chipViewCount();
+      for (int i = index; i < chipCount; i++) {
+        this.getChildAt(i).setVisibility(View.GONE);
+      }
+      this.hiddenChipCount += chipCount - index;
+      this.drawHideCount(this.getHiddenChipCount());
+    }
+  }
+  
+  /**
+   * Inserts the chips of the data source loaded again before the first chip.
+   * 
+   * @param chipModels
+   */
+  void insertPage(List<E> chipModels) {
+    this.addChips(0, chipModels);
+  }
+  
+  /**
+   * Removes the chips in [from, to) quietly, as no longer needed for the
+   * visible part: no animation, no undo, their views go back to the pool.
+   * 
+   * @param from
+   * @param to clamped to the chip count
+   */
+  void dropChips(int from, int to) {
+    to = Math.min(to, this.chipsList.size());
+    if (from >= to) {
+      return;
+    }
+    int viewsTo = Math.min(to, this.materializedCount);
+    for (int i = viewsTo - 1; i >= from; i--) {
+      Chip<E> chip = this.getChipAt(i);
+      this.removeViewInLayout(chip);
+      this.onChipRemoved(chip, this.chipsList.get(i));
+      this.chipPool.release(chip);
+    }
+    this.materializedCount -= Math.max(0, viewsTo - from);
+    List<E> droppedModels = this.chipsList.subList(from, to);
+    for (int i = 0, size = droppedModels.size(); i < size; i++) {
+      this.unindexChip(droppedModels.get(i));
+    }
+    droppedModels.clear();
+    this.chipsChangedFrom(from);
+    this.requestLayout();
+    this.invalidate();
+  }
+  
+  /**
+   * Sets the top of the first row: the space of the chips dropped above it.
+   * 
+   * @param top
+   */
+  void setFlowTop(int top) {
+    if (top != this.chipsFlow.getTop()) {
+      this.chipsFlow.setTop(top);
+      this.layoutCache.invalidate();
+    }
+    this.requestLayout();
+  }
+  
+  /**
+   * A page not appended at once is loaded, it may be needed by the window.
+   */
+  void onPageLoaded() {
+    this.removeCallbacks(this.loadPagesRunnable);
+    this.post(this.loadPagesRunnable);
+  }
+  
+  /**
+   * Returns the number of chips of the data source not loaded yet.
+   * 
+   * @return
+   */
+  private int getUnloadedChipCount() {
+    return null == this.pager ? 0 : this.pager.getUnloadedCount();
+  }
+  
+  /**
+   * Returns what the window of the data source needs for the visible part of
+   * the expanded layout, see {@link ChipPager#getAction}.
+   * 
+   * @return
+   */
+  private int getScrollWindowAction() {
+    if (null == this.pager || this.layoutStatus == LayoutStatus.COLLAPSED
+        || this.getPendingChipCount() > 0 || !this.getLocalVisibleRect(this.visibleRect)) {
+      return ChipPager.ACTION_NONE;
+    }
+    return this.pager.getAction(this.chipsFlow, this.visibleRect.top, this.visibleRect.bottom,
+        this.canDropChips());
+  }
+  
+  /**
+   * Loads the chips of the data source near the visible part of the
+   * expanded layout, and drops the rows far from it.
+   */
+  private void updateScrollWindow() {
+    if (this.getScrollWindowAction() != ChipPager.ACTION_NONE) {
+      this.pager.updateWindow(this.chipsFlow, this.visibleRect.top, this.visibleRect.bottom,
+          this.canDropChips());
+    }
+  }
+  
+  /**
+   * Returns whether chips of the data source can be dropped: not while a
+   * chip is dragged, nor when the chips are kept by a store or sorted, both
+   * owning the positions of the chips.
+   * 
+   * @return
+   */
+  private boolean canDropChips() {
+    return null == this.draggedChip && null == this.chipStore && null == this.chipComparator;
+  }
+  
+  /**
+   * Runs {@link #updateScrollWindow()} after a layout pass.
+   */
+  private final Runnable loadPagesRunnable = new Runnable() {
+    @Override
+    public void run() {
+      updateScrollWindow();
+    }
+  };
+  
+  /**
+   * Whether {@link #collapse()} waits for the first page to be laid out.
+   */
+  private boolean collapsePending;
+  
+  /**
+   * Collapses the layout after a layout pass.
+   */
+  private final Runnable collapser = new Runnable() {
+    @Override
+    public void run() {
+      collapse();
+    }
+  };
+  
+  /**
+   * Moves a chip to another position. The existing chip view is moved, not
+   * created again, and only the rows from the one holding {@code from} or
+   * {@code to} (whichever is first) are laid out again, up to the first row
+   * after the other one which starts where it used to.
+   * 
+   * @param from
+   * @param to
+   */
+  public void moveChip(int from, int to) {
+    int chipCount = this.chipViewCount();
+    if (from < 0 || from >= chipCount || to < 0 || to >= chipCount) {
+      throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", chips: " + chipCount);
+    }
+    if (from == to) {
+      return;
+    }
+    Chip<E> chip = this.getChipAt(from);
+    if (null != this.chipStore && !this.applyingStoreChanges) {
+      this.chipStore.move(chip.getChipModel().getChipKey(), to);
+      this.applyStoreChanges();
+      return;
+    }
+    this.detachViewFromParent(from);
+    this.attachViewToParent(chip, to, chip.getLayoutParams());
+    this.chipsList.add(to, this.chipsList.remove(from));
+    this.chipsFlow.move(from, to);
+    this.layoutCache.invalidate();
+    this.chipsAnimator.arm();
+    if (chip == this.draggedChip) {
+      this.dragIndex = to;
+    }
+    this.requestLayout();
+    this.invalidate();
+  }
+  
+  /**
+   * Sets the max width of a chip, margins included. The text of a wider
+   * chip is ellipsized to fit.
+   * 
+   * @param maxChipWidth the max width in pixels, -1 (the default) for the
+   *        width of the layout
+   */
+  public void setMaxChipWidth(int maxChipWidth) {
+    if (maxChipWidth == this.maxChipWidth) {
+      return;
+    }
+    this.maxChipWidth = maxChipWidth;
+    //
+    // Measure all the chips again.
+    this.lastWidthMeasureSpec = -1;
+    this.layoutCache.evictAll();
+    this.requestLayout();
+  }
+  
+  /**
+   * Returns the max width of a chip, -1 for the width of the layout.
+   * 
+   * @return
+   */
+  public int getMaxChipWidth() {
+    return this.maxChipWidth;
+  }
+  
+  /**
+   * Returns the max width of a chip in the given width measure spec.
+   * 
+   * @param widthMeasureSpec
+   * @return
+   */
+  private int getMaxChipWidth(int widthMeasureSpec) {
+    int maxWidth = MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED
+        ? Integer.MAX_VALUE : MeasureSpec.getSize(widthMeasureSpec);
+    if (this.maxChipWidth > 0) {
+      maxWidth = Math.min(maxWidth, this.maxChipWidth);
+    }
+    return maxWidth;
+  }
+  
+  /**
+   * Enables or disables the animations of the changes (chips added,
+   * deleted, moved, collapsed or expanded). Enabled by default.
+   * 
+   * @param animateChanges
+   */
+  public void setAnimateChanges(boolean animateChanges) {
+    this.chipsAnimator.setEnabled(animateChanges);
+  }
+  
+  /**
+   * Returns whether the changes are animated.
+   * 
+   * @return
+   */
+  public boolean isAnimateChanges() {
+    return this.chipsAnimator.isEnabled();
+  }
+  
+  /**
+   * Enables or disables reordering the chips by long pressing and dragging
+   * them.
+   * 
+   * @param enabled
+   */
+  public void setDragReorderEnabled(boolean enabled) {
+    this.dragReorderEnabled = enabled;
+    int chipCount = this.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.getChipAt(i);
+      chip.setOnLongClickListener(enabled ? this.dragStarter : null);
+      chip.setLongClickable(enabled);
+    }
+  }
+  
+  /**
+   * Sets the listener notified when a chip is dragged to another position.
+   * 
+   * @param listener
+   */
+  public void setChipMoveListener(IChipMoveListener<E> listener) {
+    this.moveListener = listener;
+  }
+  
+  /**
+   * Starts dragging the long pressed chip.
+   */
+  private final OnLongClickListener dragStarter = new OnLongClickListener() {
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean onLongClick(View v) {
+      return startDrag((Chip<E>) v);
+    }
+  };
+  
+  /**
+   * Starts dragging a chip. The chip follows the finger through translation
+   * on a hardware layer; the layout only changes when it is dropped over
+   * another chip.
+   * 
+   * @param chip
+   * @return whether the drag is started
+   */
+  private boolean startDrag(Chip<E> chip) {
+    if (!this.dragReorderEnabled || this.listRowMode
+        || this.layoutStatus == LayoutStatus.COLLAPSED || null != this.draggedChip) {
+      return false;
+    }
+    this.draggedChip = chip;
+    this.dragIndex = this.indexOfChild(chip);
+    this.dragFromIndex = this.dragIndex;
+    this.dragDownX = this.lastTouchX;
+    this.dragDownY = this.lastTouchY;
+    this.dragStartLeft = chip.getLeft();
+    this.dragStartTop = chip.getTop();
+    chip.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+    chip.setPressed(false);
+    if (null != this.getParent()) {
+      this.getParent().requestDisallowInterceptTouchEvent(true);
+    }
+    this.setChildrenDrawingOrderEnabled(true);
+    this.invalidate();
+    return true;
+  }
+  
+  /**
+   * Drops the dragged chip at its current position.
+   */
+  private void endDrag() {
+    Chip<E> chip = this.draggedChip;
+    this.draggedChip = null;
+    chip.setTranslationX(0);
+    chip.setTranslationY(0);
+    chip.setLayerType(View.LAYER_TYPE_NONE, null);
+    this.setChildrenDrawingOrderEnabled(false);
+    this.invalidate();
+    if (null != this.moveListener && this.dragFromIndex != this.dragIndex) {
+      this.moveListener.onChipMoved(chip.getChipModel(), this.dragFromIndex, this.dragIndex);
+    }
+  }
+  
+  /**
+   * Keeps the dragged chip under the finger, wherever it is laid out.
+   */
+  private void updateDragTranslation() {
+    Chip<E> chip = this.draggedChip;
+    chip.setTranslationX(this.dragStartLeft + this.lastTouchX - this.dragDownX - chip.getLeft());
+    chip.setTranslationY(this.dragStartTop + this.lastTouchY - this.dragDownY - chip.getTop());
+  }
+  
+  /**
+   * Returns the index of the chip at the given point, found through the rows
+   * of the flow.
+   * 
+   * @param x
+   * @param y
+   * @return the index or -1 if there is no chip there
+   */
+  private int findChipIndexAt(float x, float y) {
+    int rowCount = this.chipsFlow.getRowCount();
+    int low = 0;
+    int high = rowCount - 1;
+    int row = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (this.chipsFlow.getRowTop(mid) <= y) {
+        row = mid;
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    if (row < 0) {
+      return -1;
+    }
+    int start = this.chipsFlow.getRowStart(row);
+    int end = row + 1 < rowCount ? this.chipsFlow.getRowStart(row + 1) : this.flowedChipCount;
+    for (int i = start; i < end; i++) {
+      int width = this.chipsFlow.getChipWidth(i);
+      if (width == ChipsFlow.GONE) {
+        continue;
+      }
+      int left = this.chipsFlow.getX(i);
+      if (x >= left && x < left + width) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  @Override
+  public boolean onInterceptTouchEvent(MotionEvent event) {
+    this.lastTouchX = event.getX();
+    this.lastTouchY = event.getY();
+    return null != this.draggedChip;
+  }
+  
+  @Override
+  public boolean onTouchEvent(MotionEvent event) {
+    if (null == this.draggedChip) {
+      return super.onTouchEvent(event);
+    }
+    switch (event.getActionMasked()) {
+      case MotionEvent.ACTION_MOVE:
+        this.lastTouchX = event.getX();
+        this.lastTouchY = event.getY();
+        this.updateDragTranslation();
+        int target = this.findChipIndexAt(this.lastTouchX, this.lastTouchY);
+        if (target >= 0 && target != this.dragIndex) {
+          this.moveChip(this.dragIndex, target);
+        }
+        break;
+      case MotionEvent.ACTION_UP:
+      case MotionEvent.ACTION_CANCEL:
+        this.endDrag();
+        break;
+      default:
+        break;
+    }
+    return true;
+  }
+  
+  @Override
+  protected int getChildDrawingOrder(int childCount, int i) {
+    //
+    // Draw the dragged chip last, on top of the others.
+    if (null == this.draggedChip) {
+      return i;
+    }
+    if (i == childCount - 1) {
+      return this.dragIndex;
+    }
+    return i >= this.dragIndex ? i + 1 : i;
+  }
+  
+  /**
+   * Rebinds the chip of the given key to its (changed) model.
+   * Only that chip is measured again, and only the rows from its row on are
+   * laid out again if its size is changed.
+   * 
+   * @param key
+   */
+  public void notifyChipChanged(String key) {
+    Chip<E> chip = this.chipsByKey.get(key);
+    if (null != chip) {
+      chip.rebind();
+      if (null != this.searchIndex) {
+        E chipModel = chip.getChipModel();
+        this.applyFilter(chip, this.searchIndex.add(key, chipModel.getChipText(), chipModel));
+      }
+    }
+  }
+  
+  /**
+   * Filters the chips by a search on their text and key, case insensitive:
+   * the chips not containing the query are hidden or dimmed (see
+   * {@link #setFilterMode(FilterMode)}). Meant to be called on every
+   * keystroke: only the chips whose match state is changed are touched, and
+   * the layout is done once for all of them.
+   * 
+   * The search index is built by the first call over the chip models, so
+   * that the chips kept as models by a lazy collapse are searched too, and
+   * kept up to date as the chips are added, removed or changed. The chips of
+   * a data source not loaded are not searched, filter the data source
+   * instead.
+   * 
+   * @param query the query, null or empty to show all the chips
+   * @return the number of chips matching
+   */
+  public int filterChips(CharSequence query) {
+    if (null == this.searchIndex) {
+      this.searchIndex = new ChipSearchIndex<E>();
+      for (int i = 0, size = this.chipsList.size(); i < size; i++) {
+        E chipModel = this.chipsList.get(i);
+        this.searchIndex.add(chipModel.getChipKey(), chipModel.getChipText(), chipModel);
+      }
+    }
+    if (!TextUtils.isEmpty(query) && this.layoutStatus == LayoutStatus.COLLAPSED) {
+      this.expand();
+    }
+    int count = this.searchIndex.search(query, this.matchedChips, this.unmatchedChips);
+    for (int i = 0, size = this.matchedChips.size(); i < size; i++) {
+      this.applyFilter(this.matchedChips.get(i), true);
+    }
+    for (int i = 0, size = this.unmatchedChips.size(); i < size; i++) {
+      this.applyFilter(this.unmatchedChips.get(i), false);
+    }
+    this.matchedChips.clear();
+    this.unmatchedChips.clear();
+    return count;
+  }
+  
+  /**
+   * Sets how the chips not matching the search are filtered, hidden by
+   * default.
+   * 
+   * @param filterMode
+   */
+  public void setFilterMode(FilterMode filterMode) {
+    if (filterMode == this.filterMode) {
+      return;
+    }
+    int chipCount = this.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.getChipAt(i);
+      if (this.isFilteredOut(chip)) {
+        this.applyFilter(chip, true);
+      }
+    }
+    this.filterMode = filterMode;
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.getChipAt(i);
+      if (this.isFilteredOut(chip)) {
+        this.applyFilter(chip, false);
+      }
+    }
+  }
+  
+  /**
+   * Returns how the chips not matching the search are filtered.
+   * 
+   * @return
+   */
+  public FilterMode getFilterMode() {
+    return this.filterMode;
+  }
+  
+  /**
+   * Returns whether the chip does not match the current search.
+   * 
+   * @param chip
+   * @return
+   */
+  private boolean isFilteredOut(Chip<E> chip) {
+    return null != this.searchIndex && this.searchIndex.hasQuery()
+        && !this.searchIndex.isMatched(chip.getChipModel().getChipKey());
+  }
+  
+  /**
+   * Shows or filters out the view of a chip, if it has one: the chips kept
+   * as models are filtered when their view is created.
+   * 
+   * @param chipModel
+   * @param matched
+   */
+  private void applyFilter(E chipModel, boolean matched) {
+    Chip<E> chip = this.chipsByKey.get(chipModel.getChipKey());
+    if (null != chip && chip.getChipModel() == chipModel) {
+      this.applyFilter(chip, matched);
+    }
+  }
+  
+  /**
+   * Shows or filters out a chip.
+   * 
+   * @param chip
+   * @param matched
+   */
+  private void applyFilter(Chip<E> chip, boolean matched) {
+    if (this.filterMode == FilterMode.DIM) {
+      chip.setDimmed(!matched);
+    }
+    else if (!matched) {
+      chip.setVisibility(View.GONE);
+    }
+    else if (this.layoutStatus != LayoutStatus.COLLAPSED) {
+      chip.setVisibility(View.VISIBLE);
+    }
+  }
+  
+  /**
+   * Returns the chip view at the given index.
+   * 
+   * @param index
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  Chip<E> getChipAt(int index) {
+    return (Chip<E>) this.getChildAt(index);
+  }
+  
+  /**
+   * Returns the number of the chip views, they are the first children.
+   * 
+   * @return
+   */
+  int chipViewCount() {
+    return this.materializedCount;
+  }
+  
+  /**
+   * Keeps track of a chip just added.
+   * 
+   * @param chip
+   * @param chipModel
+   */
+  private void onChipAdded(Chip<E> chip, E chipModel) {
+    this.chipsByKey.put(chipModel.getChipKey(), chip);
+    if (null != this.searchIndex && this.searchIndex.hasQuery()) {
+      this.applyFilter(chip, this.searchIndex.isMatched(chipModel.getChipKey()));
+    }
+    if (this.attachedToWindow && chipModel instanceof IObservableChipModel) {
+      ((IObservableChipModel) chipModel).addChipModelListener(this.modelListener);
+    }
+  }
+  
+  /**
+   * Adds or removes {@link #modelListener} to the observable models of the
+   * chip views. The chips are rebound when added, so that the changes made
+   * while the layout was detached are shown.
+   * 
+   * @param listen
+   */
+  private void listenToChipModels(boolean listen) {
+    int chipCount = this.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.getChipAt(i);
+      E chipModel = chip.getChipModel();
+      if (!(chipModel instanceof IObservableChipModel)) {
+        continue;
+      }
+      if (listen) {
+        ((IObservableChipModel) chipModel).addChipModelListener(this.modelListener);
+        if (chip.rebind() && null != this.searchIndex) {
+          this.applyFilter(chip, this.searchIndex.add(chipModel.getChipKey(), chipModel.getChipText(), chipModel));
+        }
+      }
+      else {
+        ((IObservableChipModel) chipModel).removeChipModelListener(this.modelListener);
+      }
+    }
+  }
+  
+  /**
+   * Stops tracking a chip just removed.
+   * 
+   * @param chip
+   * @param chipModel
+   */
+  private void onChipRemoved(Chip<E> chip, E chipModel) {
+    if (null == chipModel) {
+      return;
+    }
+    if (this.chipsByKey.get(chipModel.getChipKey()) == chip) {
+      this.chipsByKey.remove(chipModel.getChipKey());
+    }
+    if (chipModel instanceof IObservableChipModel) {
+      ((IObservableChipModel) chipModel).removeChipModelListener(this.modelListener);
+    }
+  }
+  
+  /**
+   * Indexes a chip model just put among the chips, with or without a view.
+   * 
+   * @param chipModel
+   * @return whether the chip matches the current search
+   */
+  private boolean indexChip(E chipModel) {
+    if (null == this.searchIndex) {
+      return true;
+    }
+    return this.searchIndex.add(chipModel.getChipKey(), chipModel.getChipText(), chipModel);
+  }
+  
+  /**
+   * Drops a chip model just taken out of the chips from the search index.
+   * 
+   * @param chipModel
+   */
+  private void unindexChip(E chipModel) {
+    if (null != this.searchIndex && null != chipModel) {
+      this.searchIndex.remove(chipModel.getChipKey());
+    }
+  }
+  
+  /**
+   * The chip views from the given index on are added, removed or replaced.
+   * 
+   * @param index
+   */
+  private void chipsChangedFrom(int index) {
+    this.chipsFlow.setCount(this.chipViewCount(), index);
+    this.sizesDirtyFrom = Math.min(this.sizesDirtyFrom, index);
+    this.layoutCache.invalidate();
+  }
+  
+  /**
+   * Create a {@link Chip} view instance.
+   * @param context
+   * @param chipModel
+   * @return
+   */
+  public Chip<E> createChip(Context context, E chipModel) {
+    Chip<E> chip = obtainChip(context);
+    LayoutParams lp = new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+    ChipsLayout.LayoutParams chipLayoutParam = new ChipsLayout.LayoutParams(lp);
+    chip.setLayoutParams(chipLayoutParam);
+    chip.setReadOnly(this.listRowMode);
+    if (this.dragReorderEnabled) {
+      chip.setOnLongClickListener(this.dragStarter);
+    }
+    chip.setChipModel(chipModel);
+    return chip;
+  }
+  
+  /**
+   * Takes a chip from the pool, or from the installed {@link ChipsPrewarmer}
+   * before the layout is attached. Inflates a new one if there is none.
+   * 
+   * @param context
+   * @return
+   */
+  private Chip<E> obtainChip(Context context) {
+    Chip<E> chip = this.chipPool.acquire();
+    if (null == chip && !this.prewarmHandedOff) {
+      ChipsPrewarmer prewarmer = ChipsPrewarmer.getInstalled(context);
+      if (null != prewarmer) {
+        chip = prewarmer.takeChip();
+      }
+    }
+    if (null == chip) {
+      chip = new Chip<E>(context);
+    }
+    return chip;
+  }
+  
+  /**
+   * Returns the memory retained by the chips of this layout, the pooled ones
+   * and the hidden count badge. Only counts, with the sizes measured so far:
+   * the non-bitmap part is 0 until {@link ChipMemoryStats#calibrate(Context)}
+   * is called, which is left to the caller as it inflates a few hundred
+   * chips.
+   * 
+   * @return
+   */
+  public ChipMemoryStats getMemoryStats() {
+    return this.collectMemoryStats();
+  }
+  
+  /**
+   * Counts the chips of this layout, the pooled ones and the hidden count
+   * badge, with the sizes measured so far.
+   * 
+   * @return
+   */
+  ChipMemoryStats collectMemoryStats() {
+    ChipMemoryStats stats = new ChipMemoryStats();
+    int childCount = this.getChildCount();
+    for (int i = 0; i < childCount; i++) {
+      View child = this.getChildAt(i);
+      if (child instanceof Chip) {
+        stats.addChip((Chip<?>) child);
+      }
+    }
+    stats.addOtherBytes(this.chipPool.size() * ChipMemoryStats.estimateOtherBytes(null));
+    stats.addBitmap(this.hideCountBitmap);
+    return stats;
+  }
+  
+  /**
+   * Returns the dip according to the given value.
+   * 
+   * @param context
+   * @param dps
+   * @return
+   */
+  public static int getPixelsByDp(Context context, int dps) {
+    final float scale = context.getResources().getDisplayMetrics().density;
+    int pixels = (int) (dps * scale + 0.5f);
+    return pixels;
+  }
+  
+  
+  
+  /* ------------------------------------ *
+   * Getter / Setter
+   * ------------------------------------ */
+  
+  /**
+   * Returns whether the layout is in list row mode.
+   * @return
+   */
+  public boolean isListRowMode() {
+    return this.listRowMode;
+  }
+  
+  /**
+   * Sets the display-only list row mode, for a ChipsLayout in each row of a
+   * ListView or RecyclerView: there is no EditText, no icons, the layout
+   * does not collapse and the chips cannot be selected or deleted.
+   * 
+   * Share one {@link ChipPool} among the rows with {@link #setChipPool},
+   * bind the rows with {@link #setChips(List)} and get the row heights from
+   * {@link #measureListRowHeight}.
+   * 
+   * @param listRowMode
+   */
+  public void setListRowMode(boolean listRowMode) {
+    if (listRowMode == this.listRowMode) {
+      return;
+    }
+    if (listRowMode) {
+      this.expand();
+      this.removeView(this.editText);
+      this.removeView(this.imageView);
+      this.removeView(this.hideCountImageView);
+      this.editText = null;
+      this.imageView = null;
+      this.hideCountImageView = null;
+      this.hideCountBitmap = null;
+      this.drawnHideCount = -1;
+      this.setOnClickListener(null);
+      this.setClickable(false);
+    }
+    else {
+      this.addChildren(this.context);
+      this.setOnClickListener(this.collapseToggle);
+    }
+    this.listRowMode = listRowMode;
+    int chipCount = this.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      this.getChipAt(i).setReadOnly(listRowMode);
+    }
+    this.requestLayout();
+  }
+  
+  /**
+   * Returns the EditText widget in ChipsLayout, null in list row mode.
+   * @return
+   */
+  public EditText getEditText () {
+    return this.editText;
+  }
+  
+  public ImageView getImageView () {
+    return this.imageView;
+  }
+  
+  /**
+   * Returns the pool the chips are taken from.
+   * @return
+   */
+  public ChipPool getChipPool() {
+    return this.chipPool;
+  }
+  
+  /**
+   * Sets the pool the chips are taken from, e.g. a pool shared by several
+   * layouts of the same Context.
+   * @param chipPool
+   */
+  public void setChipPool(ChipPool chipPool) {
+    this.chipPool = chipPool;
+  }
+  
+  /**
+   * Returns a copy of the chips, which is not changed by later changes of
+   * the layout, nor changes the layout. With a {@link ChipStore}, this is a
+   * copy of the current snapshot of the store; to read the chips from
+   * another thread, or without copying them, use the store.
+   * @return
+   */
+  public ArrayList<E> getAllChips() {
+    if (null != this.chipStore) {
+      return new ArrayList<E>(this.chipStore.snapshot());
+    }
+    return new ArrayList<E>(this.chipsList);
+  }
+  
+  /**
+   * Shows the chips of the given store, kept up to date with it: the store
+   * can be changed from any thread, its changes are applied on the UI
+   * thread. While a store is set, the chips added, removed or moved through
+   * the layout (or by the user) are changed in the store.
+   * 
+   * @param chipStore the store or null to stop following it
+   */
+  public void setChipStore(ChipStore<E> chipStore) {
+    if (null != this.chipStore) {
+      this.chipStore.removeOnChangeListener(this.storeListener);
+    }
+    this.chipStore = chipStore;
+    if (null == chipStore) {
+      return;
+    }
+    if (null != this.getWindowToken()) {
+      chipStore.addOnChangeListener(this.storeListener);
+    }
+    this.appliedStoreVersion = -1;
+    this.applyStoreChanges();
+  }
+  
+  /**
+   * Returns the store the chips are taken from, null if none.
+   * @return
+   */
+  public ChipStore<E> getChipStore() {
+    return this.chipStore;
+  }
+  
+  /**
+   * Applies the changes of the store since the snapshot shown, or shows the
+   * whole snapshot if they are not all in its log anymore.
+   */
+  private void applyStoreChanges() {
+    this.storeApplyPosted.set(false);
+    if (null == this.chipStore) {
+      return;
+    }
+    ChipStore.Snapshot<E> snapshot = this.chipStore.snapshot();
+    if (snapshot.getVersion() == this.appliedStoreVersion) {
+      return;
+    }
+    List<ChipStore.Change<E>> changes = this.appliedStoreVersion < 0
+        ? null : snapshot.getChangesSince(this.appliedStoreVersion);
+    this.applyingStoreChanges = true;
+    try {
+      if (null == changes) {
+        this.setChips(snapshot);
+      }
+      else {
+        for (ChipStore.Change<E> change : changes) {
+          this.applyStoreChange(change);
+        }
+      }
+    }
+    finally {
+      this.applyingStoreChanges = false;
+    }
+    this.appliedStoreVersion = snapshot.getVersion();
+  }
+  
+  /**
+   * Applies one change of the store.
+   * 
+   * @param change
+   */
+  private void applyStoreChange(ChipStore.Change<E> change) {
+    switch (change.getType()) {
+      case ADD:
+        this.addChips(change.getToIndex(), change.getChipModels());
+        break;
+      case REMOVE:
+        for (E chipModel : change.getChipModels()) {
+          this.removeChipOfKey(chipModel.getChipKey());
+        }
+        break;
+      case UPDATE:
+        this.replaceChip(change.getChipModels().get(0));
+        break;
+      case MOVE:
+        this.moveChipModel(change.getFromIndex(), change.getToIndex());
+        break;
+      default:
+        break;
+    }
+  }
+  
+  /**
+   * Removes the chip of the given key.
+   * 
+   * @param key
+   * @return false if there is no chip of this key
+   */
+  public boolean removeChip(String key) {
+    return this.removeChips(Collections.singleton(key)) > 0;
+  }
+  
+  /**
+   * Removes the chips of the given keys, as one step for {@link #undo()}.
+   * 
+   * @param keys
+   * @return the number of chips removed
+   */
+  public int removeChips(Collection<String> keys) {
+    this.undoBuffer.beginStep(keys, this.lastWidthMeasureSpec);
+    try {
+      int removed = 0;
+      if (null != this.chipStore) {
+        removed = this.chipStore.removeAll(keys);
+        this.applyStoreChanges();
+        return removed;
+      }
+      for (String key : keys) {
+        if (this.removeChipOfKey(key)) {
+          ++removed;
+        }
+      }
+      return removed;
+    }
+    finally {
+      this.undoBuffer.endStep(this.chipPool);
+    }
+  }
+  
+  /**
+   * Removes the chip of the given key from the layout.
+   * 
+   * @param key
+   * @return false if there is no chip of this key
+   */
+  private boolean removeChipOfKey(String key) {
+    Chip<E> chip = this.chipsByKey.get(key);
+    if (null != chip) {
+      this.removeChipAt(this.indexOfChild(chip));
+      return true;
+    }
+    int index = this.indexOfPendingChip(key);
+    if (index < 0) {
+      return false;
+    }
+    E chipModel = this.chipsList.remove(index);
+    this.unindexChip(chipModel);
+    this.undoBuffer.keep(index, chipModel, null);
+    if (this.layoutStatus == LayoutStatus.COLLAPSED) {
+      this.drawHideCount(this.getHiddenChipCount());
+    }
+    return true;
+  }
+  
+  /**
+   * Gives memory back, more at each higher level of
+   * {@link ComponentCallbacks2#onTrimMemory(int)}. While layouts are
+   * attached, a single callback trims them all, then the chip caches shared
+   * by the process once:
+   * <ul>
+   * <li>{@code TRIM_MEMORY_RUNNING_MODERATE}: half of the pooled chips and of
+   * the text caches are dropped.</li>
+   * <li>{@code TRIM_MEMORY_RUNNING_LOW} and {@code TRIM_MEMORY_RUNNING_CRITICAL}:
+   * the views kept for undo and all the pooled chips are dropped, and the
+   * flows kept for other widths.</li>
+   * <li>{@code TRIM_MEMORY_RUNNING_CRITICAL} and {@code TRIM_MEMORY_UI_HIDDEN}:
+   * the icons of the chips hidden or off-screen and of the views kept for undo
+   * are released, their avatars are dropped from {@link ChipAvatarCache}
+   * unless a chip of an attached layout shows them, and half of the avatar
+   * cache is dropped. The icons are decoded again when the chips are visible
+   * again.
+   * The views kept for undo are kept at {@code TRIM_MEMORY_UI_HIDDEN}, so that
+   * leaving the app does not lose the undo history.</li>
+   * <li>{@code TRIM_MEMORY_BACKGROUND} and above: the views kept for undo and
+   * the pooled chips are dropped, the avatar and text caches are emptied.</li>
+   * </ul>
+   * Called directly, it trims this layout and the chip caches. The bytes
+   * freed are reported to the {@link IChipTrimListener}.
+   * 
+   * @param level
+   */
+  public void trimMemory(int level) {
+    this.memoryTrimmer.trim(level);
+  }
+  
+  /**
+   * Sets the listener notified when the memory is trimmed, e.g. to report
+   * the bytes freed at each level.
+   * 
+   * @param listener
+   */
+  public void setTrimListener(IChipTrimListener listener) {
+    this.memoryTrimmer.setTrimListener(listener);
+  }
+  
+  /**
+   * Drops the flows kept for other measure specs, e.g. when memory is
+   * trimmed.
+   */
+  void evictCachedFlows() {
+    this.layoutCache.evictAll();
+  }
+  
+  /**
+   * Sets the number of deletions kept to be undone, see {@link #undo()}. A
+   * deletion keeps the detached chip views, so that undoing it re-attaches
+   * them as they were; the views are released under memory pressure.
+   * 
+   * @param steps the number of deletions, 0 (the default) to keep none
+   */
+  public void setUndoLimit(int steps) {
+    this.undoBuffer.setMaxSteps(steps, this.chipPool);
+  }
+  
+  /**
+   * Returns the number of deletions kept to be undone.
+   * @return
+   */
+  public int getUndoLimit() {
+    return this.undoBuffer.getMaxSteps();
+  }
+  
+  /**
+   * Returns whether there is a deletion to undo.
+   * @return
+   */
+  public boolean canUndo() {
+    return this.undoBuffer.size() > 0;
+  }
+  
+  /**
+   * Undoes the last deletion: a chip deleted by the user, or the chips
+   * deleted by one {@link #removeChips(Collection)}. The chips are put back
+   * where they were, through the store if one is set. Their views are
+   * re-attached as they were, only the rows from the first of them are
+   * flowed again.
+   * 
+   * @return false if there is nothing to undo
+   */
+  public boolean undo() {
+    return this.undoBuffer.undo(this, this.lastWidthMeasureSpec);
+  }
+  
+  /**
+   * Moves a chip to another layout, e.g. a recipient dragged from the To
+   * field to the Cc field. The chip view is detached as is and attached to
+   * the target layout, which becomes its {@link IChipListener}: nothing is
+   * inflated or bound again, and the chip is only measured again if the
+   * layouts have different widths. Each layout only flows its rows from the
+   * one of the chip. The stores of the layouts, if set, are changed. A group
+   * chip of a {@link ChipAggregator} stands for chips of its source store
+   * and only moves within its layout.
+   * 
+   * @param key
+   * @param targetLayout
+   * @param index the position in the target layout, clamped to [0, chip
+   *        count]
+   * @return false if there is no chip of this key, or it is a group chip
+   *         and the target is another layout
+   */
+  public boolean transferChip(String key, ChipsLayout<E> targetLayout, int index) {
+    Chip<E> chip = this.chipsByKey.get(key);
+    int pendingIndex = null == chip ? this.indexOfPendingChip(key) : -1;
+    if (null == chip && pendingIndex < 0) {
+      return false;
+    }
+    E chipModel = null != chip ? chip.getChipModel() : this.chipsList.get(pendingIndex);
+    if (targetLayout == this) {
+      int to = Math.max(0, Math.min(index, this.chipsList.size() - 1));
+      if (null != this.chipStore) {
+        this.chipStore.move(key, to);
+        this.applyStoreChanges();
+      }
+      else {
+        this.moveChipModel(this.chipsList.indexOf(chipModel), to);
+      }
+      return true;
+    }
+    if (ChipAggregator.isGroup(chipModel)) {
+      return false;
+    }
+    if (chip == this.draggedChip) {
+      this.endDrag();
+    }
+    
+    this.transferring = true;
+    try {
+      if (null != this.chipStore) {
+        this.chipStore.remove(key);
+        this.applyStoreChanges();
+      }
+      else {
+        this.removeChipOfKey(key);
+      }
+    }
+    finally {
+      this.transferring = false;
+    }
+    if (null != chip && null != chip.getParent()) {
+      //
+      // Not removed, e.g. by a store keeping it.
+      chip = null;
+    }
+    if (null != chip && (this.lastWidthMeasureSpec != targetLayout.lastWidthMeasureSpec
+        || this.maxChipWidth != targetLayout.maxChipWidth)) {
+      chip.forceLayout();
+    }
+    targetLayout.addDetachedChip(index, chipModel, chip);
+    return true;
+  }
+  
+  /**
+   * Adds a chip at the given index, reusing its detached view (e.g. kept by
+   * an undo) instead of creating one.
+   * 
+   * @param index
+   * @param chipModel
+   * @param chip the detached view, or null to create one
+   */
+  void addDetachedChip(int index, E chipModel, Chip<E> chip) {
+    if (null != chip) {
+      chip.reset();
+      this.restoredChips.put(chipModel, chip);
+    }
+    this.addChip(index, chipModel);
+    //
+    // Kept as a model only, e.g. by a lazy collapse.
+    Chip<E> unused = this.restoredChips.remove(chipModel);
+    if (null != unused) {
+      this.chipPool.release(unused);
+    }
+  }
+  
+  /**
+   * Replaces the chip of the same key with the given one, the chip view is
+   * rebound to it.
+   * 
+   * @param chipModel
+   */
+  private void replaceChip(E chipModel) {
+    String key = chipModel.getChipKey();
+    Chip<E> chip = this.chipsByKey.get(key);
+    if (null != chip) {
+      int index = this.indexOfChild(chip);
+      this.onChipRemoved(chip, this.chipsList.set(index, chipModel));
+      this.indexChip(chipModel);
+      chip.setChipModel(chipModel);
+      this.onChipAdded(chip, chipModel);
+      return;
+    }
+    int index = this.indexOfPendingChip(key);
+    if (index >= 0) {
+      this.chipsList.set(index, chipModel);
+      this.indexChip(chipModel);
+    }
+  }
+  
+  /**
+   * Moves a chip, which may be kept as a model by a lazy collapse.
+   * 
+   * @param from
+   * @param to
+   */
+  private void moveChipModel(int from, int to) {
+    if (from < this.materializedCount && to < this.materializedCount) {
+      this.moveChip(from, to);
+      return;
+    }
+    this.dematerializeFrom(Math.min(from, to));
+    this.chipsList.add(to, this.chipsList.remove(from));
+    if (this.layoutStatus == LayoutStatus.NORMAL) {
+      this.removeCallbacks(this.materializer);
+      this.post(this.materializer);
+    }
+  }
+  
+  /**
+   * Returns the index of the chip of the given key among the ones kept as
+   * models by a lazy collapse.
+   * 
+   * @param key
+   * @return the index or -1
+   */
+  private int indexOfPendingChip(String key) {
+    for (int i = this.materializedCount; i < this.chipsList.size(); i++) {
+      if (key.equals(this.chipsList.get(i).getChipKey())) {
+        return i;
+      }
+    }
+    return -1;
+  }
 
   @Override
   public void onDelete(Chip<E> chip) {
-    this.removeView(chip);
-    E e = chip.getChipModel();
-    this.chipsList.remove(e);
+    if (this.indexOfChild(chip) < 0) {
+      return;
+    }
+    this.removeChip(chip.getChipModel().getChipKey());
+  }
+  
+  /**
+   * Removes the chip view at the given index.
+   * 
+   * @param index
+   */
+  private void removeChipAt(int index) {
+    Chip<E> chip = this.getChipAt(index);
+    if (this.transferring) {
+      this.removeViewInLayout(chip);
+      this.chipsAnimator.arm();
+      this.requestLayout();
+      this.invalidate();
+    }
+    else {
+      this.chipsAnimator.removeView(chip);
+    }
+    E e = this.chipsList.remove(index);
+    --this.materializedCount;
+    this.collapsedRowFull = false;
+    this.onChipRemoved(chip, e);
+    this.unindexChip(e);
+    this.chipsChangedFrom(index);
+    //
+    // The detached view is kept as is, see undo.
+    this.undoBuffer.keep(index, e, chip);
   }
   
   /**
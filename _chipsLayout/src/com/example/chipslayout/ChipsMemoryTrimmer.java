@@ -0,0 +1,331 @@
+package com.example.chipslayout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Rect;
+import android.util.SparseBooleanArray;
+import android.view.View;
+
+/**
+ * Gives the memory of a {@link ChipsLayout} back under memory pressure: the
+ * pooled chips, the views kept for undo, the flows kept for other widths and
+ * the icons of the chips not on screen, more at each higher level of
+ * {@link ComponentCallbacks2#onTrimMemory(int)}.
+ *
+ * The chip caches are shared by the process, so they are trimmed once per
+ * trim, however many layouts are attached: a single callback trims all the
+ * attached layouts, then the caches. An avatar is only dropped from
+ * {@link ChipAvatarCache} if no chip of any attached layout shows it.
+ *
+ * All calls are made from the UI thread.
+ */
+final class ChipsMemoryTrimmer<E extends IChipModel> {
+
+  /**
+   * The trimmers of the attached layouts.
+   */
+  private static final ArrayList<ChipsMemoryTrimmer<?>> sAttached = new ArrayList<ChipsMemoryTrimmer<?>>();
+
+  /**
+   * Trims the attached layouts and the chip caches, registered while a
+   * layout is attached.
+   */
+  private static final ComponentCallbacks2 sCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      trim(new ArrayList<ChipsMemoryTrimmer<?>>(sAttached), level);
+    }
+
+    @Override
+    public void onLowMemory() {
+      this.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+  };
+
+  /**
+   * The layout trimmed.
+   */
+  private final ChipsLayout<E> layout;
+
+  /**
+   * The deletions kept by the layout to be undone.
+   */
+  private final ChipUndoBuffer<E> undoBuffer;
+
+  /**
+   * The visible part of the layout, to know which chips are on screen.
+   */
+  private final Rect visibleRect = new Rect();
+
+  /**
+   * Notified when the memory is trimmed.
+   */
+  private IChipTrimListener trimListener;
+
+  /**
+   * Whether icons of chips may be released, see
+   * {@link #releaseHiddenIcons(SparseBooleanArray)}.
+   */
+  private boolean iconsReleased;
+
+  /**
+   * Constructor.
+   *
+   * @param layout
+   * @param undoBuffer
+   */
+  ChipsMemoryTrimmer(ChipsLayout<E> layout, ChipUndoBuffer<E> undoBuffer) {
+    this.layout = layout;
+    this.undoBuffer = undoBuffer;
+  }
+
+  /**
+   * Trims the layout with the others attached, from now on.
+   *
+   * @param context
+   */
+  void attach(Context context) {
+    if (sAttached.contains(this)) {
+      return;
+    }
+    if (sAttached.isEmpty()) {
+      context.getApplicationContext().registerComponentCallbacks(sCallbacks);
+    }
+    sAttached.add(this);
+  }
+
+  /**
+   * Stops trimming the layout.
+   *
+   * @param context
+   */
+  void detach(Context context) {
+    if (sAttached.remove(this) && sAttached.isEmpty()) {
+      context.getApplicationContext().unregisterComponentCallbacks(sCallbacks);
+    }
+  }
+
+  /**
+   * Sets the listener notified when the memory is trimmed.
+   *
+   * @param listener
+   */
+  void setTrimListener(IChipTrimListener listener) {
+    this.trimListener = listener;
+  }
+
+  /**
+   * Gives memory back for the given level, of this layout and of the chip
+   * caches, see {@link ChipsLayout#trimMemory(int)}.
+   *
+   * @param level
+   */
+  void trim(int level) {
+    trim(Collections.<ChipsMemoryTrimmer<?>> singletonList(this), level);
+  }
+
+  /**
+   * Gives memory back for the given level, of the given layouts, then of the
+   * chip caches once.
+   *
+   * @param trimmers
+   * @param level
+   */
+  private static void trim(List<ChipsMemoryTrimmer<?>> trimmers, int level) {
+    if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      return;
+    }
+    long[] retainedBytes = new long[trimmers.size()];
+    for (int i = 0; i < trimmers.size(); i++) {
+      ChipsMemoryTrimmer<?> trimmer = trimmers.get(i);
+      retainedBytes[i] = null != trimmer.trimListener ? trimmer.getRetainedBytes() : 0;
+    }
+    //
+    // The res id of each icon, whether a chip still shows it.
+    SparseBooleanArray icons = new SparseBooleanArray();
+    for (ChipsMemoryTrimmer<?> trimmer : trimmers) {
+      trimmer.trimLayout(level, icons);
+    }
+    for (ChipsMemoryTrimmer<?> other : sAttached) {
+      if (!trimmers.contains(other)) {
+        other.addShownIcons(icons);
+      }
+    }
+    trimCaches(level, icons);
+    for (int i = 0; i < trimmers.size(); i++) {
+      ChipsMemoryTrimmer<?> trimmer = trimmers.get(i);
+      if (null != trimmer.trimListener) {
+        trimmer.trimListener.onMemoryTrimmed(level, Math.max(0, retainedBytes[i] - trimmer.getRetainedBytes()));
+      }
+    }
+  }
+
+  /**
+   * Gives the memory of the layout back for the given level.
+   *
+   * @param level
+   * @param icons the icons released and shown are added to it
+   */
+  private void trimLayout(int level, SparseBooleanArray icons) {
+    ChipPool chipPool = this.layout.getChipPool();
+    //
+    // UI_HIDDEN is above the running levels but only means the UI is left.
+    boolean uiHidden = level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW && !uiHidden) {
+      this.undoBuffer.releaseViews(chipPool);
+      chipPool.trimTo(0);
+      this.layout.evictCachedFlows();
+    }
+    else {
+      chipPool.trimTo(chipPool.size() / 2);
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      this.releaseHiddenIcons(icons);
+    }
+  }
+
+  /**
+   * Trims the chip caches shared by the process for the given level.
+   *
+   * @param level
+   * @param icons the icons released, which are dropped from the avatar cache
+   *          unless a chip still shows them
+   */
+  private static void trimCaches(int level, SparseBooleanArray icons) {
+    ChipTextCache textCache = ChipTextCache.getInstance();
+    ChipTextEllipsizer ellipsizer = ChipTextEllipsizer.getInstance();
+    ChipAvatarCache avatarCache = ChipAvatarCache.getInstance();
+    for (int i = 0; i < icons.size(); i++) {
+      if (!icons.valueAt(i)) {
+        avatarCache.remove(icons.keyAt(i));
+      }
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      textCache.trimToSize(0);
+      ellipsizer.trimToSize(0);
+      avatarCache.trimToSize(0);
+    }
+    else {
+      textCache.trimToSize(textCache.size() / 2);
+      ellipsizer.trimToSize(ellipsizer.size() / 2);
+      if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+        avatarCache.trimToSize(avatarCache.size() / 2);
+      }
+    }
+  }
+
+  /**
+   * Returns the bytes retained by the layout, the views kept for undo and the
+   * shared chip caches. An avatar still shown by a chip is counted once.
+   *
+   * @return
+   */
+  private long getRetainedBytes() {
+    ChipMemoryStats stats = this.layout.collectMemoryStats();
+    stats.addOtherBytes(this.undoBuffer.viewCount() * ChipMemoryStats.estimateOtherBytes(null));
+    ChipAvatarCache.getInstance().addBitmapsTo(stats);
+    long textEntries = ChipTextCache.getInstance().size() + ChipTextEllipsizer.getInstance().size();
+    stats.addOtherBytes(textEntries * ChipMemoryStats.estimateTextCacheEntryBytes());
+    return stats.getTotalBytes();
+  }
+
+  /**
+   * Releases the icons of the chips not on screen: gone (e.g. collapsed),
+   * scrolled out of view, or all of them while the window is hidden; and the
+   * icons of the views kept for undo.
+   *
+   * @param icons the icons released are added to it as not shown, the icons
+   *          of the chips on screen as shown
+   */
+  private void releaseHiddenIcons(SparseBooleanArray icons) {
+    boolean shown = this.updateVisibleRect();
+    int chipCount = this.layout.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.layout.getChipAt(i);
+      int resId = chip.getChipIconResId();
+      if (shown && this.isOnScreen(chip)) {
+        icons.put(resId, true);
+      }
+      else if (chip.releaseIcon()) {
+        this.iconsReleased = true;
+        if (icons.indexOfKey(resId) < 0) {
+          icons.put(resId, false);
+        }
+      }
+    }
+    this.undoBuffer.releaseIcons(icons);
+  }
+
+  /**
+   * Adds the icons the chips of the layout still show to the given ones, as
+   * shown, for a trim of the other layouts.
+   *
+   * @param icons
+   */
+  private void addShownIcons(SparseBooleanArray icons) {
+    int chipCount = this.layout.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.layout.getChipAt(i);
+      if (!chip.isIconReleased()) {
+        icons.put(chip.getChipIconResId(), true);
+      }
+    }
+  }
+
+  /**
+   * Decodes again the icons released by
+   * {@link #releaseHiddenIcons(SparseBooleanArray)} of the chips back on
+   * screen. Called when the layout may have been scrolled or shown again,
+   * does nothing if no icon is released.
+   */
+  void restoreVisibleIcons() {
+    if (!this.iconsReleased || !this.updateVisibleRect()) {
+      return;
+    }
+    boolean released = false;
+    int chipCount = this.layout.chipViewCount();
+    for (int i = 0; i < chipCount; i++) {
+      Chip<E> chip = this.layout.getChipAt(i);
+      if (!chip.isIconReleased()) {
+        continue;
+      }
+      if (this.isOnScreen(chip)) {
+        chip.restoreIcon();
+      }
+      else {
+        released = true;
+      }
+    }
+    this.iconsReleased = released;
+  }
+
+  /**
+   * Sets {@link #visibleRect} to the visible part of the layout.
+   *
+   * @return false if no part of the layout is on screen
+   */
+  private boolean updateVisibleRect() {
+    return this.layout.getWindowVisibility() == View.VISIBLE && this.layout.isShown()
+        && this.layout.getLocalVisibleRect(this.visibleRect);
+  }
+
+  /**
+   * Returns whether the chip is visible within {@link #visibleRect}.
+   *
+   * @param chip
+   * @return
+   */
+  private boolean isOnScreen(Chip<E> chip) {
+    return chip.getVisibility() == View.VISIBLE
+        && this.visibleRect.intersects(chip.getLeft(), chip.getTop(), chip.getRight(), chip.getBottom());
+  }
+}
@@ -0,0 +1,263 @@
+package com.example.chipslayout;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.widget.EditText;
+
+/**
+ * Opt-in warm-up of chip-heavy screens.
+ *
+ * Before the screen is built (e.g. in the previous screen, or at the very
+ * beginning of {@code onCreate}), start a prewarmer with the Context the
+ * {@link ChipsLayout} will be created with:
+ *
+ * <pre>
+ * ChipsPrewarmer prewarmer = new ChipsPrewarmer(activity, 200);
+ * prewarmer.setAvatarResIds(R.drawable.boy, R.drawable.uncle);
+ * prewarmer.start();
+ * </pre>
+ *
+ * The avatars are decoded into {@link ChipAvatarCache} on a background
+ * thread. The views ({@link Chip}s and the EditText) are not safe to be
+ * created off the UI thread, so they are created on the main thread while it
+ * is idle, in small batches that never block a frame.
+ *
+ * While started, the prewarmer is installed: ChipsLayouts take their EditText
+ * and chips from it, and the chips left are handed to the layout when it is
+ * first attached to window. Call {@link #stop()} when the screen is gone.
+ *
+ * The prewarmer is installed through a weak reference only, so that a
+ * prewarmer never stopped does not leak its Activity: keep a reference to it
+ * for as long as the screen it warms up, e.g. in a field of the Activity.
+ */
+public class ChipsPrewarmer implements MessageQueue.IdleHandler {
+
+  /**
+   * The max time (in ms) spent in one idle callback.
+   */
+  private static final long IDLE_BATCH_MS = 4;
+
+  /**
+   * The installed prewarmer, if any. Weak, since the prewarmer and its chips
+   * hold an Activity.
+   */
+  private static WeakReference<ChipsPrewarmer> sInstalled;
+
+  /**
+   * The Context to create the views with.
+   */
+  private final Context context;
+
+  /**
+   * The number of chips to create.
+   */
+  private final int chipCount;
+
+  /**
+   * The number of EditTexts to create, one per ChipsLayout on the screen.
+   */
+  private int editTextCount = 1;
+
+  /**
+   * The res ids of the avatars to decode.
+   */
+  private int[] avatarResIds = new int[0];
+
+  /**
+   * The prewarmed chips.
+   */
+  private final ChipPool chipPool;
+
+  /**
+   * The prewarmed EditTexts.
+   */
+  private final ArrayList<EditText> editTexts = new ArrayList<EditText>();
+
+  /**
+   * The number of chips created so far.
+   */
+  private int chipsCreated;
+
+  /**
+   * Whether the prewarmer is running.
+   */
+  private boolean started;
+
+  /**
+   * Constructor.
+   *
+   * @param context the Context the ChipsLayout will be created with
+   * @param chipCount the number of chips to create
+   */
+  public ChipsPrewarmer(Context context, int chipCount) {
+    this.context = context;
+    this.chipCount = chipCount;
+    this.chipPool = new ChipPool(chipCount);
+  }
+
+  /**
+   * Sets the avatars to be decoded in background.
+   *
+   * @param resIds
+   */
+  public void setAvatarResIds(int... resIds) {
+    this.avatarResIds = resIds;
+  }
+
+  /**
+   * Sets the number of EditTexts to create, one per ChipsLayout.
+   * Defaults to 1.
+   *
+   * @param editTextCount
+   */
+  public void setEditTextCount(int editTextCount) {
+    this.editTextCount = editTextCount;
+  }
+
+  /**
+   * Starts warming up and installs this prewarmer.
+   * Must be called from the UI thread.
+   */
+  public void start() {
+    if (this.started) {
+      return;
+    }
+    this.started = true;
+    install(this);
+
+    if (this.avatarResIds.length > 0) {
+      final Context appContext = this.context.getApplicationContext();
+      final int[] resIds = this.avatarResIds;
+      Thread decoder = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ChipAvatarCache.getInstance().preload(appContext, resIds);
+        }
+      }, "ChipsPrewarmer");
+      decoder.setPriority(Thread.MIN_PRIORITY);
+      decoder.start();
+    }
+    Looper.myQueue().addIdleHandler(this);
+  }
+
+  /**
+   * Stops warming up, uninstalls this prewarmer and drops whatever is not
+   * taken yet. Must be called from the UI thread.
+   */
+  public void stop() {
+    this.started = false;
+    Looper.myQueue().removeIdleHandler(this);
+    if (getInstalled() == this) {
+      install(null);
+    }
+    this.chipPool.trimTo(0);
+    this.editTexts.clear();
+  }
+
+  @Override
+  public boolean queueIdle() {
+    if (!this.started) {
+      return false;
+    }
+    long deadline = SystemClock.uptimeMillis() + IDLE_BATCH_MS;
+    while (SystemClock.uptimeMillis() < deadline) {
+      if (this.editTexts.size() < this.editTextCount) {
+        this.editTexts.add(new EditText(this.context));
+      }
+      else if (this.chipsCreated < this.chipCount) {
+        this.chipPool.release(new Chip<IChipModel>(this.context));
+        ++this.chipsCreated;
+      }
+      else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Takes a prewarmed EditText.
+   *
+   * @return the EditText or null if there is none left
+   */
+  EditText takeEditText() {
+    int size = this.editTexts.size();
+    return size == 0 ? null : this.editTexts.remove(size - 1);
+  }
+
+  /**
+   * Takes a prewarmed chip.
+   *
+   * @return the chip or null if there is none left
+   */
+  <E extends IChipModel> Chip<E> takeChip() {
+    return this.chipPool.acquire();
+  }
+
+  /**
+   * Hands the prewarmed chips left over to the given pool, the pool is grown
+   * to hold them all.
+   *
+   * @param pool
+   */
+  void handOff(ChipPool pool) {
+    int size = pool.size() + this.chipPool.size();
+    if (size > pool.getMaxSize()) {
+      pool.setMaxSize(size);
+    }
+    Chip<IChipModel> chip;
+    while (null != (chip = this.chipPool.acquire())) {
+      if (!pool.release(chip)) {
+        this.chipPool.release(chip);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns the Context the views are created with.
+   *
+   * @return
+   */
+  public Context getContext() {
+    return this.context;
+  }
+
+  /**
+   * Returns the installed prewarmer for the given Context.
+   *
+   * @param context
+   * @return the prewarmer or null if none is installed for this Context
+   */
+  static ChipsPrewarmer getInstalled(Context context) {
+    ChipsPrewarmer prewarmer = getInstalled();
+    if (null == prewarmer || prewarmer.context != context) {
+      return null;
+    }
+    return prewarmer;
+  }
+
+  /**
+   * Returns the installed prewarmer.
+   *
+   * @return the prewarmer or null if none is installed or it is collected
+   */
+  private static ChipsPrewarmer getInstalled() {
+    WeakReference<ChipsPrewarmer> installed = sInstalled;
+    return null == installed ? null : installed.get();
+  }
+
+  /**
+   * Installs the prewarmer.
+   *
+   * @param prewarmer
+   */
+  private static void install(ChipsPrewarmer prewarmer) {
+    sInstalled = null == prewarmer ? null : new WeakReference<ChipsPrewarmer>(prewarmer);
+  }
+}
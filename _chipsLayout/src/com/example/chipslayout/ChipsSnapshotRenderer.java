@@ -0,0 +1,202 @@
+package com.example.chipslayout;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Renders a list of chip models straight to a Canvas or a Bitmap, e.g. for
+ * thumbnails, without creating any View.
+ *
+ * The chips are sized by {@link ChipMetrics}, placed by the same flow math
+ * as {@link ChipsLayout}, and drawn with the avatars of
+ * {@link ChipAvatarCache}. The renderer can be used from a background thread;
+ * the calls on one instance are serialized.
+ */
+public class ChipsSnapshotRenderer {
+
+  /**
+   * The background color of a chip, as in {@code chip_layout_normal.xml}.
+   */
+  private static final int CHIP_BACKGROUND_COLOR = 0xFFCCCCCC;
+
+  /**
+   * Context for decoding the avatars.
+   */
+  private final Context context;
+
+  /**
+   * Chip sizes.
+   */
+  private final ChipMetrics metrics;
+
+  /**
+   * Chip positions.
+   */
+  private final ChipsFlow flow = new ChipsFlow();
+
+  private final Paint backgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint avatarPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+  private final Matrix avatarMatrix = new Matrix();
+  private final RectF chipRect = new RectF();
+
+  /**
+   * The shaders of the avatars drawn in one render.
+   */
+  private final IdentityHashMap<Bitmap, BitmapShader> shaders = new IdentityHashMap<Bitmap, BitmapShader>();
+
+  /**
+   * Constructor.
+   *
+   * @param context
+   */
+  public ChipsSnapshotRenderer(Context context) {
+    this.context = context.getApplicationContext();
+    this.metrics = new ChipMetrics(context);
+    this.backgroundPaint.setColor(CHIP_BACKGROUND_COLOR);
+  }
+
+  /**
+   * Returns the metrics the chips are sized with, e.g. to set the text size.
+   *
+   * @return
+   */
+  public ChipMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Returns the height the chips take in the given width.
+   *
+   * @param chipModels
+   * @param width
+   * @return
+   */
+  public synchronized int measureHeight(List<? extends IChipModel> chipModels, int width) {
+    flow(chipModels, width);
+    return this.flow.getHeight();
+  }
+
+  /**
+   * Renders the chips into a new Bitmap of the given width, as high as the
+   * chips need.
+   *
+   * @param chipModels
+   * @param width
+   * @return the Bitmap, or null if there is nothing to render
+   */
+  public synchronized Bitmap render(List<? extends IChipModel> chipModels, int width) {
+    flow(chipModels, width);
+    int height = this.flow.getHeight();
+    if (width <= 0 || height <= 0) {
+      return null;
+    }
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    draw(chipModels, new Canvas(bitmap));
+    return bitmap;
+  }
+
+  /**
+   * Renders the chips onto the canvas, starting at its origin.
+   * The canvas must be a software canvas, e.g. backed by a Bitmap.
+   *
+   * @param chipModels
+   * @param width
+   * @param canvas
+   * @return the height taken by the chips
+   */
+  public synchronized int render(List<? extends IChipModel> chipModels, int width, Canvas canvas) {
+    flow(chipModels, width);
+    draw(chipModels, canvas);
+    return this.flow.getHeight();
+  }
+
+  /**
+   * Computes the chip positions.
+   *
+   * @param chipModels
+   * @param width
+   */
+  private void flow(List<? extends IChipModel> chipModels, int width) {
+    int count = chipModels.size();
+    this.flow.setCount(count, 0);
+    int height = this.metrics.getChipHeight();
+    for (int i = 0; i < count; i++) {
+      this.flow.setSize(i, Math.min(width, this.metrics.measureChipWidth(chipModels.get(i))), height);
+    }
+    this.flow.flow(width);
+  }
+
+  /**
+   * Draws the flowed chips.
+   *
+   * @param chipModels
+   * @param canvas
+   */
+  private void draw(List<? extends IChipModel> chipModels, Canvas canvas) {
+    ChipMetrics m = this.metrics;
+    int contentHeight = m.getContentHeight();
+    int baseline = m.getCenteredBaseline(contentHeight);
+    int count = chipModels.size();
+    for (int i = 0; i < count; i++) {
+      IChipModel chipModel = chipModels.get(i);
+      float left = this.flow.getX(i);
+      float top = this.flow.getY(i);
+      float right = left + this.flow.getChipWidth(i) - m.chipMarginRight;
+
+      this.chipRect.set(left, top, right, top + contentHeight);
+      canvas.drawRoundRect(this.chipRect, m.cornerRadius, m.cornerRadius, this.backgroundPaint);
+      drawAvatar(canvas, chipModel.getChipIcon(), left, top + (contentHeight - m.iconSize) / 2);
+
+      CharSequence text = chipModel.getChipText();
+      if (null != text && text.length() > 0) {
+        float textLeft = left + m.iconSize + m.textMarginLeft;
+        text = ChipTextEllipsizer.getInstance().ellipsize(text, m.getTextPaint(),
+            (int) (right - m.textMarginRight - textLeft));
+        canvas.save();
+        canvas.clipRect(textLeft, top, right - m.textMarginRight, top + contentHeight);
+        canvas.drawText(text, 0, text.length(), textLeft, top + baseline, m.getTextPaint());
+        canvas.restore();
+      }
+    }
+    this.shaders.clear();
+  }
+
+  /**
+   * Draws a circle cropped avatar, like {@link CircleImageView} does.
+   *
+   * @param canvas
+   * @param resId
+   * @param left
+   * @param top
+   */
+  private void drawAvatar(Canvas canvas, int resId, float left, float top) {
+    Bitmap avatar = ChipAvatarCache.getInstance().get(this.context, resId);
+    if (null == avatar) {
+      return;
+    }
+    BitmapShader shader = this.shaders.get(avatar);
+    if (null == shader) {
+      shader = new BitmapShader(avatar, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+      this.shaders.put(avatar, shader);
+    }
+    int size = this.metrics.iconSize;
+    float scale = Math.max(size / (float) avatar.getWidth(), size / (float) avatar.getHeight());
+    float dx = (size - avatar.getWidth() * scale) * 0.5f;
+    float dy = (size - avatar.getHeight() * scale) * 0.5f;
+    this.avatarMatrix.setScale(scale, scale);
+    this.avatarMatrix.postTranslate(left + dx, top + dy);
+    shader.setLocalMatrix(this.avatarMatrix);
+    this.avatarPaint.setShader(shader);
+    float radius = size / 2f;
+    canvas.drawCircle(left + radius, top + radius, radius, this.avatarPaint);
+  }
+}
@@ -34,14 +34,20 @@ public class CircleImageView extends ImageView {
     private final RectF mBorderRect = new RectF();
 
     private final Matrix mShaderMatrix = new Matrix();
+    private final Matrix mOverlayMatrix = new Matrix();
     private final Paint mBitmapPaint = new Paint();
     private final Paint mBorderPaint = new Paint();
+    private final Paint mOverlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
 
     private int mBorderColor = DEFAULT_BORDER_COLOR;
     private int mBorderWidth = DEFAULT_BORDER_WIDTH;
 
     private Bitmap mBitmap;
     private BitmapShader mBitmapShader;
+    private Bitmap mShaderBitmap;
+    private Bitmap mOverlayBitmap;
+    private BitmapShader mOverlayShader;
+    private boolean mOverlayShown;
     private int mBitmapWidth;
     private int mBitmapHeight;
 
@@ -53,6 +59,7 @@ public class CircleImageView extends ImageView {
     private boolean mReady;
     private boolean mSetupPending;
     private boolean mBorderOverlay;
+    private boolean mLayoutBlocked;
 
     public CircleImageView(Context context) {
         super(context);
@@ -117,6 +124,9 @@ public class CircleImageView extends ImageView {
         if (mBorderWidth != 0) {
             canvas.drawCircle(getWidth() / 2, getHeight() / 2, mBorderRadius, mBorderPaint);
         }
+        if (mOverlayShown && mOverlayShader != null) {
+            canvas.drawCircle(getWidth() / 2, getHeight() / 2, mDrawableRadius, mOverlayPaint);
+        }
     }
 
     @Override
@@ -125,6 +135,40 @@ public class CircleImageView extends ImageView {
         setup();
     }
 
+    /**
+     * Sets the bitmap drawn over the image when the overlay is shown, e.g. a
+     * delete icon. It is cropped to the circle like the image, its shader is
+     * only created when the bitmap is changed.
+     */
+    void setOverlayBitmap(Bitmap overlay) {
+        if (overlay == mOverlayBitmap) {
+            return;
+        }
+        mOverlayBitmap = overlay;
+        mOverlayShader = overlay == null ? null
+                : new BitmapShader(overlay, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        mOverlayPaint.setShader(mOverlayShader);
+        updateOverlayMatrix();
+        if (mOverlayShown) {
+            invalidate();
+        }
+    }
+
+    Bitmap getOverlayBitmap() {
+        return mOverlayBitmap;
+    }
+
+    /**
+     * Shows or hides the overlay, only invalidates the view.
+     */
+    void setOverlayShown(boolean shown) {
+        if (shown == mOverlayShown) {
+            return;
+        }
+        mOverlayShown = shown;
+        invalidate();
+    }
+
     public int getBorderColor() {
         return mBorderColor;
     }
@@ -208,6 +252,35 @@ public class CircleImageView extends ImageView {
         invalidate();
     }
 
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Sets the bitmap without a layout pass, so only for a view of an exact
+     * size. A null bitmap also drops the shader, so that the old bitmap can be
+     * freed: nothing is drawn until a bitmap is set again.
+     */
+    void swapBitmap(Bitmap bm) {
+        mLayoutBlocked = true;
+        if (bm == null) {
+            setImageDrawable(null);
+            mBitmapShader = null;
+            mShaderBitmap = null;
+            mBitmapPaint.setShader(null);
+        } else {
+            setImageBitmap(bm);
+        }
+        mLayoutBlocked = false;
+    }
+
+    @Override
+    public void requestLayout() {
+        if (!mLayoutBlocked) {
+            super.requestLayout();
+        }
+    }
+
     private Bitmap getBitmapFromDrawable(Drawable drawable) {
         if (drawable == null) {
             return null;
@@ -245,7 +318,11 @@ public class CircleImageView extends ImageView {
             return;
         }
 
-        mBitmapShader = new BitmapShader(mBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        if (mBitmapShader == null || mShaderBitmap != mBitmap) {
+            // Only a new Bitmap needs a new shader, resizing just updates the matrix.
+            mBitmapShader = new BitmapShader(mBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mShaderBitmap = mBitmap;
+        }
 
         mBitmapPaint.setAntiAlias(true);
         mBitmapPaint.setShader(mBitmapShader);
@@ -268,28 +345,44 @@ public class CircleImageView extends ImageView {
         mDrawableRadius = Math.min(mDrawableRect.height() / 2, mDrawableRect.width() / 2);
 
         updateShaderMatrix();
+        updateOverlayMatrix();
         invalidate();
     }
 
     private void updateShaderMatrix() {
+        centerCrop(mShaderMatrix, mBitmapWidth, mBitmapHeight);
+        mBitmapShader.setLocalMatrix(mShaderMatrix);
+    }
+
+    private void updateOverlayMatrix() {
+        if (mOverlayShader == null) {
+            return;
+        }
+        centerCrop(mOverlayMatrix, mOverlayBitmap.getWidth(), mOverlayBitmap.getHeight());
+        mOverlayShader.setLocalMatrix(mOverlayMatrix);
+    }
+
+    /**
+     * Sets the matrix scaling a bitmap of the given size to fill the drawable
+     * rect, centered.
+     */
+    private void centerCrop(Matrix matrix, int bitmapWidth, int bitmapHeight) {
         float scale;
         float dx = 0;
         float dy = 0;
 
-        mShaderMatrix.set(null);
+        matrix.set(null);
 
-        if (mBitmapWidth * mDrawableRect.height() > mDrawableRect.width() * mBitmapHeight) {
-            scale = mDrawableRect.height() / (float) mBitmapHeight;
-            dx = (mDrawableRect.width() - mBitmapWidth * scale) * 0.5f;
+        if (bitmapWidth * mDrawableRect.height() > mDrawableRect.width() * bitmapHeight) {
+            scale = mDrawableRect.height() / (float) bitmapHeight;
+            dx = (mDrawableRect.width() - bitmapWidth * scale) * 0.5f;
         } else {
-            scale = mDrawableRect.width() / (float) mBitmapWidth;
-            dy = (mDrawableRect.height() - mBitmapHeight * scale) * 0.5f;
+            scale = mDrawableRect.width() / (float) bitmapWidth;
+            dy = (mDrawableRect.height() - bitmapHeight * scale) * 0.5f;
         }
 
-        mShaderMatrix.setScale(scale, scale);
-        mShaderMatrix.postTranslate((int) (dx + 0.5f) + mDrawableRect.left, (int) (dy + 0.5f) + mDrawableRect.top);
-
-        mBitmapShader.setLocalMatrix(mShaderMatrix);
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((int) (dx + 0.5f) + mDrawableRect.left, (int) (dy + 0.5f) + mDrawableRect.top);
     }
 
 }
\ No newline at end of file
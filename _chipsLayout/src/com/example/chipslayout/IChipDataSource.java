@@ -0,0 +1,37 @@
+package com.example.chipslayout;
+
+import java.util.List;
+
+/**
+ * A paged source of chip models, for chip sets too large to be loaded at
+ * once (e.g. tags stored in a database). {@link ChipsLayout} only loads the
+ * pages it needs to show.
+ */
+public interface IChipDataSource<E extends IChipModel> {
+
+  /**
+   * Returns the number of chips loaded at once.
+   */
+  public int getPageSize();
+  
+  /**
+   * Returns the total number of chips, or -1 if unknown. Used to show the
+   * number of hidden chips without loading them.
+   */
+  public int getTotalCountHint();
+  
+  /**
+   * Loads the chips in [start, start + count) asynchronously. The callback
+   * can be called from any thread; fewer chips than requested means the end
+   * is reached.
+   */
+  public void loadRange(int start, int count, Callback<E> callback);
+  
+  /**
+   * Receives the loaded chips.
+   */
+  public interface Callback<E extends IChipModel> {
+    
+    public void onLoaded(int start, List<E> chipModels);
+  }
+}
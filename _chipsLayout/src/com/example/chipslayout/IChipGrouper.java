@@ -0,0 +1,15 @@
+package com.example.chipslayout;
+
+/**
+ * Tells the group of a chip, e.g. the domain of an email address, the team
+ * of a user or the prefix of a tag. See {@link ChipAggregator}.
+ */
+public interface IChipGrouper<E extends IChipModel> {
+
+  /**
+   * Returns the key of the group of the chip, or null to show the chip on
+   * its own. Called on the background thread, or on the thread writing to
+   * the group store.
+   */
+  public String getGroupKey(E chipModel);
+}
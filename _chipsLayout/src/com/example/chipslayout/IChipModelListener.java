@@ -0,0 +1,9 @@
+package com.example.chipslayout;
+
+/**
+ * Listener notified when an {@link IObservableChipModel} is changed.
+ */
+public interface IChipModelListener {
+
+  public void onChipChanged(IChipModel chipModel);
+}
@@ -0,0 +1,9 @@
+package com.example.chipslayout;
+
+/**
+ * Listener notified when a chip is dragged to another position.
+ */
+public interface IChipMoveListener<E extends IChipModel> {
+
+  public void onChipMoved(E chipModel, int fromIndex, int toIndex);
+}
@@ -0,0 +1,17 @@
+package com.example.chipslayout;
+
+/**
+ * Listener notified when a {@link ChipsLayout} trims its memory, see
+ * {@link ChipsLayout#trimMemory(int)}.
+ */
+public interface IChipTrimListener {
+
+  /**
+   * @param level the trim level, one of the
+   *          {@code ComponentCallbacks2.TRIM_MEMORY_*} constants
+   * @param bytesFreed the bytes no longer retained by the layout, its pool
+   *          and the chip caches, as estimated by {@link ChipMemoryStats}:
+   *          only the bitmaps until it is calibrated
+   */
+  public void onMemoryTrimmed(int level, long bytesFreed);
+}
@@ -0,0 +1,14 @@
+package com.example.chipslayout;
+
+/**
+ * A chip model which tells its listeners when its icon or text is changed.
+ * {@link ChipsLayout} listens to the observable models it shows while it is
+ * attached to a window and rebinds only the chip of the changed model. The
+ * listener is removed on detach, so a model may outlive the layout.
+ */
+public interface IObservableChipModel extends IChipModel {
+
+  public void addChipModelListener(IChipModelListener listener);
+  
+  public void removeChipModelListener(IChipModelListener listener);
+}
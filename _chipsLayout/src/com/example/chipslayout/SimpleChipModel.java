@@ -1,10 +1,13 @@
 package com.example.chipslayout;
 
-public class SimpleChipModel implements IChipModel {
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class SimpleChipModel implements IObservableChipModel {
 
   private String chipKey;
   private int chipIcon;
   private CharSequence chipText;
+  private final CopyOnWriteArrayList<IChipModelListener> listeners = new CopyOnWriteArrayList<IChipModelListener>();
   
   public SimpleChipModel (String chipKey, int chipIcon, CharSequence chipText) {
     this.chipKey = chipKey;
@@ -27,9 +30,29 @@ public class SimpleChipModel implements IChipModel {
     return this.chipKey;
   }
 
+  public void setChipIcon(int chipIcon) {
+    this.chipIcon = chipIcon;
+    this.notifyChanged();
+  }
+  
   public void setChipText(CharSequence chipText) {
     this.chipText = chipText;
+    this.notifyChanged();
   }
   
+  @Override
+  public void addChipModelListener(IChipModelListener listener) {
+    this.listeners.addIfAbsent(listener);
+  }
+
+  @Override
+  public void removeChipModelListener(IChipModelListener listener) {
+    this.listeners.remove(listener);
+  }
   
+  private void notifyChanged() {
+    for (IChipModelListener listener : this.listeners) {
+      listener.onChipChanged(this);
+    }
+  }
 }
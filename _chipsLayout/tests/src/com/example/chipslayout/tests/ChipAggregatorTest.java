@@ -0,0 +1,256 @@
+package com.example.chipslayout.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.example.chipslayout.ChipAggregator;
+import com.example.chipslayout.ChipStore;
+import com.example.chipslayout.IChipGrouper;
+import com.example.chipslayout.IChipModel;
+import com.example.chipslayout.R;
+import com.example.chipslayout.SimpleChipModel;
+
+/**
+ * Checks that the group store of a {@link ChipAggregator} writes through to
+ * the source store, and reflects each write when it returns without waiting
+ * for the grouping.
+ */
+public class ChipAggregatorTest extends TestCase {
+
+  /**
+   * How long the first grouping on the background thread is waited for.
+   */
+  private static final long GROUPING_TIMEOUT_MS = 5000;
+
+  /**
+   * Groups the chips by the domain of their key, the keys without one are
+   * shown on their own.
+   */
+  private static final IChipGrouper<SimpleChipModel> DOMAIN_GROUPER = new IChipGrouper<SimpleChipModel>() {
+    @Override
+    public String getGroupKey(SimpleChipModel chipModel) {
+      int at = chipModel.getChipKey().indexOf('@');
+      return at < 0 ? null : chipModel.getChipKey().substring(at + 1);
+    }
+  };
+
+  /**
+   * Orders the chips by key.
+   */
+  private static final Comparator<IChipModel> KEY_ORDER = new Comparator<IChipModel>() {
+    @Override
+    public int compare(IChipModel lhs, IChipModel rhs) {
+      return lhs.getChipKey().compareTo(rhs.getChipKey());
+    }
+  };
+
+  private ChipStore<SimpleChipModel> source;
+  private ChipAggregator<SimpleChipModel> aggregator;
+  private ChipStore<IChipModel> groupStore;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.source = new ChipStore<SimpleChipModel>();
+    this.source.addAll(Arrays.asList(createModel("a@x.com"), createModel("b@x.com"), createModel("c"),
+        createModel("d@y.com")));
+    this.aggregator = new ChipAggregator<SimpleChipModel>(this.source, DOMAIN_GROUPER);
+    this.groupStore = this.aggregator.getGroupStore();
+    this.aggregator.start();
+    long deadline = System.currentTimeMillis() + GROUPING_TIMEOUT_MS;
+    while (this.groupStore.snapshot().size() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(3, this.groupStore.snapshot().size());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.aggregator.stop();
+    super.tearDown();
+  }
+
+  public void testRemovingGroupRemovesMembersInOneWrite() {
+    int version = this.source.snapshot().getVersion();
+    assertTrue(this.groupStore.remove(ChipAggregator.GROUP_KEY_PREFIX + "x.com"));
+
+    assertEquals(version + 1, this.source.snapshot().getVersion());
+    assertEquals(2, this.source.snapshot().size());
+    assertEquals(-1, this.groupStore.snapshot().indexOfKey(ChipAggregator.GROUP_KEY_PREFIX + "x.com"));
+    assertEquals(2, this.groupStore.snapshot().size());
+  }
+
+  public void testAddingGroupBackRestoresMembers() {
+    String groupKey = ChipAggregator.GROUP_KEY_PREFIX + "x.com";
+    int index = this.groupStore.snapshot().indexOfKey(groupKey);
+    IChipModel groupChip = this.groupStore.snapshot().get(index);
+    this.groupStore.remove(groupKey);
+
+    this.groupStore.add(index, groupChip);
+
+    assertEquals(4, this.source.snapshot().size());
+    assertEquals(index, this.groupStore.snapshot().indexOfKey(groupKey));
+  }
+
+  public void testAddingChipWritesToSource() {
+    this.groupStore.add(0, createModel("e"));
+
+    assertTrue(this.source.snapshot().indexOfKey("e") >= 0);
+    assertEquals(0, this.groupStore.snapshot().indexOfKey("e"));
+  }
+
+  public void testSettingChipsExpandsGroupChips() {
+    IChipModel groupChip = this.groupStore.snapshot().get(
+        this.groupStore.snapshot().indexOfKey(ChipAggregator.GROUP_KEY_PREFIX + "y.com"));
+
+    this.groupStore.setAll(Arrays.asList(groupChip, createModel("f")));
+
+    assertEquals(2, this.source.snapshot().size());
+    assertTrue(this.source.snapshot().indexOfKey("d@y.com") >= 0);
+    assertTrue(this.source.snapshot().indexOfKey("f") >= 0);
+  }
+
+  public void testAddingChipsOfNewGroupShowsGroupChipInPlace() throws Exception {
+    String groupKey = ChipAggregator.GROUP_KEY_PREFIX + "z.com";
+    this.groupStore.add(0, createModel("g@z.com"));
+
+    assertEquals(5, this.source.snapshot().size());
+    assertEquals(0, this.groupStore.snapshot().indexOfKey(groupKey));
+    assertEquals(-1, this.groupStore.snapshot().indexOfKey("g@z.com"));
+
+    //
+    // Joins the group, which the grouping counts again in place.
+    this.groupStore.add(2, createModel("h@z.com"));
+    long deadline = System.currentTimeMillis() + GROUPING_TIMEOUT_MS;
+    ChipAggregator.ChipGroup groupChip = (ChipAggregator.ChipGroup) this.groupStore.snapshot().get(0);
+    while (groupChip.getMemberCount() != 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      groupChip = (ChipAggregator.ChipGroup) this.groupStore.snapshot().get(0);
+    }
+    assertEquals(groupKey, groupChip.getChipKey());
+    assertEquals(2, groupChip.getMemberCount());
+    assertEquals(4, this.groupStore.snapshot().size());
+  }
+
+  public void testWritesDoNotWaitForGrouping() throws Exception {
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    //
+    // Holds the lock of the grouping, as a long regroup would.
+    Thread grouping = new Thread() {
+      @Override
+      public void run() {
+        synchronized (aggregator) {
+          locked.countDown();
+          try {
+            released.await(GROUPING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+    grouping.start();
+    locked.await();
+    try {
+      long start = System.currentTimeMillis();
+      assertTrue(this.groupStore.remove("c"));
+      this.groupStore.add(0, createModel("e"));
+      assertTrue(System.currentTimeMillis() - start < GROUPING_TIMEOUT_MS / 2);
+      assertEquals(-1, this.groupStore.snapshot().indexOfKey("c"));
+      assertEquals(0, this.groupStore.snapshot().indexOfKey("e"));
+    }
+    finally {
+      released.countDown();
+      grouping.join();
+    }
+  }
+
+  public void testAddSortedWritesToSource() throws Exception {
+    this.sortGroupStoreByKey();
+
+    assertEquals(1, this.groupStore.addSorted(createModel("e"), KEY_ORDER));
+    assertTrue(this.source.snapshot().indexOfKey("e") >= 0);
+    assertEquals(1, this.groupStore.snapshot().indexOfKey("e"));
+
+    //
+    // Joins its group, which is counted again, and is not shown on its own.
+    this.groupStore.addSorted(createModel("f@x.com"), KEY_ORDER);
+    assertTrue(this.source.snapshot().indexOfKey("f@x.com") >= 0);
+    this.awaitMemberCount(ChipAggregator.GROUP_KEY_PREFIX + "x.com", 3);
+    assertEquals(-1, this.groupStore.snapshot().indexOfKey("f@x.com"));
+    assertEquals(1, this.groupStore.snapshot().indexOfKey("e"));
+    assertEquals(4, this.groupStore.snapshot().size());
+  }
+
+  public void testMoveWritesToSource() throws Exception {
+    this.sortGroupStoreByKey();
+
+    assertTrue(this.groupStore.move(ChipAggregator.GROUP_KEY_PREFIX + "y.com", 0));
+
+    assertEquals(0, this.groupStore.snapshot().indexOfKey(ChipAggregator.GROUP_KEY_PREFIX + "y.com"));
+    assertEquals(0, this.source.snapshot().indexOfKey("d@y.com"));
+  }
+
+  public void testUpdateWritesToSource() {
+    SimpleChipModel updated = createModel("c");
+
+    assertTrue(this.groupStore.update(updated));
+
+    assertSame(updated, this.source.snapshot().get(this.source.snapshot().indexOfKey("c")));
+    assertSame(updated, this.groupStore.snapshot().get(this.groupStore.snapshot().indexOfKey("c")));
+    assertFalse(this.groupStore.update(this.groupStore.snapshot().get(
+        this.groupStore.snapshot().indexOfKey(ChipAggregator.GROUP_KEY_PREFIX + "x.com"))));
+  }
+
+  /**
+   * Sorts the group store by key, as {@link com.example.chipslayout.ChipsLayout#setComparator}
+   * does, and waits for the grouping: "c", then the group chips of x.com and
+   * y.com.
+   *
+   * @throws InterruptedException
+   */
+  private void sortGroupStoreByKey() throws InterruptedException {
+    ArrayList<IChipModel> sorted = new ArrayList<IChipModel>(this.groupStore.snapshot());
+    Collections.sort(sorted, KEY_ORDER);
+    this.groupStore.setAll(sorted);
+    long deadline = System.currentTimeMillis() + GROUPING_TIMEOUT_MS;
+    while (!"c".equals(this.groupStore.snapshot().get(0).getChipKey()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, this.groupStore.snapshot().indexOfKey("c"));
+    assertEquals(0, this.source.snapshot().indexOfKey("c"));
+  }
+
+  /**
+   * Waits for the grouping to count the given number of members in a group.
+   *
+   * @param groupChipKey
+   * @param count
+   * @throws InterruptedException
+   */
+  private void awaitMemberCount(String groupChipKey, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + GROUPING_TIMEOUT_MS;
+    ChipAggregator.ChipGroup groupChip;
+    do {
+      groupChip = (ChipAggregator.ChipGroup) this.groupStore.snapshot().get(
+          this.groupStore.snapshot().indexOfKey(groupChipKey));
+      if (groupChip.getMemberCount() == count) {
+        return;
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() < deadline);
+    assertEquals(count, groupChip.getMemberCount());
+  }
+
+  private static SimpleChipModel createModel(String key) {
+    return new SimpleChipModel(key, R.drawable.ic_contact_picture, key);
+  }
+}
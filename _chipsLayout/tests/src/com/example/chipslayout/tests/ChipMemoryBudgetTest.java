@@ -0,0 +1,92 @@
+package com.example.chipslayout.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.view.View.MeasureSpec;
+
+import com.example.chipslayout.ChipMemoryBudget;
+import com.example.chipslayout.ChipMemoryStats;
+import com.example.chipslayout.ChipsLayout;
+import com.example.chipslayout.R;
+import com.example.chipslayout.SimpleChipModel;
+
+/**
+ * Fails when the memory footprint of a chip goes past
+ * {@link ChipMemoryBudget}, at 1k and 10k chips.
+ *
+ * Both what {@link ChipsLayout#getMemoryStats()} reports and the growth of
+ * the heap actually measured over the chips are checked, so that neither the
+ * chips nor their accounting can drift unnoticed.
+ */
+public class ChipMemoryBudgetTest extends InstrumentationTestCase {
+
+  /**
+   * The width (in pixels) the layout is measured at.
+   */
+  private static final int LAYOUT_WIDTH = 1080;
+
+  private final ChipMemoryBudget budget = new ChipMemoryBudget();
+
+  public void testBudgetAt1kChips() throws Throwable {
+    checkBudget(1000);
+  }
+
+  public void testBudgetAt10kChips() throws Throwable {
+    checkBudget(10000);
+  }
+
+  /**
+   * Fills a layout with the given number of chips and checks them against
+   * the budget.
+   *
+   * @param chipCount
+   * @throws Throwable
+   */
+  private void checkBudget(final int chipCount) throws Throwable {
+    final ChipMemoryStats[] stats = new ChipMemoryStats[1];
+    final long[] measuredBytes = new long[1];
+    runTestOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        Context context = getInstrumentation().getTargetContext();
+        ChipMemoryStats.calibrate(context);
+        ChipsLayout<SimpleChipModel> layout = new ChipsLayout<SimpleChipModel>(context);
+        //
+        // The models belong to the app, only the chips are measured.
+        List<SimpleChipModel> models = createModels(chipCount);
+        long before = ChipMemoryStats.measureUsedBytes();
+        layout.addChips(models);
+        layout.measure(MeasureSpec.makeMeasureSpec(LAYOUT_WIDTH, MeasureSpec.EXACTLY),
+            MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+        measuredBytes[0] = ChipMemoryStats.measureUsedBytes() - before;
+        stats[0] = layout.getMemoryStats();
+      }
+    });
+
+    assertEquals(chipCount, stats[0].getChipCount());
+    this.budget.check(stats[0]);
+    long measuredPerChip = measuredBytes[0] / chipCount;
+    long budgetPerChip = this.budget.getOtherBytesPerChip() + this.budget.getBitmapBytesPerChip();
+    assertTrue("Measured " + measuredPerChip + " bytes per chip, budget " + budgetPerChip + ": " + stats[0],
+        measuredPerChip <= budgetPerChip);
+  }
+
+  /**
+   * Returns chips sharing a few avatars, with texts of usual lengths.
+   *
+   * @param chipCount
+   * @return
+   */
+  static List<SimpleChipModel> createModels(int chipCount) {
+    int[] avatars = { R.drawable.boy, R.drawable.uncle, R.drawable.ic_contact_picture };
+    List<SimpleChipModel> models = new ArrayList<SimpleChipModel>(chipCount);
+    for (int i = 0; i < chipCount; i++) {
+      models.add(new SimpleChipModel("chip" + i, avatars[i % avatars.length], "recipient." + i + "@example.com"));
+    }
+    return models;
+  }
+}
@@ -0,0 +1,54 @@
+package com.example.chipslayout.tests;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import junit.framework.TestCase;
+
+import com.example.chipslayout.ChipStore;
+import com.example.chipslayout.R;
+import com.example.chipslayout.SimpleChipModel;
+
+/**
+ * Checks the sorted insertion of {@link ChipStore}.
+ */
+public class ChipStoreTest extends TestCase {
+
+  private static final Comparator<SimpleChipModel> BY_TEXT = new Comparator<SimpleChipModel>() {
+    @Override
+    public int compare(SimpleChipModel a, SimpleChipModel b) {
+      return a.getChipText().toString().compareTo(b.getChipText().toString());
+    }
+  };
+
+  public void testAddSortedInsertsAfterEqualChips() {
+    ChipStore<SimpleChipModel> store = new ChipStore<SimpleChipModel>();
+    store.addAll(Arrays.asList(createModel("1", "a"), createModel("2", "c"), createModel("3", "e")));
+
+    assertEquals(0, store.addSorted(createModel("4", "0"), BY_TEXT));
+    assertEquals(3, store.addSorted(createModel("5", "c"), BY_TEXT));
+    assertEquals(5, store.addSorted(createModel("6", "z"), BY_TEXT));
+
+    ChipStore.Snapshot<SimpleChipModel> snapshot = store.snapshot();
+    for (int i = 1; i < snapshot.size(); i++) {
+      assertTrue(BY_TEXT.compare(snapshot.get(i - 1), snapshot.get(i)) <= 0);
+    }
+    assertEquals(3, snapshot.indexOfKey("5"));
+  }
+
+  public void testAddSortedIsOneAddChange() {
+    ChipStore<SimpleChipModel> store = new ChipStore<SimpleChipModel>();
+    store.addAll(Arrays.asList(createModel("1", "a"), createModel("2", "c")));
+    int version = store.snapshot().getVersion();
+
+    int index = store.addSorted(createModel("3", "b"), BY_TEXT);
+
+    ChipStore.Change<SimpleChipModel> change = store.snapshot().getChangesSince(version).get(0);
+    assertEquals(ChipStore.Change.Type.ADD, change.getType());
+    assertEquals(index, change.getToIndex());
+  }
+
+  private static SimpleChipModel createModel(String key, String text) {
+    return new SimpleChipModel(key, R.drawable.ic_contact_picture, text);
+  }
+}
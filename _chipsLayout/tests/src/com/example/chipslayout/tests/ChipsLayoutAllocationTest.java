@@ -0,0 +1,113 @@
+package com.example.chipslayout.tests;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+import com.example.chipslayout.ChipsLayout;
+import com.example.chipslayout.SimpleChipModel;
+
+/**
+ * Fails when measuring, laying out, drawing, collapsing or expanding a warmed
+ * up ChipsLayout allocates.
+ */
+public class ChipsLayoutAllocationTest extends InstrumentationTestCase {
+
+  /**
+   * The number of chips, below the threshold of the background flow.
+   */
+  private static final int CHIP_COUNT = 100;
+
+  /**
+   * The number of measure/layout/draw cycles counted.
+   */
+  private static final int CYCLES = 1000;
+
+  /**
+   * The number of cycles run before counting, so that the caches, arrays,
+   * text layouts and the flows of both widths are all built.
+   */
+  private static final int WARM_UP_CYCLES = 10;
+
+  /**
+   * The layout is collapsed and expanded again every this many cycles.
+   */
+  private static final int COLLAPSE_PERIOD = 10;
+
+  /**
+   * The widths (in pixels) the layout is measured at in turn, e.g. portrait
+   * and landscape. No chip is wide enough to be ellipsized in either.
+   */
+  private static final int[] LAYOUT_WIDTHS = { 1080, 1920 };
+
+  public void testMeasureLayoutAndDrawDoNotAllocate() throws Throwable {
+    final int[] allocations = new int[1];
+    runTestOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        Context context = getInstrumentation().getTargetContext();
+        ChipsLayout<SimpleChipModel> layout = new ChipsLayout<SimpleChipModel>(context);
+        layout.addChips(ChipMemoryBudgetTest.createModels(CHIP_COUNT));
+        //
+        // A TextView creates a new text layout whenever its width is changed,
+        // and the width of the EditText follows the last chip.
+        layout.getEditText().setVisibility(View.GONE);
+        Canvas canvas = new Canvas(Bitmap.createBitmap(LAYOUT_WIDTHS[1], LAYOUT_WIDTHS[1], Config.ARGB_8888));
+        for (int i = 0; i < WARM_UP_CYCLES; i++) {
+          cycle(layout, canvas, i);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < CYCLES; i++) {
+          cycle(layout, canvas, i);
+        }
+        Debug.stopAllocCounting();
+        allocations[0] = Debug.getThreadAllocCount();
+      }
+    });
+    assertEquals("Allocations over " + CYCLES + " cycles", 0, allocations[0]);
+  }
+
+  /**
+   * Changes a chip and the width, then measures, lays out and draws the
+   * layout; collapses and expands it every {@link #COLLAPSE_PERIOD} cycles.
+   *
+   * @param layout
+   * @param canvas
+   * @param cycle
+   */
+  private static void cycle(ChipsLayout<?> layout, Canvas canvas, int cycle) {
+    View chip = layout.getChildAt(cycle % CHIP_COUNT);
+    chip.requestLayout();
+    chip.invalidate();
+    int width = LAYOUT_WIDTHS[cycle % LAYOUT_WIDTHS.length];
+    measureLayoutAndDraw(layout, canvas, width);
+    if (cycle % COLLAPSE_PERIOD == 0) {
+      layout.setCollapsed(true);
+      measureLayoutAndDraw(layout, canvas, width);
+      layout.setCollapsed(false);
+      measureLayoutAndDraw(layout, canvas, width);
+    }
+  }
+
+  /**
+   * Runs a full measure, layout and draw pass, as a requestLayout would.
+   *
+   * @param layout
+   * @param canvas
+   * @param width
+   */
+  private static void measureLayoutAndDraw(ChipsLayout<?> layout, Canvas canvas, int width) {
+    layout.forceLayout();
+    layout.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+        MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+    layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+    layout.draw(canvas);
+  }
+}
@@ -0,0 +1,173 @@
+package com.example.chipslayout.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+
+import com.example.chipslayout.Chip;
+import com.example.chipslayout.ChipsLayout;
+import com.example.chipslayout.R;
+import com.example.chipslayout.SimpleChipModel;
+
+/**
+ * Checks {@link ChipsLayout#filterChips(CharSequence)} against a brute force
+ * search over the chip models, for random chips, queries typed on, erased or
+ * replaced, and chips added and removed between the searches.
+ */
+public class ChipsLayoutSearchTest extends InstrumentationTestCase {
+
+  /**
+   * The seed of the random chips and queries, printed on failure.
+   */
+  private static final long SEED = 20261019L;
+
+  /**
+   * The number of chips to start with.
+   */
+  private static final int CHIP_COUNT = 2000;
+
+  /**
+   * The number of random steps.
+   */
+  private static final int STEPS = 1000;
+
+  /**
+   * The chars of the texts and queries: few of them, so that most of the
+   * queries match some chips.
+   */
+  private static final String CHARS = "abcdeAB -";
+
+  public void testSearchAgreesWithBruteForce() throws Throwable {
+    runTestOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        checkRandomSearches(false);
+      }
+    });
+  }
+
+  public void testSearchCoversChipsKeptAsModels() throws Throwable {
+    runTestOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        checkRandomSearches(true);
+      }
+    });
+  }
+
+  /**
+   * Runs the random steps on a layout, checking every search.
+   *
+   * @param lazyCollapsed whether the chips are added to a lazily collapsed
+   *          layout, so that they are kept as models
+   */
+  private void checkRandomSearches(boolean lazyCollapsed) {
+    Context context = getInstrumentation().getTargetContext();
+    Random random = new Random(SEED);
+    ChipsLayout<SimpleChipModel> layout = new ChipsLayout<SimpleChipModel>(context);
+    if (lazyCollapsed) {
+      layout.setLazyCollapse(true);
+      layout.setCollapsed(true);
+    }
+    List<SimpleChipModel> models = new ArrayList<SimpleChipModel>();
+    int nextId = 0;
+    for (; nextId < CHIP_COUNT; nextId++) {
+      models.add(createModel(random, nextId));
+    }
+    layout.addChips(models);
+
+    String query = "";
+    for (int step = 0; step < STEPS; step++) {
+      int op = random.nextInt(20);
+      if (op < 12) {
+        query += CHARS.charAt(random.nextInt(CHARS.length()));
+      }
+      else if (op < 15) {
+        query = query.length() > 0 ? query.substring(0, query.length() - 1) : query;
+      }
+      else if (op < 17) {
+        query = randomText(random, random.nextInt(4));
+      }
+      else if (op < 19) {
+        SimpleChipModel model = createModel(random, nextId++);
+        models.add(model);
+        layout.addChip(model);
+      }
+      else if (!models.isEmpty()) {
+        SimpleChipModel model = models.remove(random.nextInt(models.size()));
+        layout.removeChip(model.getChipKey());
+      }
+      assertEquals("Seed " + SEED + ", step " + step + ", query \"" + query + "\"",
+          countMatches(models, query), layout.filterChips(query));
+      checkChipViews(layout, query, step);
+    }
+  }
+
+  /**
+   * Checks that the chip views are shown if and only if they match.
+   *
+   * @param layout
+   * @param query
+   * @param step
+   */
+  private static void checkChipViews(ChipsLayout<SimpleChipModel> layout, String query, int step) {
+    for (int i = 0, count = layout.getChildCount(); i < count; i++) {
+      View child = layout.getChildAt(i);
+      if (!(child instanceof Chip)) {
+        continue;
+      }
+      SimpleChipModel model = ((SimpleChipModel) ((Chip<?>) child).getChipModel());
+      boolean shown = child.getVisibility() != View.GONE;
+      assertEquals("Seed " + SEED + ", step " + step + ", chip " + model.getChipKey(),
+          matches(model, query), shown);
+    }
+  }
+
+  /**
+   * Returns the number of models containing the query in their text or key,
+   * all of them for an empty query.
+   *
+   * @param models
+   * @param query
+   * @return
+   */
+  private static int countMatches(List<SimpleChipModel> models, String query) {
+    int count = 0;
+    for (SimpleChipModel model : models) {
+      if (matches(model, query)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns whether the model contains the query, case insensitive.
+   *
+   * @param model
+   * @param query
+   * @return
+   */
+  private static boolean matches(SimpleChipModel model, String query) {
+    String q = query.toLowerCase(Locale.ROOT);
+    return model.getChipText().toString().toLowerCase(Locale.ROOT).contains(q)
+        || model.getChipKey().toLowerCase(Locale.ROOT).contains(q);
+  }
+
+  private static SimpleChipModel createModel(Random random, int id) {
+    return new SimpleChipModel("k" + id, R.drawable.ic_contact_picture, randomText(random, 3 + random.nextInt(10)));
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      text.append(CHARS.charAt(random.nextInt(CHARS.length())));
+    }
+    return text.toString();
+  }
+}